@@ -0,0 +1,179 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.sogeti.droidnetworking.NetworkOperation.Priority;
+
+/**
+ * Limits the bytes per second that request and response bodies move through the engine, in
+ * total, per host and per priority. A transfer is held to the strictest of the limits that
+ * apply to it. Limits may be set, changed and removed while transfers are running, for example
+ * to hold back background operations while the user is waiting on interactive ones.
+ * <p>
+ * Limits only hold back the network with the Apache and URLConnection transports. The NIO
+ * and HTTP/2 transports buffer the request body before sending it and read the whole response
+ * before the engine sees it, so with them the limits pace the operation but not the link.
+ */
+public class BandwidthLimiter {
+    // Long waits are taken in slices so cancellation and new limits are noticed
+    private static final long MAX_SLEEP = 100;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private TokenBucket global;
+    private final Map<Priority, TokenBucket> priorities = new EnumMap<Priority, TokenBucket>(Priority.class);
+    private final Map<String, TokenBucket> hosts = new HashMap<String, TokenBucket>();
+    private volatile boolean limited = false;
+
+    // A limit of 0 or less removes it
+    public synchronized void setGlobalLimit(final long bytesPerSecond) {
+        global = update(global, bytesPerSecond);
+        updateLimited();
+    }
+
+    // 0 if there is no limit
+    public synchronized long getGlobalLimit() {
+        return global != null ? global.getRate() : 0;
+    }
+
+    public synchronized void setPriorityLimit(final Priority priority, final long bytesPerSecond) {
+        put(priorities, priority, update(priorities.get(priority), bytesPerSecond));
+        updateLimited();
+    }
+
+    public synchronized long getPriorityLimit(final Priority priority) {
+        TokenBucket bucket = priorities.get(priority);
+
+        return bucket != null ? bucket.getRate() : 0;
+    }
+
+    public synchronized void setHostLimit(final String host, final long bytesPerSecond) {
+        String key = host.toLowerCase(Locale.US);
+
+        put(hosts, key, update(hosts.get(key), bytesPerSecond));
+        updateLimited();
+    }
+
+    public synchronized long getHostLimit(final String host) {
+        TokenBucket bucket = hosts.get(host.toLowerCase(Locale.US));
+
+        return bucket != null ? bucket.getRate() : 0;
+    }
+
+    public synchronized void clearLimits() {
+        global = null;
+        priorities.clear();
+        hosts.clear();
+        updateLimited();
+    }
+
+    boolean isLimited() {
+        return limited;
+    }
+
+    // Charges bytes that are about to be written, or have just been read, by the operation and
+    // blocks until the limits that apply to it allow more
+    void acquire(final NetworkOperation operation, final String host, final long bytes)
+            throws InterruptedIOException {
+        if (!limited || bytes <= 0) {
+            return;
+        }
+
+        String key = host != null ? host.toLowerCase(Locale.US) : null;
+        long delay = take(operation.getPriority(), key, bytes);
+
+        while (delay > 0) {
+            if (operation.isCancelled()) {
+                throw new InterruptedIOException("Operation cancelled");
+            }
+
+            try {
+                Thread.sleep(Math.min(MAX_SLEEP, (delay + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+
+            delay = getDelay(operation.getPriority(), key);
+        }
+    }
+
+    private synchronized long take(final Priority priority, final String host, final long bytes) {
+        long now = System.nanoTime();
+        long delay = 0;
+
+        for (TokenBucket bucket : getBuckets(priority, host)) {
+            if (bucket != null) {
+                delay = Math.max(delay, bucket.take(bytes, now));
+            }
+        }
+
+        return delay;
+    }
+
+    private synchronized long getDelay(final Priority priority, final String host) {
+        long now = System.nanoTime();
+        long delay = 0;
+
+        for (TokenBucket bucket : getBuckets(priority, host)) {
+            if (bucket != null) {
+                delay = Math.max(delay, bucket.getDelay(now));
+            }
+        }
+
+        return delay;
+    }
+
+    // Must be called while holding the lock
+    private TokenBucket[] getBuckets(final Priority priority, final String host) {
+        return new TokenBucket[] {
+            global, priorities.get(priority), host != null ? hosts.get(host) : null
+        };
+    }
+
+    // Must be called while holding the lock
+    private void updateLimited() {
+        limited = global != null || !priorities.isEmpty() || !hosts.isEmpty();
+    }
+
+    private static TokenBucket update(final TokenBucket bucket, final long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            return null;
+        }
+
+        if (bucket == null) {
+            return new TokenBucket(bytesPerSecond, System.nanoTime());
+        }
+
+        bucket.setRate(bytesPerSecond, System.nanoTime());
+
+        return bucket;
+    }
+
+    private static <K> void put(final Map<K, TokenBucket> buckets, final K key, final TokenBucket bucket) {
+        if (bucket == null) {
+            buckets.remove(key);
+        } else {
+            buckets.put(key, bucket);
+        }
+    }
+}
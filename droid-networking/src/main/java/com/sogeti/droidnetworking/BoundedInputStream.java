@@ -0,0 +1,77 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fails with a ResponseTooLargeException once more than maxSize bytes have been read.
+ */
+class BoundedInputStream extends FilterInputStream {
+    private final long maxSize;
+    private long count = 0;
+
+    BoundedInputStream(final InputStream in, final long maxSize) {
+        super(in);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int result = super.read();
+
+        if (result != -1) {
+            count(1);
+        }
+
+        return result;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        int read = super.read(buffer, offset, length);
+
+        if (read != -1) {
+            count(read);
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void count(final long read) throws ResponseTooLargeException {
+        count += read;
+
+        if (count > maxSize) {
+            throw new ResponseTooLargeException(maxSize);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+/**
+ * A pool of byte arrays shared by the engine's copy loops and in-memory buffers. Arrays come in
+ * power of two size classes from 1 KB to 64 KB. The pool keeps at most maxSize bytes in total,
+ * arrays handed back beyond that, or of any other length, are left to the garbage collector.
+ */
+public final class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 10; // 1 KB
+    private static final int MAX_CLASS_SHIFT = 16; // 64 KB
+    private static final int DEFAULT_MAX_SIZE = 512 * 1024;
+
+    public static final int MAX_BUFFER_SIZE = 1 << MAX_CLASS_SHIFT;
+
+    private static final BufferPool INSTANCE = new BufferPool(DEFAULT_MAX_SIZE);
+
+    private final SizeClassPool<byte[]> pool;
+
+    public BufferPool(final int maxSize) {
+        pool = new SizeClassPool<byte[]>(MIN_CLASS_SHIFT, MAX_CLASS_SHIFT, maxSize) {
+            @Override
+            protected byte[] allocate(final int capacity) {
+                return new byte[capacity];
+            }
+
+            @Override
+            protected int capacity(final byte[] buffer) {
+                return buffer.length;
+            }
+        };
+    }
+
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    // Returns an array of at least minLength bytes, rounded up to its size class
+    public byte[] obtain(final int minLength) {
+        return pool.obtain(minLength);
+    }
+
+    // The caller must not use the array once it has been handed back
+    public void recycle(final byte[] buffer) {
+        if (buffer != null) {
+            pool.recycle(buffer);
+        }
+    }
+
+    public int getSize() {
+        return pool.getSize();
+    }
+
+    public int getMaxSize() {
+        return pool.getMaxSize();
+    }
+
+    // Shrinking the pool drops the largest arrays first
+    public void setMaxSize(final int maxSize) {
+        pool.setMaxSize(maxSize);
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Executors for delivering listener callbacks, set with NetworkEngine.setCallbackExecutor or
+ * per operation. Any other Executor can be used as well.
+ */
+public final class CallbackExecutors {
+    // Calls listeners on the thread that finished the operation
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private CallbackExecutors() {
+    }
+
+    // Calls listeners on the main thread, what the engine does by default. Callbacks that arrive
+    // while a dispatch is already waiting for the main thread are run together by it, so a burst
+    // of completions during a frame costs one message instead of one each.
+    public static Executor newMainThreadExecutor() {
+        return new MainThreadExecutor();
+    }
+
+    private static class MainThreadExecutor implements Executor, Runnable {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private List<Runnable> pending = new ArrayList<Runnable>();
+        private List<Runnable> running = new ArrayList<Runnable>();
+        private boolean posted = false;
+
+        @Override
+        public void execute(final Runnable command) {
+            boolean post;
+
+            synchronized (this) {
+                pending.add(command);
+                post = !posted;
+                posted = true;
+            }
+
+            if (post) {
+                handler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            List<Runnable> batch;
+
+            // The lists swap places, callbacks arriving from now on go into the next dispatch
+            synchronized (this) {
+                batch = pending;
+                pending = running;
+                running = batch;
+                posted = false;
+            }
+
+            try {
+                for (Runnable command : batch) {
+                    command.run();
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+}
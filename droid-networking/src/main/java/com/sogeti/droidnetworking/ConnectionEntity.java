@@ -0,0 +1,103 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * The response body as it comes from the connection. Tells the operation when reading it fails,
+ * or when it ends before its Content-Length, so a broken connection can be told apart from an
+ * error raised while the body was being processed.
+ */
+class ConnectionEntity extends HttpEntityWrapper {
+    private final NetworkOperation operation;
+
+    ConnectionEntity(final HttpEntity entity, final NetworkOperation operation) {
+        super(entity);
+        this.operation = operation;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        final long contentLength = wrappedEntity.getContentLength();
+
+        return new FilterInputStream(wrappedEntity.getContent()) {
+            private long count = 0;
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    int result = super.read();
+
+                    if (result == -1) {
+                        ended();
+                    } else {
+                        count++;
+                    }
+
+                    return result;
+                } catch (IOException e) {
+                    operation.connectionFailed();
+                    throw e;
+                }
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                try {
+                    int read = super.read(buffer, offset, length);
+
+                    if (read == -1) {
+                        ended();
+                    } else {
+                        count += read;
+                    }
+
+                    return read;
+                } catch (IOException e) {
+                    operation.connectionFailed();
+                    throw e;
+                }
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                try {
+                    long skipped = super.skip(n);
+                    count += skipped;
+
+                    return skipped;
+                } catch (IOException e) {
+                    operation.connectionFailed();
+                    throw e;
+                }
+            }
+
+            // A connection closed before the whole body arrived
+            private void ended() {
+                if (contentLength >= 0 && count < contentLength) {
+                    operation.connectionFailed();
+                }
+            }
+        };
+    }
+}
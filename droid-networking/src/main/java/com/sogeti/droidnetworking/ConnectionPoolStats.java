@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+/**
+ * A snapshot of the connection pool. Many pending requests while few connections are
+ * available means the pool is too small, a low reuse ratio means connections are not kept
+ * alive between requests.
+ */
+public class ConnectionPoolStats {
+    private final int leased;
+    private final int available;
+    private final int pending;
+    private final long leaseCount;
+    private final long reuseCount;
+
+    public ConnectionPoolStats(final int leased, final int available, final int pending,
+            final long leaseCount, final long reuseCount) {
+        this.leased = leased;
+        this.available = available;
+        this.pending = pending;
+        this.leaseCount = leaseCount;
+        this.reuseCount = reuseCount;
+    }
+
+    public int getLeased() {
+        return leased;
+    }
+
+    public int getAvailable() {
+        return available;
+    }
+
+    public int getPending() {
+        return pending;
+    }
+
+    public long getLeaseCount() {
+        return leaseCount;
+    }
+
+    public long getReuseCount() {
+        return reuseCount;
+    }
+
+    public double getReuseRatio() {
+        if (leaseCount == 0) {
+            return 0;
+        }
+
+        return (double) reuseCount / leaseCount;
+    }
+
+    @Override
+    public String toString() {
+        return "leased: " + leased + ", available: " + available + ", pending: " + pending
+                + ", reuse ratio: " + getReuseRatio();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of direct ByteBuffers for response bodies kept off the Java heap. Buffers come in power
+ * of two capacities from 64 KB to 16 MB. The pool keeps at most maxSize bytes in total, buffers
+ * handed back beyond that are left to the garbage collector.
+ */
+public final class DirectBufferPool {
+    private static final int MIN_CLASS_SHIFT = 16; // 64 KB
+    private static final int MAX_CLASS_SHIFT = 24; // 16 MB
+    private static final int DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+
+    public static final int MIN_BUFFER_SIZE = 1 << MIN_CLASS_SHIFT;
+    public static final int MAX_BUFFER_SIZE = 1 << MAX_CLASS_SHIFT;
+
+    private static final DirectBufferPool INSTANCE = new DirectBufferPool(DEFAULT_MAX_SIZE);
+
+    private final SizeClassPool<ByteBuffer> pool;
+
+    public DirectBufferPool(final int maxSize) {
+        pool = new SizeClassPool<ByteBuffer>(MIN_CLASS_SHIFT, MAX_CLASS_SHIFT, maxSize) {
+            @Override
+            protected ByteBuffer allocate(final int capacity) {
+                return ByteBuffer.allocateDirect(capacity);
+            }
+
+            @Override
+            protected int capacity(final ByteBuffer buffer) {
+                return buffer.capacity();
+            }
+        };
+    }
+
+    public static DirectBufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    // Returns a cleared buffer with a capacity of at least minCapacity, rounded up to its size class
+    public ByteBuffer obtain(final int minCapacity) {
+        ByteBuffer buffer = pool.obtain(minCapacity);
+        buffer.clear();
+
+        return buffer;
+    }
+
+    // Neither the buffer nor any view of it may be used once it has been handed back
+    public void recycle(final ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && !buffer.isReadOnly()) {
+            pool.recycle(buffer);
+        }
+    }
+
+    public int getSize() {
+        return pool.getSize();
+    }
+
+    public int getMaxSize() {
+        return pool.getMaxSize();
+    }
+
+    // Shrinking the pool drops the largest buffers first
+    public void setMaxSize(final int maxSize) {
+        pool.setMaxSize(maxSize);
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Writes a response body into a file. The body goes into a partial file next to the target,
+ * with the response's validator and length alongside it, so an interrupted download can be
+ * resumed with a Range request that only succeeds if the resource hasn't changed.
+ */
+class FileDownload implements NetworkOperation.DownloadTarget {
+    private static final String PARTIAL_SUFFIX = ".partial";
+    private static final String METADATA_SUFFIX = ".partial.meta";
+    private static final long TRANSFER_SIZE = 64 * 1024;
+
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final File file;
+    private final File partialFile;
+    private final File metadataFile;
+
+    FileDownload(final File file) {
+        this.file = file;
+        this.partialFile = new File(file.getPath() + PARTIAL_SUFFIX);
+        this.metadataFile = new File(file.getPath() + METADATA_SUFFIX);
+    }
+
+    // Asks for the rest of the body if there is a partial file to resume from
+    @Override
+    public void prepareRequest(final HttpUriRequest request) {
+        long offset = partialFile.length();
+        String validator = readValidator();
+
+        if (offset > 0 && validator != null) {
+            request.addHeader("Range", "bytes=" + offset + "-");
+            request.addHeader("If-Range", validator);
+        }
+    }
+
+    @Override
+    public boolean accepts(final HttpResponse response) {
+        int statusCode = response.getStatusLine().getStatusCode();
+
+        // The partial file doesn't match the resource any more
+        if (statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+            discard();
+        }
+
+        return statusCode == HTTP_OK || statusCode == HTTP_PARTIAL_CONTENT;
+    }
+
+    @Override
+    public void write(final HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        long offset = 0;
+        long length;
+
+        if (response.getStatusLine().getStatusCode() == HTTP_PARTIAL_CONTENT) {
+            Header contentRange = response.getFirstHeader("Content-Range");
+            long[] range = parseContentRange(contentRange);
+
+            if (range[0] != partialFile.length()) {
+                discard();
+                throw new IOException("Unexpected Content-Range: " + contentRange.getValue());
+            }
+
+            offset = range[0];
+            length = range[1];
+        } else {
+            length = entity != null ? entity.getContentLength() : 0;
+
+            // Written before the body, so a download that breaks off can be resumed
+            writeMetadata(getValidator(response), length);
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(partialFile, "rw");
+        long position = offset;
+
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            channel.truncate(offset);
+
+            if (entity != null) {
+                InputStream is = entity.getContent();
+                ReadableByteChannel source = Channels.newChannel(is);
+                long count;
+
+                // The body goes from the connection into the file without passing through the heap
+                while ((count = channel.transferFrom(source, position, TRANSFER_SIZE)) > 0) {
+                    position += count;
+                }
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (length >= 0 && position != length) {
+            throw new IOException("Download incomplete, got " + position + " of " + length + " bytes");
+        }
+
+        file.delete();
+
+        if (!partialFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + partialFile + " to " + file);
+        }
+
+        metadataFile.delete();
+    }
+
+    // Starts the next download over from the beginning
+    void discard() {
+        partialFile.delete();
+        metadataFile.delete();
+    }
+
+    // A strong ETag is the best validator, If-Range doesn't allow weak ones
+    private static String getValidator(final HttpResponse response) {
+        Header eTag = response.getFirstHeader("ETag");
+
+        if (eTag != null && !eTag.getValue().startsWith("W/")) {
+            return eTag.getValue();
+        }
+
+        Header lastModified = response.getFirstHeader("Last-Modified");
+
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    // Returns the first byte of the range and the full length, or -1 if it isn't known
+    private static long[] parseContentRange(final Header contentRange) throws IOException {
+        if (contentRange == null) {
+            throw new IOException("Partial content without a Content-Range");
+        }
+
+        String value = contentRange.getValue().trim();
+
+        try {
+            int dash = value.indexOf('-');
+            int slash = value.indexOf('/');
+
+            if (!value.startsWith("bytes ") || dash == -1 || slash < dash) {
+                throw new IOException("Invalid Content-Range: " + value);
+            }
+
+            long start = Long.parseLong(value.substring("bytes ".length(), dash).trim());
+            String total = value.substring(slash + 1).trim();
+
+            return new long[] {start, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Range: " + value);
+        }
+    }
+
+    private String readValidator() {
+        if (!metadataFile.exists()) {
+            return null;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(metadataFile));
+
+            try {
+                String validator = reader.readLine();
+
+                return validator != null && validator.length() > 0 ? validator : null;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeMetadata(final String validator, final long length) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(metadataFile));
+
+        try {
+            writer.write((validator != null ? validator : "") + '\n');
+            writer.write(Long.toString(length) + '\n');
+        } finally {
+            writer.close();
+        }
+    }
+}
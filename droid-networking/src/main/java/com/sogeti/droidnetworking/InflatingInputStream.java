@@ -0,0 +1,342 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip or deflate response body. The gzip and zlib framing is read here and the
+ * data is inflated by a raw Inflater, so inflaters can be pooled instead of being created and
+ * finalized for every response. Concatenated gzip members are read as one body, and a deflate
+ * body may be zlib wrapped or raw.
+ */
+class InflatingInputStream extends InputStream {
+    private static final int MAX_POOL_SIZE = 8;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int ZLIB_DEFLATE = 8;
+    private static final int ZLIB_FDICT = 0x20;
+
+    private static final List<Inflater> INFLATERS = new ArrayList<Inflater>();
+
+    private final InputStream in;
+    private final boolean gzip;
+    private Inflater inflater;
+    private byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private Checksum checksum;
+    private long written = 0;
+    private boolean eof = false;
+    private final byte[] single = new byte[1];
+
+    InflatingInputStream(final InputStream in, final boolean gzip) throws IOException {
+        this.in = in;
+        this.gzip = gzip;
+        this.inflater = obtainInflater();
+        this.buffer = BufferPool.getInstance().obtain(BUFFER_SIZE);
+
+        try {
+            if (!fill()) {
+                // An empty body stays empty
+                release();
+            } else if (gzip) {
+                readGzipHeader();
+            } else {
+                readZlibHeader();
+            }
+        } catch (IOException e) {
+            // Nobody gets a stream to close, so the inflater and buffer are returned here
+            release();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (eof) {
+            return -1;
+        }
+
+        if (inflater == null) {
+            throw new IOException("Stream closed");
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        while (true) {
+            // A finished inflater may have used up its input too, the trailer comes first
+            if (inflater.finished()) {
+                readTrailer();
+
+                if (eof) {
+                    return -1;
+                }
+
+                continue;
+            }
+
+            if (inflater.needsInput()) {
+                if (position == limit && !fill()) {
+                    throw new EOFException("Unexpected end of compressed body");
+                }
+
+                inflater.setInput(buffer, position, limit - position);
+            }
+
+            int count;
+
+            try {
+                count = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new IOException(e.toString());
+            }
+
+            position = limit - inflater.getRemaining();
+
+            if (count > 0) {
+                if (checksum != null) {
+                    checksum.update(b, off, count);
+                }
+
+                written += count;
+
+                return count;
+            }
+
+            if (inflater.needsDictionary()) {
+                throw new IOException("Preset dictionaries are not supported");
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eof ? 0 : 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        in.close();
+    }
+
+    private void readGzipHeader() throws IOException {
+        if (readUShort() != GZIP_MAGIC) {
+            throw new IOException("Not in gzip format");
+        }
+
+        if (readUByte() != ZLIB_DEFLATE) {
+            throw new IOException("Unsupported gzip compression method");
+        }
+
+        int flags = readUByte();
+
+        // Modification time, extra flags and operating system
+        skipBytes(6);
+
+        if ((flags & FEXTRA) != 0) {
+            skipBytes(readUShort());
+        }
+
+        if ((flags & FNAME) != 0) {
+            while (readUByte() != 0) {
+                continue;
+            }
+        }
+
+        if ((flags & FCOMMENT) != 0) {
+            while (readUByte() != 0) {
+                continue;
+            }
+        }
+
+        if ((flags & FHCRC) != 0) {
+            skipBytes(2);
+        }
+
+        checksum = new CRC32();
+        written = 0;
+    }
+
+    // A zlib header is two bytes whose value is a multiple of 31, otherwise the body is raw deflate
+    private void readZlibHeader() throws IOException {
+        if (limit - position < 2 && !fillAtLeast(2)) {
+            return;
+        }
+
+        int cmf = buffer[position] & 0xff;
+        int flg = buffer[position + 1] & 0xff;
+
+        if ((cmf & 0x0f) == ZLIB_DEFLATE && ((cmf << 8) | flg) % 31 == 0) {
+            if ((flg & ZLIB_FDICT) != 0) {
+                throw new IOException("Preset dictionaries are not supported");
+            }
+
+            position += 2;
+            checksum = new Adler32();
+        }
+    }
+
+    private void readTrailer() throws IOException {
+        if (gzip) {
+            long crc = readUInt();
+            long size = readUInt();
+
+            if (crc != checksum.getValue() || size != (written & 0xffffffffL)) {
+                throw new IOException("Corrupt gzip trailer");
+            }
+
+            // Another member may follow, anything else after the first member is ignored
+            if ((position < limit || fill()) && fillAtLeast(2)
+                    && ((buffer[position] & 0xff) | ((buffer[position + 1] & 0xff) << 8)) == GZIP_MAGIC) {
+                inflater.reset();
+                readGzipHeader();
+                return;
+            }
+        } else if (checksum != null) {
+            long adler = ((long) readUByte() << 24) | (readUByte() << 16) | (readUByte() << 8) | readUByte();
+
+            if (adler != checksum.getValue()) {
+                throw new IOException("Corrupt zlib trailer");
+            }
+        }
+
+        release();
+    }
+
+    // Reads more of the body into the buffer once everything in it has been used
+    private boolean fill() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+
+        int count = in.read(buffer, 0, buffer.length);
+
+        position = 0;
+        limit = Math.max(count, 0);
+
+        return count > 0;
+    }
+
+    // Moves what is left to the start of the buffer and reads until there are count bytes
+    private boolean fillAtLeast(final int count) throws IOException {
+        if (limit - position >= count) {
+            return true;
+        }
+
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+
+        while (limit < count) {
+            int read = in.read(buffer, limit, buffer.length - limit);
+
+            if (read == -1) {
+                return false;
+            }
+
+            limit += read;
+        }
+
+        return true;
+    }
+
+    private int readUByte() throws IOException {
+        if (!fill()) {
+            throw new EOFException("Unexpected end of compressed body");
+        }
+
+        return buffer[position++] & 0xff;
+    }
+
+    private int readUShort() throws IOException {
+        return readUByte() | (readUByte() << 8);
+    }
+
+    private long readUInt() throws IOException {
+        return (readUShort() & 0xffffL) | ((long) readUShort() << 16);
+    }
+
+    private void skipBytes(final int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readUByte();
+        }
+    }
+
+    // The inflater and buffer go back to the pool as soon as the body has been read
+    private void release() {
+        eof = true;
+
+        if (inflater != null) {
+            recycle(inflater, buffer);
+            inflater = null;
+            buffer = null;
+        }
+    }
+
+    private static Inflater obtainInflater() {
+        synchronized (INFLATERS) {
+            if (!INFLATERS.isEmpty()) {
+                return INFLATERS.remove(INFLATERS.size() - 1);
+            }
+        }
+
+        return new Inflater(true);
+    }
+
+    private static void recycle(final Inflater inflater, final byte[] buffer) {
+        boolean pooled = false;
+
+        inflater.reset();
+
+        synchronized (INFLATERS) {
+            if (INFLATERS.size() < MAX_POOL_SIZE) {
+                INFLATERS.add(inflater);
+                pooled = true;
+            }
+        }
+
+        // Not pooled, free the native memory now rather than when it is finalized
+        if (!pooled) {
+            inflater.end();
+        }
+
+        BufferPool.getInstance().recycle(buffer);
+    }
+}
@@ -17,43 +17,56 @@
 package com.sogeti.droidnetworking;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HostnameVerifier;
 
 import org.apache.http.HttpHost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.X509HostnameVerifier;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 
-import com.sogeti.droidnetworking.NetworkOperation.CacheHandler;
+import com.sogeti.droidnetworking.NetworkOperation.DiskCacheHandler;
 import com.sogeti.droidnetworking.external.LruCache;
 import com.sogeti.droidnetworking.external.diskcache.Charsets;
 import com.sogeti.droidnetworking.external.diskcache.DiskLruCache;
 import com.sogeti.droidnetworking.external.diskcache.StrictLineReader;
+import com.sogeti.droidnetworking.transport.ApacheTransport;
+import com.sogeti.droidnetworking.transport.AsyncTransport;
+import com.sogeti.droidnetworking.transport.Transport;
+import com.sogeti.droidnetworking.transport.TunedSocketFactory;
 
 import android.content.Context;
 import android.content.pm.PackageInfo;
@@ -64,13 +77,17 @@ public class NetworkEngine {
     private static final int DEFAULT_HTTPS_PORT = 443;
     private static final int DEFAULT_SOCKET_TIMEOUT = 5000;
     private static final int DEFAULT_CONNECTION_TIMEOUT = 5000;
+    private static final int DEFAULT_MAX_CONCURRENT_OPERATIONS = 4;
+    private static final int DEFAULT_MAX_CONCURRENT_OPERATIONS_PER_HOST = 2;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 2;
+    private static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 20;
 
     private static final int DEFAULT_MEMORY_CACHE_SIZE = 2 * 1024 * 1024; // 2MB
     private static final int DEFAULT_DISK_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
     private static final int DISK_CACHE_VALUE_COUNT = 2;
     private static final int DISK_CACHE_VERSION = 1;
     private static final int DISK_CACHE_ENTRY_METADATA = 0;
-    private static final int DISK_CACHE_ENTRY_BODY = 1;
+    static final int DISK_CACHE_ENTRY_BODY = 1;
 
     public enum HttpMethod {
         GET, POST, PUT, DELETE, HEAD
@@ -80,12 +97,30 @@ public class NetworkEngine {
     private Context context;
     private Map<String, String> headers;
     private ExecutorService sharedNetworkQueue;
-
-    private DefaultHttpClient httpClient;
+    private ExecutorService cacheQueue;
+    private ScheduledExecutorService retryQueue;
+    private Executor callbackExecutor;
+    private Executor mainThreadExecutor;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private OperationScheduler scheduler;
+    private int maxConcurrentOperations = DEFAULT_MAX_CONCURRENT_OPERATIONS;
+    private int maxConcurrentOperationsPerHost = DEFAULT_MAX_CONCURRENT_OPERATIONS_PER_HOST;
+    private RequestCoalescer coalescer = new RequestCoalescer();
+    private BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private Set<OperationFuture> activeOperations = new HashSet<OperationFuture>();
+
+    private ApacheTransport apacheTransport;
+    private Transport transport;
     private int socketTimeout = DEFAULT_SOCKET_TIMEOUT;
     private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
     private int httpPort = DEFAULT_HTTP_PORT;
     private int httpsPort = DEFAULT_HTTPS_PORT;
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private int maxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+    private Map<HttpHost, Integer> maxConnectionsForRoute = new HashMap<HttpHost, Integer>();
+    private boolean tcpNoDelay = true;
+    private int socketSendBufferSize = 0;
+    private int socketReceiveBufferSize = 0;
 
     private LruCache<String, CacheEntry> memoryCache;
     private DiskLruCache diskCache;
@@ -108,8 +143,21 @@ public class NetworkEngine {
     public void init(final Context context, final Map<String, String> headers) {
         this.context = context;
 
-        // Setup a queue for operations
-        sharedNetworkQueue = Executors.newFixedThreadPool(2);
+        // Setup a queue for operations, the scheduler decides how many of them may run at once
+        sharedNetworkQueue = Executors.newCachedThreadPool();
+        scheduler = new OperationScheduler(sharedNetworkQueue, maxConcurrentOperations,
+                maxConcurrentOperationsPerHost);
+
+        // Cache lookups for enqueued operations are done on their own thread so they never block the caller
+        cacheQueue = Executors.newSingleThreadExecutor();
+
+        // Failed operations wait here until they are due to be retried
+        retryQueue = Executors.newSingleThreadScheduledExecutor();
+
+        // Listeners are called on the main thread unless setCallbackExecutor says otherwise
+        synchronized (this) {
+            mainThreadExecutor = CallbackExecutors.newMainThreadExecutor();
+        }
 
         // Init the memory cache, if the default memory cache size shouldn't be used, set the
         // size using setMemoryCacheSize before calling init
@@ -138,21 +186,37 @@ public class NetworkEngine {
 
         // Setup HTTP
         SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), httpPort));
+        schemeRegistry.register(new Scheme("http", TunedSocketFactory.wrap(PlainSocketFactory.getSocketFactory(),
+                socketSendBufferSize, socketReceiveBufferSize), httpPort));
 
         // Setup HTTPS (accept all certificates)
         HostnameVerifier hostnameVerifier = org.apache.http.conn.ssl.SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER;
         SSLSocketFactory socketFactory = SSLSocketFactory.getSocketFactory();
         socketFactory.setHostnameVerifier((X509HostnameVerifier) hostnameVerifier);
-        schemeRegistry.register(new Scheme("https", socketFactory, httpsPort));
+        schemeRegistry.register(new Scheme("https", TunedSocketFactory.wrap(socketFactory,
+                socketSendBufferSize, socketReceiveBufferSize), httpsPort));
 
         HttpParams params = new BasicHttpParams();
         HttpConnectionParams.setConnectionTimeout(params, connectionTimeout);
         HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        HttpConnectionParams.setTcpNoDelay(params, tcpNoDelay);
+
+        // Setup the connection pool, routes without an override share the default limit
+        ConnPerRouteBean connPerRoute = new ConnPerRouteBean(maxConnectionsPerRoute);
+
+        for (HttpHost host : maxConnectionsForRoute.keySet()) {
+            boolean secure = "https".equalsIgnoreCase(host.getSchemeName());
+            connPerRoute.setMaxForRoute(new HttpRoute(host, null, secure), maxConnectionsForRoute.get(host));
+        }
+
+        ConnManagerParams.setMaxConnectionsPerRoute(params, connPerRoute);
+        ConnManagerParams.setMaxTotalConnections(params, maxTotalConnections);
 
-        ThreadSafeClientConnManager connManager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        if (apacheTransport != null) {
+            apacheTransport.shutdown();
+        }
 
-        httpClient = new DefaultHttpClient(connManager, params);
+        apacheTransport = new ApacheTransport(params, schemeRegistry);
 
         if (headers == null) {
             this.headers = new HashMap<String, String>();
@@ -173,11 +237,73 @@ public class NetworkEngine {
 
     public void setSharedNetworkQueue(final ExecutorService sharedNetworkQueue) {
         this.sharedNetworkQueue = sharedNetworkQueue;
+
+        if (scheduler != null) {
+            scheduler.setExecutor(sharedNetworkQueue);
+        }
+    }
+
+    ExecutorService getSharedNetworkQueue() {
+        return sharedNetworkQueue;
+    }
+
+    public void setCacheQueue(final ExecutorService cacheQueue) {
+        this.cacheQueue = cacheQueue;
+    }
+
+    // Where listeners are called, see CallbackExecutors. Operations may set their own.
+    public synchronized void setCallbackExecutor(final Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public synchronized Executor getCallbackExecutor() {
+        if (callbackExecutor != null) {
+            return callbackExecutor;
+        }
+
+        if (mainThreadExecutor == null) {
+            mainThreadExecutor = CallbackExecutors.newMainThreadExecutor();
+        }
+
+        return mainThreadExecutor;
+    }
+
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setMaxConcurrentOperations(final int maxConcurrentOperations) {
+        this.maxConcurrentOperations = maxConcurrentOperations;
+
+        if (scheduler != null) {
+            scheduler.setMaxConcurrentOperations(maxConcurrentOperations);
+        }
+    }
+
+    public void setMaxConcurrentOperationsPerHost(final int maxConcurrentOperationsPerHost) {
+        this.maxConcurrentOperationsPerHost = maxConcurrentOperationsPerHost;
+
+        if (scheduler != null) {
+            scheduler.setMaxConcurrentOperationsPerHost(maxConcurrentOperationsPerHost);
+        }
+    }
+
+    public OperationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    // Limits are kept across init, they can be changed at any time
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
     }
 
     public void setProxyServer(final String host, final int port) {
     	HttpHost proxy = new HttpHost(host, port);
-        httpClient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+        apacheTransport.getHttpClient().getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
     }
 
     public NetworkOperation createOperationWithURLString(final String urlString) {
@@ -204,7 +330,7 @@ public class NetworkEngine {
     }
 
     public Future<?> enqueueOperation(final NetworkOperation operation, final boolean forceReload) {
-    	return executeOperation(operation, forceReload, true);
+    	return executeOperation(operation, forceReload, true, true, null);
     }
 
     public void executeOperation(final NetworkOperation operation) {
@@ -212,15 +338,44 @@ public class NetworkEngine {
     }
 
     public void executeOperation(final NetworkOperation operation, final boolean forceReload) {
-        executeOperation(operation, forceReload, false);
+        executeOperation(operation, forceReload, false, false, null);
     }
 
-    private Future<?> executeOperation(final NetworkOperation operation, final boolean forceReload, final boolean enqueue) {
-        long expiryTimeInSeconds = 0;
+    // Operations in a batch are enqueued without notifying their own listeners, the batch is told
+    // through the completion callback instead
+    public OperationBatch enqueueBatch(final Collection<NetworkOperation> operations,
+            final OperationBatch.BatchListener listener) {
+        return enqueueBatch(operations, maxConcurrentOperations, listener);
+    }
+
+    public OperationBatch enqueueBatch(final Collection<NetworkOperation> operations,
+            final int maxConcurrentOperations, final OperationBatch.BatchListener listener) {
+        OperationBatch batch = new OperationBatch(operations, maxConcurrentOperations, listener);
+
+        batch.start();
+
+        return batch;
+    }
+
+    // Downloads the file over up to maxSegments connections if the server supports ranges
+    public SegmentedDownload enqueueSegmentedDownload(final String urlString, final File file, final int maxSegments,
+            final SegmentedDownload.DownloadListener listener) {
+        SegmentedDownload download = new SegmentedDownload(urlString, file, maxSegments);
+
+        download.start(listener);
 
+        return download;
+    }
+
+    Future<?> enqueueBatchOperation(final NetworkOperation operation, final Runnable completionCallback) {
+        return executeOperation(operation, false, true, false, completionCallback);
+    }
+
+    private Future<?> executeOperation(final NetworkOperation operation, final boolean forceReload,
+            final boolean enqueue, final boolean notify, final Runnable completionCallback) {
         prepareHeaders(operation);
 
-        operation.setCacheHandler(new CacheHandler() {
+        operation.setCacheHandler(new DiskCacheHandler() {
             @Override
             public void cache(final NetworkOperation operation) {
                 if (operation.getCacheHeaders().get("Expires") == null) {
@@ -229,11 +384,13 @@ public class NetworkEngine {
 
                 CacheEntry entry = new CacheEntry(operation.getCacheHeaders(), operation.getResponseData());
 
-                if (memoryCache != null) {
+                // A streamed response isn't kept in memory
+                if (memoryCache != null && entry.getResponseData() != null) {
                     memoryCache.put(operation.getUniqueIdentifier(), entry);
                 }
 
-                if (diskCache != null) {
+                // A response spilled to a file was written to the disk cache while it was read, or not at all
+                if (diskCache != null && !operation.isWrittenToDiskCache() && entry.getResponseData() != null) {
                     DiskLruCache.Editor editor = null;
                     try {
                         editor = diskCache.edit(operation.getUniqueIdentifier());
@@ -247,80 +404,329 @@ public class NetworkEngine {
                     }
                 }
             }
+
+            @Override
+            public DiskLruCache.Editor edit(final NetworkOperation operation) {
+                if (diskCache == null || operation.getCacheHeaders().get("Expires") == null) {
+                    return null;
+                }
+
+                DiskLruCache.Editor editor = null;
+
+                try {
+                    editor = diskCache.edit(operation.getUniqueIdentifier());
+
+                    if (editor != null) {
+                        new CacheEntry(operation.getCacheHeaders(), null).writeMetadataTo(editor);
+                    }
+
+                    return editor;
+                } catch (IOException e) {
+                    if (editor != null) {
+                        editor.abortUnlessCommitted();
+                    }
+
+                    return null;
+                }
+            }
         });
 
-        if (operation.isCachable() && useCache) {
-        	if (!forceReload) {
-        		CacheEntry entry = null;
-
-        		if (memoryCache != null) {
-        			entry = memoryCache.get(operation.getUniqueIdentifier());
-        		}
-
-		        if (entry == null && diskCache != null) {
-		        	DiskLruCache.Snapshot snapshot = null;
-
-					try {
-						snapshot = diskCache.get(operation.getUniqueIdentifier());
-
-						if (snapshot != null) {
-			        		entry = new CacheEntry(snapshot);
-			        		snapshot.close();
-			        	}
-					} catch (IOException e) {
-						snapshot = null;
-					}
-		        }
-
-		        if (entry != null) {
-		        	operation.setCachedData(entry.getResponseData());
-
-		        	if (entry.getCacheHeaders() != null) {
-		        		SimpleDateFormat simpleDateFormat
-		        			= new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US); 
-		        		String expiresOn = entry.getCacheHeaders().get("Expires");
-
-		        		try {
-			                Date expiresOnDate = simpleDateFormat.parse(expiresOn.replaceAll("\\p{Cntrl}", ""));
-			                Date now = new Date();
-			                expiryTimeInSeconds = expiresOnDate.getTime() - now.getTime();
-			            } catch (ParseException e) {
-			            	e.printStackTrace();
-			            } finally {
-			            	operation.updateOperation(entry.getCacheHeaders());
-			            }
-		        	}
-		        }
-        	}
-
-        	if (expiryTimeInSeconds <= 0 || forceReload) {
-        		if (enqueue) {
-        			return sharedNetworkQueue.submit(operation);
-        		} else {
-        			operation.execute();
-        		}
-        	} else {
-        		operation.setFresh(true); // Cache is fresh enough
-
-        		if (enqueue) {
-        			return sharedNetworkQueue.submit(operation);
-        		} else {
-        		    operation.execute();
-        		}
-        	}
-        } else {
-        	if (enqueue) {
-    			return sharedNetworkQueue.submit(operation);
-    		} else {
-    			operation.execute();
-    		}
+        final OperationFuture future = new OperationFuture(operation, notify, completionCallback);
+
+        synchronized (activeOperations) {
+            activeOperations.add(future);
         }
-        
+
+        if (operation.isCachable() && useCache && !forceReload) {
+            if (enqueue) {
+                // Reading the cache may hit the disk, so it is done on the cache queue and
+                // the operation moves on to the network stage from there
+                future.setStage(cacheQueue.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        lookupCache(operation);
+
+                        if (!future.isDone()) {
+                            startNetworkStage(future, true);
+                        }
+                    }
+                }));
+
+                return future;
+            }
+
+            lookupCache(operation);
+        }
+
+        startNetworkStage(future, enqueue);
+
+        if (enqueue) {
+            return future;
+        }
+
+        // Wait in case the operation was attached to an identical operation on another thread
+        try {
+            future.get();
+        } catch (Exception e) {
+            // The operation status tells the caller what happened
+        }
+
         return null;
     }
 
+    private void lookupCache(final NetworkOperation operation) {
+        long expiryTimeInSeconds = 0;
+        CacheEntry entry = null;
+
+        if (memoryCache != null) {
+            entry = memoryCache.get(operation.getUniqueIdentifier());
+        }
+
+        if (entry == null && diskCache != null) {
+            DiskLruCache.Snapshot snapshot = null;
+
+            try {
+                snapshot = diskCache.get(operation.getUniqueIdentifier());
+
+                if (snapshot != null) {
+                    entry = new CacheEntry(snapshot);
+                    snapshot.close();
+                }
+            } catch (IOException e) {
+                snapshot = null;
+            }
+        }
+
+        if (entry != null) {
+            operation.setCachedData(entry.getResponseData());
+
+            if (entry.getCacheHeaders() != null) {
+                SimpleDateFormat simpleDateFormat
+                    = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+                String expiresOn = entry.getCacheHeaders().get("Expires");
+
+                try {
+                    Date expiresOnDate = simpleDateFormat.parse(expiresOn.replaceAll("\\p{Cntrl}", ""));
+                    Date now = new Date();
+                    expiryTimeInSeconds = expiresOnDate.getTime() - now.getTime();
+                } catch (ParseException e) {
+                    e.printStackTrace();
+                } finally {
+                    operation.updateOperation(entry.getCacheHeaders());
+                }
+            }
+        }
+
+        if (expiryTimeInSeconds > 0) {
+            operation.setFresh(true); // Cache is fresh enough
+        }
+    }
+
+    void startNetworkStage(final OperationFuture future, final boolean enqueue) {
+        final NetworkOperation operation = future.getOperation();
+
+        // Identical GETs that go to the network at the same time share one request, a fresh
+        // cached response doesn't need the network at all. A streamed response isn't kept, so
+        // there would be nothing to share.
+        if (operation.isCachable() && !operation.isFresh()
+                && operation.getResponseMode() == NetworkOperation.ResponseMode.BUFFERED) {
+            if (coalescer.join(future)) {
+                return;
+            }
+        }
+
+        if (enqueue) {
+            submitNetworkStage(future);
+        } else {
+            try {
+                operation.execute();
+
+                long delay;
+
+                // The caller has chosen to block, so waiting between attempts is done right here
+                while ((delay = getRetryDelay(future)) >= 0 && !future.isDone()) {
+                    Thread.sleep(delay);
+                    operation.execute();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                operationFinished(future);
+            }
+        }
+    }
+
+    private void submitNetworkStage(final OperationFuture future) {
+        final NetworkOperation operation = future.getOperation();
+
+        future.setStage(scheduler.submit(operation, new OperationScheduler.Task() {
+            @Override
+            public void run(final Runnable release) {
+                Transport transport = operation.getTransport();
+
+                // The worker only prepares the request, the transport waits for the response and
+                // the response is processed on the shared network queue once it has arrived. The
+                // operation keeps its slot until then, so the scheduler's limits still hold.
+                if (transport instanceof AsyncTransport) {
+                    operation.executeAsync((AsyncTransport) transport, sharedNetworkQueue, new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                networkAttemptFinished(future);
+                            } finally {
+                                release.run();
+                            }
+                        }
+                    });
+
+                    return;
+                }
+
+                try {
+                    operation.execute();
+                } finally {
+                    networkAttemptFinished(future);
+                }
+
+                release.run();
+            }
+        }));
+    }
+
+    private void networkAttemptFinished(final OperationFuture future) {
+        boolean retrying = false;
+
+        try {
+            retrying = scheduleRetry(future);
+
+            if (!retrying && future.shouldNotify()) {
+                future.getOperation().notifyListener();
+            }
+        } finally {
+            if (!retrying) {
+                operationFinished(future);
+            }
+        }
+    }
+
+    private boolean scheduleRetry(final OperationFuture future) {
+        long delay = getRetryDelay(future);
+
+        if (delay < 0 || future.isDone()) {
+            return false;
+        }
+
+        // The retry waits on the retry queue, not on a worker thread, and goes through the
+        // scheduler again once the delay has passed. It stays in flight for coalescing.
+        future.setStage(retryQueue.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!future.isDone()) {
+                    submitNetworkStage(future);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS));
+
+        return true;
+    }
+
+    private long getRetryDelay(final OperationFuture future) {
+        NetworkOperation operation = future.getOperation();
+        RetryPolicy policy = operation.getRetryPolicy() != null ? operation.getRetryPolicy() : retryPolicy;
+
+        if (policy == null || operation.getStatus() == NetworkOperation.STATUS_COMPLETED) {
+            return -1;
+        }
+
+        long delay = policy.getRetryDelay(operation, future.getRetryCount());
+
+        if (delay >= 0) {
+            future.incrementRetryCount();
+        }
+
+        return delay;
+    }
+
+    private void operationFinished(final OperationFuture future) {
+        NetworkOperation operation = future.getOperation();
+
+        coalescer.finished(operation, future.isCancelled() || operation.isCancelled());
+        completeOperation(future);
+    }
+
+    void completeOperation(final OperationFuture future) {
+        synchronized (activeOperations) {
+            activeOperations.remove(future);
+        }
+
+        future.complete();
+    }
+
+    void operationCancelled(final OperationFuture future) {
+        synchronized (activeOperations) {
+            activeOperations.remove(future);
+        }
+
+        future.getOperation().abort();
+
+        // Detach the operation if it was waiting for another one, or hand over to the operations
+        // waiting for it
+        coalescer.leave(future);
+        coalescer.finished(future.getOperation(), true);
+    }
+
+    public void cancelOperationsWithTag(final Object tag) {
+        List<OperationFuture> cancel = new ArrayList<OperationFuture>();
+
+        synchronized (activeOperations) {
+            for (OperationFuture future : activeOperations) {
+                Object operationTag = future.getOperation().getTag();
+
+                if (operationTag != null && operationTag.equals(tag)) {
+                    cancel.add(future);
+                }
+            }
+        }
+
+        for (OperationFuture future : cancel) {
+            future.cancel(true);
+        }
+    }
+
+    public void cancelAllOperations() {
+        List<OperationFuture> cancel;
+
+        synchronized (activeOperations) {
+            cancel = new ArrayList<OperationFuture>(activeOperations);
+        }
+
+        for (OperationFuture future : cancel) {
+            future.cancel(true);
+        }
+    }
+
     public DefaultHttpClient getHttpClient() {
-        return httpClient;
+        return apacheTransport != null ? apacheTransport.getHttpClient() : null;
+    }
+
+    // Replaces the transport used by operations that don't set their own, null restores the
+    // default Apache HTTP client transport
+    public void setTransport(final Transport transport) {
+        this.transport = transport;
+    }
+
+    public Transport getTransport() {
+        return transport != null ? transport : apacheTransport;
+    }
+
+    public ConnectionPoolStats getConnectionPoolStats() {
+        Transport transport = getTransport();
+
+        if (transport == null) {
+            return null;
+        }
+
+        return transport.getConnectionPoolStats();
     }
 
     public void clearCache() {
@@ -367,7 +773,35 @@ public class NetworkEngine {
         this.httpsPort = httpsPort;
     }
 
+    // The connection pool and socket settings below are applied when init is called
+
+    public void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsForRoute(final HttpHost host, final int maxConnections) {
+        this.maxConnectionsForRoute.put(host, maxConnections);
+    }
+
+    public void setMaxTotalConnections(final int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    public void setTcpNoDelay(final boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public void setSocketSendBufferSize(final int socketSendBufferSize) {
+        this.socketSendBufferSize = socketSendBufferSize;
+    }
+
+    public void setSocketReceiveBufferSize(final int socketReceiveBufferSize) {
+        this.socketReceiveBufferSize = socketReceiveBufferSize;
+    }
+
     public static class CacheEntry {
+        private static final int BUFFER_SIZE = 8 * 1024;
+
         private Map<String, String> cacheHeaders;
         private byte[] responseData;
 
@@ -392,22 +826,39 @@ public class NetworkEngine {
 
         	reader.close();
 
-        	ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
+            InputStream in = snapshot.getInputStream(DISK_CACHE_ENTRY_BODY);
+
+            // The body is a plain file, so available() is the size left to read
+            PooledOutputStream out = new PooledOutputStream(in.available());
+            byte[] buffer = BufferPool.getInstance().obtain(BUFFER_SIZE);
             int read = 0;
 
-            InputStream in = snapshot.getInputStream(DISK_CACHE_ENTRY_BODY);
+            try {
+                while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                    out.write(buffer, 0, read);
+                }
 
-            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
-                baos.write(buffer, 0, read);
+                responseData = out.toByteArray();
+            } finally {
+                in.close();
+                out.release();
+                BufferPool.getInstance().recycle(buffer);
             }
+        }
+
+        public void writeTo(final DiskLruCache.Editor editor) throws IOException {
+            writeMetadataTo(editor);
 
-            in.close();
+            OutputStream out = editor.newOutputStream(DISK_CACHE_ENTRY_BODY);
 
-            responseData = baos.toByteArray();
+            try {
+                out.write(responseData);
+            } finally {
+                out.close();
+            }
         }
 
-        public void writeTo(final DiskLruCache.Editor editor) throws IOException {
+        public void writeMetadataTo(final DiskLruCache.Editor editor) throws IOException {
             OutputStream out = editor.newOutputStream(DISK_CACHE_ENTRY_METADATA);
             Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.US_ASCII));
 
@@ -419,19 +870,6 @@ public class NetworkEngine {
             }
 
             writer.close();
-
-            InputStream in = new ByteArrayInputStream(responseData);
-            byte[] buffer = new byte[1024];
-            int read = 0;
-
-            out = editor.newOutputStream(DISK_CACHE_ENTRY_BODY);
-
-            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
-            	out.write(buffer, 0, read);
-            }
-
-            out.close();
-            in.close();
         }
 
         public Map<String, String> getCacheHeaders() {
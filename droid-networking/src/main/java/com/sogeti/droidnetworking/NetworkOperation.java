@@ -17,14 +17,18 @@
 package com.sogeti.droidnetworking;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -32,13 +36,20 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
 
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
@@ -48,9 +59,13 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicNameValuePair;
 
 import com.sogeti.droidnetworking.NetworkEngine.HttpMethod;
@@ -58,9 +73,10 @@ import com.sogeti.droidnetworking.external.Base64;
 import com.sogeti.droidnetworking.external.CachingInputStream;
 import com.sogeti.droidnetworking.external.MD5;
 import com.sogeti.droidnetworking.external.MultipartEntity;
+import com.sogeti.droidnetworking.external.diskcache.DiskLruCache;
+import com.sogeti.droidnetworking.transport.AsyncTransport;
+import com.sogeti.droidnetworking.transport.Transport;
 
-import android.os.Handler;
-import android.os.Message;
 import android.provider.ContactsContract;
 import android.util.Log;
 
@@ -78,14 +94,22 @@ public class NetworkOperation implements Runnable {
 
     private static final int ONE_SECOND_IN_MS = 1000;
 
+    // Below this a compressed body isn't noticeably smaller than the headers it needs
+    private static final long DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final long DEFAULT_PROGRESS_INTERVAL = 100; // ms
+    private static final long DEFAULT_PROGRESS_STEP = 8 * 1024;
+    private static final int COMPRESSION_BUFFER_SIZE = 8 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
     private String urlString;
     private Map<String, String> headers;
     private Map<String, String> params;
     private HttpMethod httpMethod;
     private HttpResponse response;
-    private HttpUriRequest request;
+    private volatile HttpUriRequest request;
     private ResponseParser parser;
     private OperationListener listener;
+    private Executor callbackExecutor;
     private int httpStatusCode;
     private boolean useGzip = true;
     private Map<String, String> cacheHeaders;
@@ -98,12 +122,68 @@ public class NetworkOperation implements Runnable {
     private int status;
     private List<FilePart> fileParts;
     private List<DataPart> dataParts;
-    private byte[] body;
+    private HttpEntity body;
+    private Priority priority = Priority.NORMAL;
+    private OperationScheduler scheduler;
+    private OperationFuture future;
+    private volatile boolean cancelled = false;
+    private Object tag;
+    private RetryPolicy retryPolicy;
+    private IOException exception;
+    private boolean connectionFailed = false;
+    private byte[] cacheLookupData;
+    private Transport transport;
+    private ResponseMode responseMode = ResponseMode.BUFFERED;
+    private boolean writtenToDiskCache = false;
+    private RequestCompression requestCompression = RequestCompression.NONE;
+    private long compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private ProgressListener progressListener;
+    private long progressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private long progressStep = DEFAULT_PROGRESS_STEP;
+    private DownloadTarget download;
+    private File downloadFile;
+    private long spillThreshold = -1;
+    private long maxResponseSize = -1;
+    private File responseFile;
+    private ByteBuffer responseBuffer;
+
+    public enum Priority {
+        IMMEDIATE, NORMAL, BACKGROUND
+    }
+
+    // BUFFERED keeps the whole body for getResponseData and getResponseString, or in a temporary
+    // file for getResponseFile once it is longer than the spill threshold. STREAMING hands the
+    // connection's stream straight to the parser and keeps nothing, unless the response is going
+    // to be cached. FILE writes the body into the file given to setDownloadFile. DIRECT_BUFFER
+    // reads the body into a pooled direct ByteBuffer for getResponseBuffer, outside the Java heap.
+    public enum ResponseMode {
+        BUFFERED, STREAMING, FILE, DIRECT_BUFFER
+    }
 
     public interface ResponseParser {
         void parse(final InputStream is, final long size) throws IOException;
     }
 
+    // The server must accept the Content-Encoding, request compression is off by default
+    public enum RequestCompression {
+        NONE, GZIP, DEFLATE
+    }
+
+    // Writes a request body straight to the connection, it is called again if the request is retried
+    public interface BodyWriter {
+        void writeTo(final OutputStream out) throws IOException;
+    }
+
+    // Called through the callback executor like the OperationListener, at most once every
+    // progress interval and at the end of each body. total is -1 if the length isn't known.
+    public interface ProgressListener {
+        // The request body as given, before it is compressed
+        void onUploadProgress(final NetworkOperation operation, final long bytesWritten, final long total);
+
+        // The response body as it arrives, before it is decompressed
+        void onDownloadProgress(final NetworkOperation operation, final long bytesRead, final long total);
+    }
+
     public interface OperationListener {
         void onCompletion(final NetworkOperation operation);
 
@@ -114,6 +194,23 @@ public class NetworkOperation implements Runnable {
         void cache(final NetworkOperation operation);
     }
 
+    // The engine's handler, which can also take the body into the disk cache while it is read
+    interface DiskCacheHandler extends CacheHandler {
+        // Returns an editor for the operation's disk cache entry with the metadata already
+        // written, or null if the response won't go to the disk cache
+        DiskLruCache.Editor edit(final NetworkOperation operation);
+    }
+
+    // Where a FILE mode response body goes, asked again on every attempt
+    interface DownloadTarget {
+        void prepareRequest(final HttpUriRequest request);
+
+        // Returns false if the response doesn't carry the body, it is then read like any other
+        boolean accepts(final HttpResponse response);
+
+        void write(final HttpResponse response) throws IOException;
+    }
+
     public NetworkOperation() {
         this(null, null, null);
     }
@@ -138,23 +235,9 @@ public class NetworkOperation implements Runnable {
         if (urlString == null || httpMethod == null) {
             return -1;
         }
-        
-        if (httpMethod == HttpMethod.GET || httpMethod == HttpMethod.HEAD) {
-            if (!urlString.endsWith("?") && params.size() > 0) {
-                urlString += "?";
-            }
 
-            List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>();
-            
-            for (String param : params.keySet()) {
-                nameValuePairs.add(new BasicNameValuePair(param, params.get(param)));
-            }
-            
-            String paramString = URLEncodedUtils.format(nameValuePairs, "UTF-8");
-            
-            urlString += paramString;
-        }
-	
+        String urlString = getRequestUrlString();
+
         switch (httpMethod) {
             case GET :
                 request = new HttpGet(urlString);
@@ -193,18 +276,20 @@ public class NetworkOperation implements Runnable {
                     }
 
                     for (FilePart filePart : fileParts) {
-                        ((MultipartEntity) entity).addPart(filePart.key, filePart.fileName, new FileInputStream(filePart.file), filePart.contentType);
+                        ((MultipartEntity) entity).addPart(filePart.key, filePart.fileName, filePart.file, filePart.contentType);
                     }
 
                     for (DataPart dataPart : dataParts) {
-                        ((MultipartEntity) entity).addPart(dataPart.key, dataPart.fileName, new ByteArrayInputStream(dataPart.data), dataPart.contentType);
+                        ((MultipartEntity) entity).addPart(dataPart.key, dataPart.fileName, dataPart.data, dataPart.contentType);
                     }
                 } else if (this.body != null) {
-                    entity = new ByteArrayEntity(this.body);
+                    entity = this.body;
                 } else {
                     entity = new UrlEncodedFormEntity(nameValuePairs);
                 }
 
+                entity = getThrottledEntity(getCompressingEntity(getProgressEntity(entity, true)));
+
                 if (httpMethod == HttpMethod.POST) {
                      ((HttpPost) request).setEntity(entity);
                 } else {
@@ -212,84 +297,391 @@ public class NetworkOperation implements Runnable {
                 }
             } catch (UnsupportedEncodingException e) {
                 e.printStackTrace();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
             }
         }
 
-        if (useGzip) {
-            this.headers.put("Accept-Encoding", "gzip");
+        // A file is stored as sent, a compressed body couldn't be resumed
+        if (useGzip && !isDownloadingToFile()) {
+            this.headers.put("Accept-Encoding", "gzip, deflate");
         }
 
         for (String header : headers.keySet()) {
             request.addHeader(header, headers.get(header));
         }
 
+        // Every attempt picks up where the previous one broke off
+        if (isDownloadingToFile()) {
+            download.prepareRequest(request);
+        }
+
+        // Lets a transport that multiplexes requests weigh them against each other
+        request.getParams().setParameter(Transport.PRIORITY, priority);
+
+        // Lets a transport that receives the whole body up front stop before it is in memory
+        if (maxResponseSize >= 0) {
+            request.getParams().setParameter(Transport.MAX_RESPONSE_SIZE, Long.valueOf(maxResponseSize));
+        }
+
         return 0;
     }
 
+    // The URL including any query parameters, the operation's own URL is left untouched so the
+    // operation can be executed more than once
+    private String getRequestUrlString() {
+        if (httpMethod != HttpMethod.GET && httpMethod != HttpMethod.HEAD) {
+            return urlString;
+        }
+
+        String requestUrlString = urlString;
+
+        if (!requestUrlString.endsWith("?") && params.size() > 0) {
+            requestUrlString += "?";
+        }
+
+        List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>();
+
+        for (String param : params.keySet()) {
+            nameValuePairs.add(new BasicNameValuePair(param, params.get(param)));
+        }
+
+        return requestUrlString + URLEncodedUtils.format(nameValuePairs, "UTF-8");
+    }
+
     public void execute() {
+        if (startAttempt()) {
+            executeRequest(getTransport());
+        }
+    }
+
+    // Runs an attempt without holding the calling thread while the transport waits for the
+    // response. The response is processed on the executor, after which the callback runs.
+    void executeAsync(final AsyncTransport transport, final Executor executor, final Runnable callback) {
+        if (!startAttempt()) {
+            callback.run();
+            return;
+        }
+
+        // Nothing to wait for, or the transport would block anyway
+        if (fresh || !transport.supportsAsync(request)) {
+            executeRequest(transport);
+            callback.run();
+            return;
+        }
+
+        transport.execute(request, new AsyncTransport.ResponseCallback() {
+            @Override
+            public void onResponse(final HttpResponse response) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (readResponse(response)) {
+                                finishAttempt();
+                            }
+                        } catch (IOException e) {
+                            failAttempt(e);
+                        } finally {
+                            callback.run();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final IOException e) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            connectionFailed = true;
+                            failAttempt(e);
+                        } finally {
+                            callback.run();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Returns false if the attempt is already over
+    private boolean startAttempt() {
+        // Start every attempt from the state the cache lookup left the operation in
+        response = null;
+        responseData = null;
+        deleteResponseFile();
+        recycleResponseBuffer();
+        exception = null;
+        connectionFailed = false;
+        httpStatusCode = 0;
+        cachedData = cacheLookupData;
+
+        if (cancelled) {
+            status = STATUS_CANCELLED;
+            return false;
+        }
+
         if (prepareRequest() != 0) {
             status = STATUS_ERROR;
-            return;
+            return false;
+        }
+
+        // The operation may have been cancelled while the request was being prepared
+        if (cancelled) {
+            status = STATUS_CANCELLED;
+            return false;
         }
 
         status = STATUS_EXECUTING;
 
+        return true;
+    }
+
+    private void executeRequest(final Transport transport) {
         if (!fresh) {
+            HttpResponse response;
+
             try {
-                response = NetworkEngine.getInstance().getHttpClient().execute(request);
+                response = transport.execute(request);
+            } catch (IOException e) {
+                connectionFailed = true;
+                failAttempt(e);
+                return;
+            }
 
-                setCacheHeaders(response);
+            try {
+                if (!readResponse(response)) {
+                    return;
+                }
+            } catch (IOException e) {
+                failAttempt(e);
+                return;
+            }
+        }
 
-                httpStatusCode = response.getStatusLine().getStatusCode();
+        finishAttempt();
+    }
 
-                if (response.getEntity() != null) {
-                    HttpEntity entity = getDecompressingEntity(response.getEntity());
+    // Returns false if the attempt is already over
+    private boolean readResponse(final HttpResponse response) throws IOException {
+        this.response = response;
 
-                    InputStream is = entity.getContent();
+        setCacheHeaders(response);
 
-                    if (parser != null) {
-                        CachingInputStream cis = new CachingInputStream(is);
-                        parser.parse(cis, entity.getContentLength());
+        httpStatusCode = response.getStatusLine().getStatusCode();
 
-                        responseData = cis.getCache();
+        if (response.getEntity() != null) {
+            response.setEntity(getProgressEntity(getThrottledEntity(new ConnectionEntity(response.getEntity(), this)),
+                    false));
+        }
 
-                        cis.close();
-                    } else {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        byte[] buffer = new byte[1024];
-                        int read = 0;
+        if (isDownloadingToFile() && download.accepts(response)) {
+            boolean written = false;
 
-                        while ((read = is.read(buffer, 0, buffer.length)) != -1) {
-                            baos.write(buffer, 0, read);
-                        }
+            try {
+                download.write(response);
+                written = true;
+            } finally {
+                // A body the target refused or broke off in the middle is not drained, its
+                // connection is closed instead
+                if (!written) {
+                    abortRequest();
+                }
+            }
 
-                        responseData = baos.toByteArray();
-                    }
+            if (response.getEntity() != null) {
+                response.getEntity().consumeContent();
+            }
 
-                    if (httpStatusCode >= 200 && httpStatusCode < 300 && isCachable()) {
-                        cachedData = null;
+            if (cancelled) {
+                status = STATUS_CANCELLED;
+                return false;
+            }
 
-                        if (cacheHandler != null) {
-                            cacheHandler.cache(this);
-                        }
+            return true;
+        }
+
+        if (response.getEntity() != null) {
+            HttpEntity entity = getDecompressingEntity(response.getEntity());
+            long length = entity.getContentLength();
+
+            if (maxResponseSize >= 0 && length > maxResponseSize) {
+                // Nothing of the body is read, its connection is closed instead of drained
+                abortRequest();
+                throw new ResponseTooLargeException(maxResponseSize);
+            }
+
+            InputStream is = entity.getContent();
+            boolean streaming = responseMode == ResponseMode.STREAMING;
+            boolean direct = responseMode == ResponseMode.DIRECT_BUFFER;
+            boolean keepInMemory = !streaming && !direct;
+            CachingInputStream cis = null;
+
+            if (maxResponseSize >= 0) {
+                is = new BoundedInputStream(is, maxResponseSize);
+            }
+
+            // A body that will end up in a file isn't given an array of its full length
+            boolean spillNow = spillThreshold >= 0 && length > spillThreshold;
+            long expectedSize = spillNow ? 0 : length;
+
+            DiskLruCache.Editor editor = willCache() && cacheHandler instanceof DiskCacheHandler
+                    ? ((DiskCacheHandler) cacheHandler).edit(this) : null;
+            writtenToDiskCache = editor != null;
+
+            if (editor != null) {
+                // The body goes into the disk cache while it is read, a streamed body isn't kept
+                cis = new CachingInputStream(is, editor, NetworkEngine.DISK_CACHE_ENTRY_BODY, keepInMemory,
+                        expectedSize);
+            } else if (keepInMemory || streaming && willCache()) {
+                cis = new CachingInputStream(is, expectedSize);
+            }
+
+            if (cis != null && spillThreshold >= 0) {
+                cis.setSpillLimit(null, spillNow ? 0 : spillThreshold);
+            }
+
+            boolean read = false;
+
+            try {
+                InputStream parserInput = cis != null ? cis : is;
+
+                if (direct) {
+                    responseBuffer = readDirect(parserInput, length);
+                    parserInput = new ByteBufferInputStream(responseBuffer.asReadOnlyBuffer());
+                    length = responseBuffer.limit();
+                }
+
+                if (parser != null) {
+                    parser.parse(parserInput, length);
+                }
+
+                // Whatever the parser leaves unread is read here so the copy is complete, an
+                // uncopied stream is drained when the content is consumed
+                if (cis != null) {
+                    cis.skip(Long.MAX_VALUE);
+                    responseData = cis.getCache();
+                    responseFile = cis.getSpillFile();
+                    cis.close();
+                }
+
+                read = true;
+            } finally {
+                if (!read) {
+                    // A partly read body leaves no cache entry, spill file or buffer behind
+                    if (cis != null) {
+                        cis.discard();
                     }
 
-                    if (entity != null) {
-                        entity.consumeContent();
+                    recycleResponseBuffer();
+
+                    // The rest of the body isn't worth reading, its connection is closed instead
+                    abortRequest();
+                }
+            }
+
+            // Don't cache a response that arrived after the operation was cancelled
+            if (cancelled) {
+                status = STATUS_CANCELLED;
+                return false;
+            }
+
+            if (isSuccessfulCachable()) {
+                cachedData = null;
+
+                if (cacheHandler != null) {
+                    cacheHandler.cache(this);
+                }
+            }
+
+            if (entity != null) {
+                entity.consumeContent();
+            }
+        }
+
+        return true;
+    }
+
+    // Reads the body into a pooled direct buffer, moving to a larger one while the length is unknown
+    private static ByteBuffer readDirect(final InputStream is, final long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new ResponseTooLargeException(Integer.MAX_VALUE);
+        }
+
+        DirectBufferPool pool = DirectBufferPool.getInstance();
+        ByteBuffer buffer = pool.obtain(length >= 0 ? (int) length : DirectBufferPool.MIN_BUFFER_SIZE);
+        byte[] chunk = BufferPool.getInstance().obtain(READ_BUFFER_SIZE);
+        boolean read = false;
+
+        try {
+            int count;
+
+            while ((count = is.read(chunk, 0, chunk.length)) != -1) {
+                if (buffer.remaining() < count) {
+                    long capacity = Math.max(buffer.capacity() * 2L, buffer.position() + (long) count);
+
+                    if (buffer.position() + (long) count > Integer.MAX_VALUE) {
+                        throw new ResponseTooLargeException(Integer.MAX_VALUE);
                     }
+
+                    ByteBuffer larger = pool.obtain((int) Math.min(capacity, Integer.MAX_VALUE));
+                    buffer.flip();
+                    larger.put(buffer);
+                    pool.recycle(buffer);
+                    buffer = larger;
                 }
-            } catch (ConnectTimeoutException e) {
-                status = STATUS_TIMEOUT;
-                return;
-            } catch (SocketTimeoutException e) {
-                status = STATUS_TIMEOUT;
-                return;
-            } catch (IOException e) {
-                status = STATUS_ERROR;
-                return;
+
+                buffer.put(chunk, 0, count);
             }
+
+            buffer.flip();
+            read = true;
+
+            return buffer;
+        } finally {
+            BufferPool.getInstance().recycle(chunk);
+
+            if (!read) {
+                pool.recycle(buffer);
+            }
+        }
+    }
+
+    private boolean isSuccessfulCachable() {
+        return httpStatusCode >= 200 && httpStatusCode < 300 && isCachable();
+    }
+
+    // Whether the response being read will be handed to the cache handler, which only stores
+    // responses that expire
+    private boolean willCache() {
+        return isSuccessfulCachable() && cacheHandler != null && cacheHeaders.get(EXPIRES) != null;
+    }
+
+    private void abortRequest() {
+        HttpUriRequest currentRequest = request;
+
+        if (currentRequest != null) {
+            currentRequest.abort();
+        }
+    }
+
+    private void failAttempt(final IOException e) {
+        exception = e;
+
+        // Aborting the request makes the blocked read fail
+        if (cancelled) {
+            status = STATUS_CANCELLED;
+        } else if (e instanceof ConnectTimeoutException || e instanceof SocketTimeoutException) {
+            status = STATUS_TIMEOUT;
+        } else {
+            status = STATUS_ERROR;
+        }
+    }
+
+    private void finishAttempt() {
+        if (cancelled) {
+            status = STATUS_CANCELLED;
+            return;
         }
         
         // Client and server errors
@@ -320,40 +712,122 @@ public class NetworkOperation implements Runnable {
     public void run() {
         execute();
 
-        if (Thread.currentThread().isInterrupted()) {
-            handler.sendEmptyMessage(STATUS_CANCELLED);
+        if (Thread.currentThread().isInterrupted() || cancelled) {
+            notifyListener(STATUS_CANCELLED);
         } else {
-            handler.sendEmptyMessage(status);
+            notifyListener();
         }
     }
 
-    static class NetworkOperationHandler extends Handler {
-        private NetworkOperation networkOperation;
+    // Cancels the operation. A request in progress is aborted, which closes its connection, and
+    // the response is neither cached nor parsed
+    public void cancel() {
+        OperationFuture operationFuture = future;
 
-        NetworkOperationHandler(final NetworkOperation networkOperation) {
-            this.networkOperation = networkOperation;
+        if (operationFuture != null && operationFuture.cancel(true)) {
+            return;
         }
 
-        @Override
-        public void handleMessage(final Message message) {
-            super.handleMessage(message);
-            
-            int status = message.what;
-            
-            if (status == STATUS_COMPLETED) {
-                networkOperation.listener.onCompletion(networkOperation);
-            } else {
-                networkOperation.listener.onError(networkOperation);
-            }
+        abort();
+    }
+
+    void abort() {
+        cancelled = true;
+
+        if (status == STATUS_PENDING) {
+            status = STATUS_CANCELLED;
         }
+
+        abortRequest();
     }
 
-    private NetworkOperationHandler handler = new NetworkOperationHandler(this);
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public Object getTag() {
+        return tag;
+    }
+
+    public void setTag(final Object tag) {
+        this.tag = tag;
+    }
+
+    void setFuture(final OperationFuture future) {
+        this.future = future;
+    }
+
+    void notifyListener() {
+        notifyListener(cancelled ? STATUS_CANCELLED : status);
+    }
+
+    private void notifyListener(final int notifiedStatus) {
+        if (listener == null) {
+            return;
+        }
+
+        getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                OperationListener currentListener = listener;
+
+                if (currentListener == null) {
+                    return;
+                }
+
+                if (notifiedStatus == STATUS_COMPLETED) {
+                    currentListener.onCompletion(NetworkOperation.this);
+                } else {
+                    currentListener.onError(NetworkOperation.this);
+                }
+            }
+        });
+    }
+
+    // Takes over the result of an identical operation that went to the network on our behalf
+    void completeFrom(final NetworkOperation operation) {
+        response = operation.response;
+        httpStatusCode = operation.httpStatusCode;
+        cacheHeaders = new HashMap<String, String>(operation.cacheHeaders);
+        responseData = operation.responseData;
+        cachedData = operation.cachedData;
+        status = operation.status;
+
+        byte[] data = getResponseData();
+
+        if (status == STATUS_COMPLETED && parser != null && data != null) {
+            try {
+                parser.parse(new ByteArrayInputStream(data), data.length);
+            } catch (IOException e) {
+                status = STATUS_ERROR;
+            }
+        }
+    }
 
     public void setListener(final OperationListener listener) {
         this.listener = listener;
     }
 
+    public void setProgressListener(final ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    // Progress is reported once both interval milliseconds have passed and step more bytes have
+    // been transferred since the last report, which bounds the rate however fast the transfer is
+    public void setProgressThrottle(final long interval, final long step) {
+        this.progressInterval = interval;
+        this.progressStep = step;
+    }
+
+    // Where the listener is called, the engine's callback executor if null
+    public void setCallbackExecutor(final Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor != null ? callbackExecutor : NetworkEngine.getInstance().getCallbackExecutor();
+    }
+
     public int getHttpStatusCode() {
         return httpStatusCode;
     }
@@ -383,8 +857,14 @@ public class NetworkOperation implements Runnable {
     }
 
     public String getResponseString(final String encoding) {
+        byte[] data = getResponseData();
+
+        if (data == null) {
+            return null;
+        }
+
         try {
-            return new String(getResponseData(), encoding);
+            return new String(data, encoding);
         } catch (UnsupportedEncodingException e) {
             return null;
         }
@@ -401,6 +881,66 @@ public class NetworkOperation implements Runnable {
         return headers;
     }
 
+    public String getResponseHeader(final String name) {
+        if (response == null) {
+            return null;
+        }
+
+        Header header = response.getFirstHeader(name);
+
+        return header != null ? header.getValue() : null;
+    }
+
+    // The exception that made the last attempt fail, or null if a response was received
+    public IOException getException() {
+        return exception;
+    }
+
+    // Whether the last attempt failed because the connection did, while sending the request or
+    // receiving the response, in a way that may not happen again. Errors raised while a received
+    // response was processed, by the parser, a download target or the size limit, and
+    // interruptions other than timeouts, are not network failures.
+    public boolean isNetworkFailure() {
+        IOException e = exception;
+
+        if (e == null || !connectionFailed) {
+            return false;
+        }
+
+        if (e instanceof ResponseTooLargeException || e instanceof ClientProtocolException
+                || e instanceof SSLPeerUnverifiedException) {
+            return false;
+        }
+
+        if (e instanceof InterruptedIOException) {
+            return e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException;
+        }
+
+        return true;
+    }
+
+    // Reading the response body from the connection failed or ended early
+    void connectionFailed() {
+        connectionFailed = true;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    // Operations without a transport of their own use the engine's transport
+    public Transport getTransport() {
+        return transport != null ? transport : NetworkEngine.getInstance().getTransport();
+    }
+
+    public void setTransport(final Transport transport) {
+        this.transport = transport;
+    }
+
     public HttpUriRequest getRequest() {
         return request;
     }
@@ -444,7 +984,37 @@ public class NetworkOperation implements Runnable {
     }
 
     public void setBody(final byte[] body) {
-        this.body = body;
+        this.body = body != null ? new ByteArrayEntity(body) : null;
+    }
+
+    // The file is read while the request is sent
+    public void setBody(final File file) {
+        this.body = file != null ? new FileEntity(file, "application/octet-stream") : null;
+    }
+
+    // A length of -1 sends the body chunked. The stream can only be read once, so the request
+    // isn't retried.
+    public void setBody(final InputStream is, final long length) {
+        if (is != null) {
+            InputStreamEntity entity = new InputStreamEntity(is, length);
+            entity.setChunked(length < 0);
+            this.body = entity;
+        } else {
+            this.body = null;
+        }
+    }
+
+    public void setBody(final BodyWriter writer) {
+        setBody(writer, -1);
+    }
+
+    public void setBody(final BodyWriter writer, final long length) {
+        this.body = writer != null ? new WriterEntity(writer, length) : null;
+    }
+
+    // Whether the request body can be sent again by another attempt
+    boolean hasRepeatableBody() {
+        return body == null || body.isRepeatable();
     }
 
     public ResponseParser getParser() {
@@ -459,6 +1029,19 @@ public class NetworkOperation implements Runnable {
         this.useGzip = useGzip;
     }
 
+    public RequestCompression getRequestCompression() {
+        return requestCompression;
+    }
+
+    public void setRequestCompression(final RequestCompression requestCompression) {
+        this.requestCompression = requestCompression;
+    }
+
+    // Bodies shorter than this many bytes are sent as they are
+    public void setCompressionThreshold(final long compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
     public Map<String, String> getCacheHeaders() {
         return cacheHeaders;
     }
@@ -467,6 +1050,7 @@ public class NetworkOperation implements Runnable {
         this.cacheHeaders = cacheHeaders;
     }
 
+    // Returns null if the body was written to a file, see getResponseFile
     public byte[] getResponseData() {
         if (cachedData != null) {
             return cachedData;
@@ -475,8 +1059,91 @@ public class NetworkOperation implements Runnable {
         }
     }
 
+    // The temporary file holding a body longer than the spill threshold, or null if the body is
+    // in memory. The file is deleted by release or when the operation is executed again.
+    public File getResponseFile() {
+        return cachedData != null ? null : responseFile;
+    }
+
+    // A read-only view of a DIRECT_BUFFER body, or of a cached body. The view must not be used
+    // once the operation has been released or executed again, the buffer is back in the pool.
+    public ByteBuffer getResponseBuffer() {
+        if (cachedData != null) {
+            return ByteBuffer.wrap(cachedData).asReadOnlyBuffer();
+        }
+
+        return responseBuffer != null ? responseBuffer.asReadOnlyBuffer() : null;
+    }
+
+    // Reads the body wherever it is kept, or returns null if there is none
+    public InputStream getResponseStream() throws IOException {
+        File file = getResponseFile();
+
+        if (file != null) {
+            return new FileInputStream(file);
+        }
+
+        if (cachedData == null && responseBuffer != null) {
+            return new ByteBufferInputStream(responseBuffer.asReadOnlyBuffer());
+        }
+
+        byte[] data = getResponseData();
+
+        return data != null ? new ByteArrayInputStream(data) : null;
+    }
+
+    // Lets go of the response body, in memory, on disk or in a direct buffer
+    public void release() {
+        responseData = null;
+        cachedData = null;
+        deleteResponseFile();
+        recycleResponseBuffer();
+    }
+
+    private void deleteResponseFile() {
+        if (responseFile != null) {
+            responseFile.delete();
+            responseFile = null;
+        }
+    }
+
+    private void recycleResponseBuffer() {
+        if (responseBuffer != null) {
+            DirectBufferPool.getInstance().recycle(responseBuffer);
+            responseBuffer = null;
+        }
+    }
+
+    // Whether the body is kept where only this operation may use it, so it can't be shared
+    boolean hasPrivateResponse() {
+        return responseFile != null || responseBuffer != null;
+    }
+
+    // Bodies longer than this many bytes are written to a temporary file instead of being kept
+    // in memory. Negative, the default, keeps every body in memory.
+    public void setSpillThreshold(final long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    // A body longer than this many bytes fails the operation with a ResponseTooLargeException.
+    // Negative, the default, allows any size. The NIO and HTTP/2 transports, which receive the
+    // whole body before handing it over, apply the limit to the body as received, before it is
+    // decompressed.
+    public void setMaxResponseSize(final long maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    public long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
     public void setCachedData(final byte[] cachedData) {
         this.cachedData = cachedData;
+        this.cacheLookupData = cachedData;
     }
 
     public boolean isCachedResponse() {
@@ -499,6 +1166,98 @@ public class NetworkOperation implements Runnable {
 		this.fresh = fresh;
 	}
 
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(final Priority priority) {
+        this.priority = priority;
+
+        // Let the scheduler pick up the new priority if the operation is still queued
+        if (scheduler != null) {
+            scheduler.reprioritize(this);
+        }
+    }
+
+    public ResponseMode getResponseMode() {
+        return responseMode;
+    }
+
+    public void setResponseMode(final ResponseMode responseMode) {
+        this.responseMode = responseMode;
+    }
+
+    public File getDownloadFile() {
+        return downloadFile;
+    }
+
+    // Writes the response body into the file instead of memory. A download that breaks off is
+    // kept next to the file and resumed by the next attempt, if the server supports ranges.
+    public void setDownloadFile(final File file) {
+        downloadFile = file;
+        setDownloadTarget(file != null ? new FileDownload(file) : null);
+    }
+
+    void setDownloadTarget(final DownloadTarget download) {
+        this.download = download;
+        this.responseMode = download != null ? ResponseMode.FILE : ResponseMode.BUFFERED;
+    }
+
+    private boolean isDownloadingToFile() {
+        return responseMode == ResponseMode.FILE && download != null;
+    }
+
+    // Whether the response body went into the disk cache while it was read
+    boolean isWrittenToDiskCache() {
+        return writtenToDiskCache;
+    }
+
+    void setScheduler(final OperationScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public String getHost() {
+        if (urlString == null) {
+            return null;
+        }
+
+        try {
+            return new URI(urlString).getHost();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private HttpEntity getProgressEntity(final HttpEntity entity, final boolean upload) {
+        if (progressListener == null) {
+            return entity;
+        }
+
+        return new ProgressEntity(entity, this, progressListener, upload, progressInterval, progressStep);
+    }
+
+    // Outermost on the way out and innermost on the way in, so the bytes on the wire are counted.
+    // Only the blocking transports stream the body, the NIO and HTTP/2 transports have already
+    // moved it over the network by the time it is throttled here
+    private HttpEntity getThrottledEntity(final HttpEntity entity) {
+        return new ThrottledEntity(entity, NetworkEngine.getInstance().getBandwidthLimiter(), this);
+    }
+
+    // Bodies of unknown length are compressed, they are usually the large ones
+    private HttpEntity getCompressingEntity(final HttpEntity entity) {
+        if (requestCompression == RequestCompression.NONE || entity.getContentEncoding() != null) {
+            return entity;
+        }
+
+        long length = entity.getContentLength();
+
+        if (length >= 0 && length < compressionThreshold) {
+            return entity;
+        }
+
+        return new CompressingEntity(entity, requestCompression);
+    }
+
 	private HttpEntity getDecompressingEntity(final HttpEntity entity) {
         Header header = entity.getContentEncoding();
 
@@ -506,8 +1265,12 @@ public class NetworkOperation implements Runnable {
             HeaderElement[] codecs = header.getElements();
 
             for (int i = 0; i < codecs.length; i++) {
-                if (codecs[i].getName().equalsIgnoreCase("gzip")) {
-                    return new GzipDecompressingEntity(entity);
+                String codec = codecs[i].getName();
+
+                if (codec.equalsIgnoreCase("gzip") || codec.equalsIgnoreCase("x-gzip")) {
+                    return new DecompressingEntity(entity, true);
+                } else if (codec.equalsIgnoreCase("deflate")) {
+                    return new DecompressingEntity(entity, false);
                 }
             }
         }
@@ -515,22 +1278,105 @@ public class NetworkOperation implements Runnable {
         return entity;
     }
 
-    private static class GzipDecompressingEntity extends HttpEntityWrapper {
-        public GzipDecompressingEntity(final HttpEntity entity) {
+    private static class DecompressingEntity extends HttpEntityWrapper {
+        private final boolean gzip;
+        private InputStream content;
+
+        public DecompressingEntity(final HttpEntity entity, final boolean gzip) {
             super(entity);
+            this.gzip = gzip;
         }
 
         @Override
         public InputStream getContent() throws IOException {
-            InputStream is = wrappedEntity.getContent();
+            if (content == null) {
+                content = new InflatingInputStream(wrappedEntity.getContent(), gzip);
+            }
 
-            return new GZIPInputStream(is);
+            return content;
         }
 
         @Override
         public long getContentLength() {
             return -1;
         }
+
+        // Hands the inflater back even if the body wasn't read to the end
+        @Override
+        public void consumeContent() throws IOException {
+            if (content != null) {
+                content.close();
+            }
+
+            super.consumeContent();
+        }
+    }
+
+    // Compresses the body while it is written, the compressed length isn't known until then
+    private static class CompressingEntity extends HttpEntityWrapper {
+        private final RequestCompression compression;
+
+        public CompressingEntity(final HttpEntity entity, final RequestCompression compression) {
+            super(entity);
+            this.compression = compression;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader("Content-Encoding", compression == RequestCompression.GZIP ? "gzip" : "deflate");
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Compressing entity does not implement #getContent()");
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            // Closing the compressor finishes it and frees its deflater, the connection stays open
+            OutputStream target = new FilterOutputStream(out) {
+                @Override
+                public void write(final byte[] buffer, final int offset, final int count) throws IOException {
+                    out.write(buffer, offset, count);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+
+            Deflater deflater = null;
+            DeflaterOutputStream compressor;
+
+            if (compression == RequestCompression.GZIP) {
+                compressor = new GZIPOutputStream(target, COMPRESSION_BUFFER_SIZE);
+            } else {
+                deflater = new Deflater();
+                compressor = new DeflaterOutputStream(target, deflater, COMPRESSION_BUFFER_SIZE);
+            }
+
+            try {
+                wrappedEntity.writeTo(compressor);
+            } finally {
+                compressor.close();
+
+                // A deflater that was passed in isn't ended by the stream
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
     }
 
     private void setCacheHeaders(final HttpResponse response) {
@@ -608,11 +1454,11 @@ public class NetworkOperation implements Runnable {
     }
 
     public boolean isCachable() {
-        return httpMethod == HttpMethod.GET;
+        return httpMethod == HttpMethod.GET && !isDownloadingToFile();
     }
 
     public String getUniqueIdentifier() {
-        String str = httpMethod.toString() + " " + urlString;
+        String str = httpMethod.toString() + " " + getRequestUrlString();
 
         if (username != null && password != null) {
             str = str + " " + username + ":" + password;
@@ -621,6 +1467,22 @@ public class NetworkOperation implements Runnable {
         return MD5.encodeString(str);
     }
 
+    // Operations are only coalesced when they would send the same request, headers included
+    String getCoalescingKey() {
+        StringBuilder key = new StringBuilder(httpMethod.toString() + " " + getRequestUrlString());
+        Map<String, String> sortedHeaders = new TreeMap<String, String>();
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            sortedHeaders.put(header.getKey().toLowerCase(Locale.US), header.getValue());
+        }
+
+        for (Map.Entry<String, String> header : sortedHeaders.entrySet()) {
+            key.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+        }
+
+        return MD5.encodeString(key.toString());
+    }
+
     public void setBasicAuthenticationHeader(final String username, final String password) {
         this.username = username;
         this.password = password;
@@ -635,6 +1497,86 @@ public class NetworkOperation implements Runnable {
         }
     }
 
+    private static class WriterEntity extends AbstractHttpEntity {
+        private final BodyWriter writer;
+        private final long length;
+
+        WriterEntity(final BodyWriter writer, final long length) {
+            this.writer = writer;
+            this.length = length;
+
+            setChunked(length < 0);
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Written entity does not implement #getContent()");
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            writer.writeTo(out);
+            out.flush();
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            int count = (int) Math.max(Math.min(n, buffer.remaining()), 0);
+            buffer.position(buffer.position() + count);
+
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     private static class DataPart {
         public byte[] data;
         public String key;
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * A group of operations that is run with a bounded number of operations in flight and reported
+ * back as a unit. The operations' own listeners are not called, the batch listener is told once
+ * when every operation is done. A BatchProgressListener is also told about each operation as it
+ * finishes.
+ */
+public class OperationBatch {
+    private final List<NetworkOperation> operations;
+    private final int maxConcurrentOperations;
+    private final BatchListener listener;
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+    private int next = 0;
+    private int running = 0;
+    private int finished = 0;
+    private boolean cancelled = false;
+
+    public interface BatchListener {
+        void onBatchCompletion(final OperationBatch batch);
+    }
+
+    public interface BatchProgressListener extends BatchListener {
+        void onOperationFinished(final OperationBatch batch, final NetworkOperation operation);
+    }
+
+    OperationBatch(final Collection<NetworkOperation> operations, final int maxConcurrentOperations,
+            final BatchListener listener) {
+        this.operations = new ArrayList<NetworkOperation>(operations);
+        this.maxConcurrentOperations = Math.max(1, maxConcurrentOperations);
+        this.listener = listener;
+    }
+
+    void start() {
+        if (operations.isEmpty()) {
+            notifyBatchFinished();
+            return;
+        }
+
+        startNext();
+    }
+
+    private void startNext() {
+        List<NetworkOperation> start = new ArrayList<NetworkOperation>();
+
+        synchronized (this) {
+            while (!cancelled && running < maxConcurrentOperations && next < operations.size()) {
+                start.add(operations.get(next++));
+                running++;
+            }
+        }
+
+        for (final NetworkOperation operation : start) {
+            Future<?> future = NetworkEngine.getInstance().enqueueBatchOperation(operation, new Runnable() {
+                @Override
+                public void run() {
+                    operationFinished(operation);
+                }
+            });
+
+            boolean cancelFuture;
+
+            synchronized (this) {
+                futures.add(future);
+                cancelFuture = cancelled;
+            }
+
+            if (cancelFuture) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void operationFinished(final NetworkOperation operation) {
+        boolean done;
+
+        synchronized (this) {
+            running--;
+            finished++;
+            done = finished == operations.size();
+        }
+
+        if (listener instanceof BatchProgressListener) {
+            NetworkEngine.getInstance().getCallbackExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ((BatchProgressListener) listener).onOperationFinished(OperationBatch.this, operation);
+                }
+            });
+        }
+
+        if (done) {
+            notifyBatchFinished();
+        } else {
+            startNext();
+        }
+    }
+
+    public void cancel() {
+        List<Future<?>> started;
+        boolean done;
+
+        synchronized (this) {
+            if (cancelled || finished == operations.size()) {
+                return;
+            }
+
+            cancelled = true;
+
+            // Operations that never started are done as soon as the batch is cancelled
+            for (int i = next; i < operations.size(); i++) {
+                operations.get(i).abort();
+            }
+
+            finished += operations.size() - next;
+            next = operations.size();
+            done = finished == operations.size();
+            started = new ArrayList<Future<?>>(futures);
+        }
+
+        for (Future<?> future : started) {
+            future.cancel(true);
+        }
+
+        if (done) {
+            notifyBatchFinished();
+        }
+    }
+
+    private void notifyBatchFinished() {
+        if (listener == null) {
+            return;
+        }
+
+        NetworkEngine.getInstance().getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onBatchCompletion(OperationBatch.this);
+            }
+        });
+    }
+
+    public void setPriority(final NetworkOperation.Priority priority) {
+        for (NetworkOperation operation : operations) {
+            operation.setPriority(priority);
+        }
+    }
+
+    public List<NetworkOperation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public List<NetworkOperation> getCompletedOperations() {
+        return getOperationsWithStatus(true);
+    }
+
+    public List<NetworkOperation> getFailedOperations() {
+        return getOperationsWithStatus(false);
+    }
+
+    private List<NetworkOperation> getOperationsWithStatus(final boolean completed) {
+        List<NetworkOperation> result = new ArrayList<NetworkOperation>();
+
+        for (NetworkOperation operation : operations) {
+            int status = operation.getStatus();
+
+            if (status == NetworkOperation.STATUS_PENDING || status == NetworkOperation.STATUS_EXECUTING) {
+                continue;
+            }
+
+            if ((status == NetworkOperation.STATUS_COMPLETED) == completed) {
+                result.add(operation);
+            }
+        }
+
+        return result;
+    }
+
+    public synchronized boolean isDone() {
+        return finished == operations.size();
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+}
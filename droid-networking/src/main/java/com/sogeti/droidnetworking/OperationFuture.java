@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The future handed out by NetworkEngine for an enqueued operation. An operation may pass
+ * through several stages before it is done, or be completed by another operation, so this
+ * future follows the operation rather than a single task.
+ */
+class OperationFuture implements Future<Void> {
+    private final NetworkOperation operation;
+    private final boolean notify;
+    private final Runnable completionCallback;
+    private Future<?> stage;
+    private boolean done = false;
+    private boolean cancelled = false;
+    private int retryCount = 0;
+
+    OperationFuture(final NetworkOperation operation, final boolean notify, final Runnable completionCallback) {
+        this.operation = operation;
+        this.notify = notify;
+        this.completionCallback = completionCallback;
+        this.operation.setFuture(this);
+    }
+
+    NetworkOperation getOperation() {
+        return operation;
+    }
+
+    // Whether the operation's listener should be told when the operation is done
+    boolean shouldNotify() {
+        return notify;
+    }
+
+    synchronized int getRetryCount() {
+        return retryCount;
+    }
+
+    synchronized void incrementRetryCount() {
+        retryCount++;
+    }
+
+    void setStage(final Future<?> stage) {
+        boolean cancelStage;
+
+        synchronized (this) {
+            this.stage = stage;
+            cancelStage = cancelled;
+        }
+
+        if (cancelStage) {
+            stage.cancel(true);
+        }
+    }
+
+    void complete() {
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+
+            done = true;
+            notifyAll();
+        }
+
+        if (completionCallback != null) {
+            completionCallback.run();
+        }
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        Future<?> currentStage;
+
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+
+            cancelled = true;
+            done = true;
+            currentStage = stage;
+            notifyAll();
+        }
+
+        if (currentStage != null) {
+            currentStage.cancel(mayInterruptIfRunning);
+        }
+
+        NetworkEngine.getInstance().operationCancelled(this);
+
+        if (completionCallback != null) {
+            completionCallback.run();
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+
+        if (cancelled) {
+            throw new CancellationException();
+        }
+
+        return null;
+    }
+
+    @Override
+    public synchronized Void get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+        while (!done) {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+
+            wait(remaining);
+        }
+
+        if (cancelled) {
+            throw new CancellationException();
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatches operations to an executor in priority order while capping the number of
+ * operations running in total and against any single host. Operations waiting for a slot
+ * stay in the scheduler, so a slow host only holds back its own operations.
+ */
+public class OperationScheduler {
+    private static final String UNKNOWN_HOST = "";
+
+    private Executor executor;
+    private int maxConcurrentOperations;
+    private int maxConcurrentOperationsPerHost;
+
+    private final List<ScheduledOperation> pending = new ArrayList<ScheduledOperation>();
+    private final Map<String, Integer> runningPerHost = new HashMap<String, Integer>();
+    private int running = 0;
+    private long sequence = 0;
+
+    // Work that keeps its slot until it calls release, which may be after run has returned
+    public interface Task {
+        void run(final Runnable release);
+    }
+
+    public OperationScheduler(final Executor executor, final int maxConcurrentOperations,
+            final int maxConcurrentOperationsPerHost) {
+        this.executor = executor;
+        this.maxConcurrentOperations = maxConcurrentOperations;
+        this.maxConcurrentOperationsPerHost = maxConcurrentOperationsPerHost;
+    }
+
+    public Future<?> submit(final NetworkOperation operation, final Runnable task) {
+        return submit(operation, new Task() {
+            @Override
+            public void run(final Runnable release) {
+                try {
+                    task.run();
+                } finally {
+                    release.run();
+                }
+            }
+        });
+    }
+
+    public Future<?> submit(final NetworkOperation operation, final Task task) {
+        ScheduledOperation scheduledOperation;
+
+        synchronized (this) {
+            scheduledOperation = new ScheduledOperation(operation, task, sequence++);
+            pending.add(scheduledOperation);
+            operation.setScheduler(this);
+        }
+
+        dispatch();
+
+        return scheduledOperation;
+    }
+
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setMaxConcurrentOperations(final int maxConcurrentOperations) {
+        synchronized (this) {
+            this.maxConcurrentOperations = maxConcurrentOperations;
+        }
+
+        dispatch();
+    }
+
+    public void setMaxConcurrentOperationsPerHost(final int maxConcurrentOperationsPerHost) {
+        synchronized (this) {
+            this.maxConcurrentOperationsPerHost = maxConcurrentOperationsPerHost;
+        }
+
+        dispatch();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    void reprioritize(final NetworkOperation operation) {
+        // The pending list is ordered when an operation is picked, so a new priority takes
+        // effect the next time a slot frees up
+        dispatch();
+    }
+
+    private void dispatch() {
+        boolean rejected;
+
+        do {
+            List<ScheduledOperation> ready = new ArrayList<ScheduledOperation>();
+
+            synchronized (this) {
+                ScheduledOperation next;
+
+                while ((next = next()) != null) {
+                    pending.remove(next);
+                    acquire(next.host);
+                    ready.add(next);
+                }
+            }
+
+            rejected = false;
+
+            for (ScheduledOperation scheduledOperation : ready) {
+                try {
+                    executor.execute(scheduledOperation);
+                } catch (RejectedExecutionException e) {
+                    // The operation will never run, so give its slot to the next one
+                    releaseSlot(scheduledOperation);
+                    scheduledOperation.reject(e);
+                    rejected = true;
+                }
+            }
+        } while (rejected);
+    }
+
+    // Must be called while holding the lock
+    private ScheduledOperation next() {
+        ScheduledOperation best = null;
+
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (pending.get(i).isCancelled()) {
+                pending.remove(i);
+            }
+        }
+
+        for (ScheduledOperation candidate : pending) {
+            if (!canStart(candidate)) {
+                continue;
+            }
+
+            if (best == null || candidate.compareTo(best) < 0) {
+                best = candidate;
+            }
+        }
+
+        return best;
+    }
+
+    // Must be called while holding the lock
+    private boolean canStart(final ScheduledOperation scheduledOperation) {
+        int limit = maxConcurrentOperations;
+
+        // Background work never takes the last free slot, so there is always room for an
+        // interactive operation to start without waiting behind a bulk transfer
+        if (scheduledOperation.operation.getPriority() == NetworkOperation.Priority.BACKGROUND && limit > 1) {
+            limit--;
+        }
+
+        if (running >= limit) {
+            return false;
+        }
+
+        Integer hostCount = runningPerHost.get(scheduledOperation.host);
+
+        return hostCount == null || hostCount < maxConcurrentOperationsPerHost;
+    }
+
+    // Must be called while holding the lock
+    private void acquire(final String host) {
+        Integer hostCount = runningPerHost.get(host);
+        runningPerHost.put(host, hostCount == null ? 1 : hostCount + 1);
+        running++;
+    }
+
+    private synchronized void releaseSlot(final ScheduledOperation scheduledOperation) {
+        Integer hostCount = runningPerHost.get(scheduledOperation.host);
+
+        if (hostCount == null || hostCount <= 1) {
+            runningPerHost.remove(scheduledOperation.host);
+        } else {
+            runningPerHost.put(scheduledOperation.host, hostCount - 1);
+        }
+
+        running--;
+    }
+
+    private void finished(final ScheduledOperation scheduledOperation) {
+        releaseSlot(scheduledOperation);
+        dispatch();
+    }
+
+    private void removePending(final ScheduledOperation scheduledOperation) {
+        synchronized (this) {
+            pending.remove(scheduledOperation);
+        }
+    }
+
+    private class ScheduledOperation extends FutureTask<Void> implements Comparable<ScheduledOperation> {
+        private final NetworkOperation operation;
+        private final String host;
+        private final long sequence;
+        private final TaskRunner runner;
+        private boolean released = false;
+
+        ScheduledOperation(final NetworkOperation operation, final Task task, final long sequence) {
+            this(operation, new TaskRunner(task), sequence);
+        }
+
+        private ScheduledOperation(final NetworkOperation operation, final TaskRunner runner, final long sequence) {
+            super(runner, null);
+
+            String host = operation.getHost();
+
+            this.operation = operation;
+            this.host = host != null ? host : UNKNOWN_HOST;
+            this.sequence = sequence;
+            this.runner = runner;
+
+            runner.scheduledOperation = this;
+        }
+
+        @Override
+        public void run() {
+            super.run();
+
+            // Cancelled before it got to run, the task never saw its slot
+            if (!runner.started) {
+                release();
+            }
+        }
+
+        void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+
+                released = true;
+            }
+
+            finished(this);
+        }
+
+        void reject(final RejectedExecutionException e) {
+            setException(e);
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+            if (cancelled) {
+                removePending(this);
+            }
+
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(final ScheduledOperation another) {
+            int result = operation.getPriority().compareTo(another.operation.getPriority());
+
+            if (result != 0) {
+                return result;
+            }
+
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    // Runs the task with its slot, the slot is released here if the task throws before it
+    // could hand it off
+    private static class TaskRunner implements Runnable {
+        private final Task task;
+        private ScheduledOperation scheduledOperation;
+        private volatile boolean started = false;
+
+        TaskRunner(final Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+
+            boolean handedOff = false;
+
+            try {
+                task.run(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduledOperation.release();
+                    }
+                });
+
+                handedOff = true;
+            } finally {
+                if (!handedOff) {
+                    scheduledOperation.release();
+                }
+            }
+        }
+    }
+}
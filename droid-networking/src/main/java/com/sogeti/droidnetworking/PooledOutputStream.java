@@ -0,0 +1,222 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory output buffer made of segments from the BufferPool. It grows by adding segments
+ * instead of copying into ever larger arrays. When the expected size is given, and is at most
+ * BufferPool.MAX_BUFFER_SIZE, the first segment is allocated at exactly that size so toByteArray
+ * can hand it out without copying. Any other body, such as a compressed, chunked or larger one,
+ * is copied by toByteArray. Readers that don't need a single array should use writeTo or
+ * toInputStream, which work from the segments.
+ */
+public class PooledOutputStream extends OutputStream {
+    private static final int FIRST_SEGMENT_SIZE = 4 * 1024;
+
+    private final BufferPool pool;
+    private final List<byte[]> segments = new ArrayList<byte[]>();
+    private byte[] current;
+    private int count = 0;
+    private long size = 0;
+
+    public PooledOutputStream() {
+        this(0);
+    }
+
+    public PooledOutputStream(final long expectedSize) {
+        this.pool = BufferPool.getInstance();
+
+        // Larger bodies are still gathered in segments, an exact array isn't worth the risk
+        if (expectedSize > 0 && expectedSize <= BufferPool.MAX_BUFFER_SIZE) {
+            current = new byte[(int) expectedSize];
+            segments.add(current);
+        }
+    }
+
+    @Override
+    public void write(final int b) {
+        if (current == null || count == current.length) {
+            addSegment();
+        }
+
+        current[count++] = (byte) b;
+        size++;
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int length) {
+        int written = 0;
+
+        while (written < length) {
+            if (current == null || count == current.length) {
+                addSegment();
+            }
+
+            int chunk = Math.min(length - written, current.length - count);
+            System.arraycopy(buffer, offset + written, current, count, chunk);
+
+            count += chunk;
+            written += chunk;
+        }
+
+        size += length;
+    }
+
+    // Each segment is as large as everything before it, up to the largest pooled size
+    private void addSegment() {
+        int length = (int) Math.min(Math.max(size, FIRST_SEGMENT_SIZE), BufferPool.MAX_BUFFER_SIZE);
+
+        current = pool.obtain(length);
+        count = 0;
+        segments.add(current);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void writeTo(final OutputStream out) throws IOException {
+        for (int i = 0; i < segments.size(); i++) {
+            byte[] segment = segments.get(i);
+
+            out.write(segment, 0, i == segments.size() - 1 ? count : segment.length);
+        }
+    }
+
+    // The segments stay in use, release() still has to be called. Copies unless the buffer holds
+    // exactly the expected size.
+    public byte[] toByteArray() {
+        if (segments.size() == 1 && count == current.length) {
+            // The only segment is exactly full, it is handed out instead of copied
+            byte[] data = current;
+            segments.clear();
+            current = null;
+            count = 0;
+            size = 0;
+
+            return data;
+        }
+
+        byte[] data = new byte[(int) size];
+        int position = 0;
+
+        for (int i = 0; i < segments.size(); i++) {
+            byte[] segment = segments.get(i);
+            int length = i == segments.size() - 1 ? count : segment.length;
+
+            System.arraycopy(segment, 0, data, position, length);
+            position += length;
+        }
+
+        return data;
+    }
+
+    // Reads the buffer back without copying it, the segments are released once the stream has
+    // been read to the end or closed. Nothing may be written afterwards.
+    public InputStream toInputStream() {
+        return new SegmentInputStream();
+    }
+
+    public void release() {
+        for (byte[] segment : segments) {
+            pool.recycle(segment);
+        }
+
+        segments.clear();
+        current = null;
+        count = 0;
+        size = 0;
+    }
+
+    private class SegmentInputStream extends InputStream {
+        private int segment = 0;
+        private int position = 0;
+        private long remaining = size;
+        private final byte[] single = new byte[1];
+
+        @Override
+        public int read() {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) {
+            if (remaining == 0) {
+                close();
+                return -1;
+            }
+
+            if (length == 0) {
+                return 0;
+            }
+
+            byte[] data = segments.get(segment);
+            int end = segment == segments.size() - 1 ? count : data.length;
+            int chunk = Math.min(length, end - position);
+
+            System.arraycopy(data, position, buffer, offset, chunk);
+            position += chunk;
+            remaining -= chunk;
+
+            if (position == end) {
+                segment++;
+                position = 0;
+            }
+
+            return chunk;
+        }
+
+        @Override
+        public long skip(final long n) {
+            long skipped = 0;
+
+            while (skipped < n && remaining > 0) {
+                byte[] data = segments.get(segment);
+                int end = segment == segments.size() - 1 ? count : data.length;
+                int chunk = (int) Math.min(n - skipped, end - position);
+
+                position += chunk;
+                remaining -= chunk;
+                skipped += chunk;
+
+                if (position == end) {
+                    segment++;
+                    position = 0;
+                }
+            }
+
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() {
+            remaining = 0;
+            release();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import android.os.SystemClock;
+
+/**
+ * Counts the bytes of a request body as it is written, or of a response body as it is read, and
+ * reports them to the operation's progress listener. A report is made once both the interval has
+ * passed and step more bytes have been transferred, and at the end of the body. While a report
+ * is waiting in the callback executor, later reports only update its numbers.
+ */
+class ProgressEntity extends HttpEntityWrapper {
+    private final NetworkOperation operation;
+    private final NetworkOperation.ProgressListener listener;
+    private final boolean upload;
+    private final long total;
+    private final long interval;
+    private final long step;
+    private long count = 0;
+    private long reportedCount = 0;
+    private long reportedTime = 0;
+    private boolean reported = false;
+    private volatile long latestCount = 0;
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    private final Runnable delivery = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first, so a report made from now on is delivered as well
+            pending.set(false);
+
+            if (upload) {
+                listener.onUploadProgress(operation, latestCount, total);
+            } else {
+                listener.onDownloadProgress(operation, latestCount, total);
+            }
+        }
+    };
+
+    ProgressEntity(final HttpEntity entity, final NetworkOperation operation,
+            final NetworkOperation.ProgressListener listener, final boolean upload, final long interval,
+            final long step) {
+        super(entity);
+        this.operation = operation;
+        this.listener = listener;
+        this.upload = upload;
+        this.total = entity.getContentLength();
+        this.interval = interval;
+        this.step = step;
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        // A body may be written again for a redirect or an authentication challenge
+        restart();
+
+        wrappedEntity.writeTo(new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+                transferred(1);
+            }
+
+            @Override
+            public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+                out.write(buffer, offset, length);
+                transferred(length);
+            }
+        });
+
+        finished();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new FilterInputStream(wrappedEntity.getContent()) {
+            @Override
+            public int read() throws IOException {
+                int result = super.read();
+
+                if (result == -1) {
+                    finished();
+                } else {
+                    transferred(1);
+                }
+
+                return result;
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+
+                if (read == -1) {
+                    finished();
+                } else {
+                    transferred(read);
+                }
+
+                return read;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                long skipped = super.skip(n);
+                transferred(skipped);
+
+                return skipped;
+            }
+        };
+    }
+
+    private void restart() {
+        count = 0;
+        reportedCount = 0;
+        reportedTime = 0;
+        reported = false;
+    }
+
+    private void transferred(final long bytes) {
+        count += bytes;
+
+        // The clock is only read once enough bytes have gone by
+        if (count == total || count - reportedCount >= step) {
+            long now = SystemClock.uptimeMillis();
+
+            if (count == total || now - reportedTime >= interval) {
+                report(now);
+            }
+        }
+    }
+
+    private void finished() {
+        if (!reported || count != reportedCount) {
+            report(SystemClock.uptimeMillis());
+        }
+    }
+
+    private void report(final long now) {
+        reportedCount = count;
+        reportedTime = now;
+        reported = true;
+        latestCount = count;
+
+        if (pending.compareAndSet(false, true)) {
+            operation.getCallbackExecutor().execute(delivery);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the cacheable operations that are on their way to the network. An identical
+ * operation, with the same URL and request headers, arriving while one is in flight is attached
+ * to it instead of making its own request, and gets a copy of the response once the first
+ * operation is done.
+ */
+class RequestCoalescer {
+    private final Map<String, InFlight> inFlight = new HashMap<String, InFlight>();
+    // The key every joined operation had when it joined, an operation adds headers of its own
+    // once it is sent
+    private final Map<NetworkOperation, String> keys = new HashMap<NetworkOperation, String>();
+
+    // Returns true if the operation was attached to an identical operation already in flight. If
+    // false is returned the operation is now in flight itself and finished must be called once it is done
+    synchronized boolean join(final OperationFuture future) {
+        String key = future.getOperation().getCoalescingKey();
+        InFlight current = inFlight.get(key);
+
+        keys.put(future.getOperation(), key);
+
+        if (current == null) {
+            inFlight.put(key, new InFlight(future.getOperation()));
+            return false;
+        }
+
+        current.followers.add(future);
+
+        return true;
+    }
+
+    synchronized void leave(final OperationFuture future) {
+        String key = keys.get(future.getOperation());
+        InFlight current = key != null ? inFlight.get(key) : null;
+
+        if (current == null || !current.followers.remove(future)) {
+            return;
+        }
+
+        keys.remove(future.getOperation());
+    }
+
+    void finished(final NetworkOperation operation, final boolean cancelled) {
+        List<OperationFuture> followers;
+
+        synchronized (this) {
+            String key = keys.get(operation);
+            InFlight current = key != null ? inFlight.get(key) : null;
+
+            if (current == null || current.leader != operation) {
+                return;
+            }
+
+            inFlight.remove(key);
+            keys.remove(operation);
+            followers = current.followers;
+
+            for (OperationFuture follower : followers) {
+                keys.remove(follower.getOperation());
+            }
+        }
+
+        for (OperationFuture follower : followers) {
+            if (follower.isDone()) {
+                continue;
+            }
+
+            // The response will never arrive, or it is kept where only the first operation may use it.
+            // Let the attached operations make their own request.
+            if (cancelled || operation.hasPrivateResponse()) {
+                NetworkEngine.getInstance().startNetworkStage(follower, true);
+                continue;
+            }
+
+            NetworkOperation attached = follower.getOperation();
+            attached.completeFrom(operation);
+
+            if (follower.shouldNotify()) {
+                attached.notifyListener();
+            }
+
+            NetworkEngine.getInstance().completeOperation(follower);
+        }
+    }
+
+    private static class InFlight {
+        private final NetworkOperation leader;
+        private final List<OperationFuture> followers = new ArrayList<OperationFuture>();
+
+        InFlight(final NetworkOperation leader) {
+            this.leader = leader;
+        }
+    }
+}
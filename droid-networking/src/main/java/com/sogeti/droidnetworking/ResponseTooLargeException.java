@@ -0,0 +1,31 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a response body is longer than the operation's maximum response size. The
+ * operation is not retried, the same response would be too large again.
+ */
+public class ResponseTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ResponseTooLargeException(final long maxSize) {
+        super("Response body is larger than " + maxSize + " bytes");
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import com.sogeti.droidnetworking.NetworkEngine.HttpMethod;
+
+/**
+ * Decides if and when a failed operation is tried again. Operations are retried after network
+ * failures and after 429, 502, 503 and 504 responses, waiting an exponentially growing, jittered
+ * delay between attempts. Errors raised while processing a response that was received would
+ * happen again and are not retried, see NetworkOperation.isNetworkFailure. A Retry-After header
+ * on a 429 or 503 response is used as the delay instead. Only idempotent methods are retried
+ * unless retryNonIdempotent is set.
+ */
+public class RetryPolicy {
+    private static final int DEFAULT_MAX_RETRIES = 2;
+    private static final long DEFAULT_INITIAL_BACKOFF = 500; // ms
+    private static final long DEFAULT_MAX_BACKOFF = 30 * 1000; // ms
+    private static final long DEFAULT_MAX_RETRY_AFTER = 60 * 1000; // ms
+    private static final double DEFAULT_MULTIPLIER = 2.0;
+
+    private static final int ONE_SECOND_IN_MS = 1000;
+    private static final int MAX_RETRY_AFTER_DIGITS = 18;
+
+    // Shared by every operation that uses it, so it can't be changed
+    public static final RetryPolicy NO_RETRY = new RetryPolicy(0, true);
+
+    private static final Random RANDOM = new Random();
+
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+    private long maxRetryAfter = DEFAULT_MAX_RETRY_AFTER;
+    private double multiplier = DEFAULT_MULTIPLIER;
+    private boolean retryNonIdempotent = false;
+    private final boolean immutable;
+
+    public RetryPolicy() {
+        this.immutable = false;
+    }
+
+    public RetryPolicy(final int maxRetries) {
+        this(maxRetries, false);
+    }
+
+    private RetryPolicy(final int maxRetries, final boolean immutable) {
+        this.maxRetries = maxRetries;
+        this.immutable = immutable;
+    }
+
+    // Returns the number of milliseconds to wait before the next attempt, or -1 if the operation
+    // should not be retried. retryCount is the number of retries made so far.
+    public long getRetryDelay(final NetworkOperation operation, final int retryCount) {
+        if (retryCount >= maxRetries || operation.isCancelled()) {
+            return -1;
+        }
+
+        if (!retryNonIdempotent && !isIdempotent(operation.getHttpMethod())) {
+            return -1;
+        }
+
+        // A body read from a stream is gone after the first attempt
+        if (!operation.hasRepeatableBody()) {
+            return -1;
+        }
+
+        int httpStatusCode = operation.getHttpStatusCode();
+        boolean networkFailure = operation.isNetworkFailure();
+
+        // The parser, the download target or the size limit would fail the same way again
+        if (operation.getException() != null && !networkFailure) {
+            return -1;
+        }
+
+        if (!networkFailure && !isRetryableStatusCode(httpStatusCode)) {
+            return -1;
+        }
+
+        if (!networkFailure && (httpStatusCode == 429 || httpStatusCode == 503)) {
+            long retryAfter = parseRetryAfter(operation.getResponseHeader("Retry-After"));
+
+            if (retryAfter > maxRetryAfter) {
+                // The server wants us to stay away longer than we are prepared to wait
+                return -1;
+            }
+
+            if (retryAfter >= 0) {
+                return retryAfter;
+            }
+        }
+
+        return getBackoff(retryCount);
+    }
+
+    long getBackoff(final int retryCount) {
+        double backoff = initialBackoff * Math.pow(multiplier, retryCount);
+        long cappedBackoff = (long) Math.min(backoff, maxBackoff);
+
+        // Wait somewhere between half and all of the backoff, so clients that failed at the same
+        // time don't all come back at the same time
+        return cappedBackoff / 2 + (long) (RANDOM.nextDouble() * (cappedBackoff / 2));
+    }
+
+    static long parseRetryAfter(final String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+
+        String value = retryAfter.trim();
+
+        if (value.matches("\\d+")) {
+            // Too many seconds to count in milliseconds is longer than anyone will wait
+            if (value.length() > MAX_RETRY_AFTER_DIGITS) {
+                return Long.MAX_VALUE;
+            }
+
+            long seconds = Long.parseLong(value);
+
+            return seconds > Long.MAX_VALUE / ONE_SECOND_IN_MS ? Long.MAX_VALUE : seconds * ONE_SECOND_IN_MS;
+        }
+
+        try {
+            SimpleDateFormat simpleDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+            Date date = simpleDateFormat.parse(value);
+
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isIdempotent(final HttpMethod httpMethod) {
+        return httpMethod != null && httpMethod != HttpMethod.POST;
+    }
+
+    private static boolean isRetryableStatusCode(final int httpStatusCode) {
+        return httpStatusCode == 429 || httpStatusCode == 502 || httpStatusCode == 503 || httpStatusCode == 504;
+    }
+
+    private void checkMutable() {
+        if (immutable) {
+            throw new UnsupportedOperationException("This retry policy can't be changed");
+        }
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(final int maxRetries) {
+        checkMutable();
+        this.maxRetries = maxRetries;
+    }
+
+    public void setInitialBackoff(final long initialBackoff) {
+        checkMutable();
+        this.initialBackoff = initialBackoff;
+    }
+
+    public void setMaxBackoff(final long maxBackoff) {
+        checkMutable();
+        this.maxBackoff = maxBackoff;
+    }
+
+    public void setMaxRetryAfter(final long maxRetryAfter) {
+        checkMutable();
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+    public void setMultiplier(final double multiplier) {
+        checkMutable();
+        this.multiplier = multiplier;
+    }
+
+    public void setRetryNonIdempotent(final boolean retryNonIdempotent) {
+        checkMutable();
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+}
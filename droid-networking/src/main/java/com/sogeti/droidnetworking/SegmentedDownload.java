@@ -0,0 +1,472 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import com.sogeti.droidnetworking.NetworkEngine.HttpMethod;
+
+/**
+ * Downloads a large file over several connections at once. A HEAD request finds out the length
+ * of the file and whether the server supports ranges, then the file is split into segments that
+ * are fetched with Range requests as an OperationBatch and written at their offsets into one
+ * file. A segment that fails is retried by the retry policy from where it broke off. Servers
+ * that don't support ranges, or turn out not to honour them, get a single download. The engine's per host limits still decide
+ * how many segments run at once.
+ */
+public class SegmentedDownload {
+    private static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final long TRANSFER_SIZE = 64 * 1024;
+
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+
+    private final String urlString;
+    private final File file;
+    private final File partialFile;
+    private final int maxSegments;
+    private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private NetworkOperation.Priority priority = NetworkOperation.Priority.NORMAL;
+    private RetryPolicy retryPolicy;
+    private DownloadListener listener;
+
+    private long length = -1;
+    private List<Segment> segments = new ArrayList<Segment>();
+    private RandomAccessFile randomAccessFile;
+    private OperationBatch batch;
+    private boolean completed = false;
+    private boolean cancelled = false;
+
+    public interface DownloadListener {
+        void onDownloadCompletion(final SegmentedDownload download);
+
+        void onDownloadError(final SegmentedDownload download);
+    }
+
+    public SegmentedDownload(final String urlString, final File file, final int maxSegments) {
+        this.urlString = urlString;
+        this.file = file;
+        this.partialFile = new File(file.getPath() + ".partial");
+        this.maxSegments = Math.max(1, maxSegments);
+    }
+
+    public void start(final DownloadListener listener) {
+        this.listener = listener;
+
+        NetworkOperation probe = createOperation();
+        probe.setHttpMethod(HttpMethod.HEAD);
+
+        // The length of the file as stored, not as it would be compressed
+        probe.setUseGzip(false);
+
+        startBatch(probe, new OperationBatch.BatchListener() {
+            @Override
+            public void onBatchCompletion(final OperationBatch batch) {
+                runOnWorker(new Runnable() {
+                    @Override
+                    public void run() {
+                        probed(batch.getOperations().get(0));
+                    }
+                });
+            }
+        });
+    }
+
+    private void probed(final NetworkOperation probe) {
+        if (isCancelled()) {
+            finished(false);
+            return;
+        }
+
+        // Not every server answers HEAD, the download itself will tell
+        if (probe.getStatus() != NetworkOperation.STATUS_COMPLETED) {
+            downloadWhole();
+            return;
+        }
+
+        length = parseLength(probe.getResponseHeader("Content-Length"));
+        boolean ranges = "bytes".equalsIgnoreCase(probe.getResponseHeader("Accept-Ranges"));
+        int count = length > 0 ? (int) Math.min(maxSegments, (length + minSegmentSize - 1) / minSegmentSize) : 1;
+
+        // Not worth splitting, or not possible
+        if (!ranges || count < 2) {
+            downloadWhole();
+            return;
+        }
+
+        // Whatever an earlier download left behind can't be resumed from here
+        new FileDownload(file).discard();
+
+        try {
+            randomAccessFile = new RandomAccessFile(partialFile, "rw");
+
+            // Every segment writes inside the file, which is what FileChannel.transferFrom needs
+            randomAccessFile.setLength(length);
+        } catch (IOException e) {
+            finished(false);
+            return;
+        }
+
+        String[] validator = getValidator(probe);
+        List<NetworkOperation> operations = new ArrayList<NetworkOperation>();
+        long segmentSize = (length + count - 1) / count;
+
+        for (long start = 0; start < length; start += segmentSize) {
+            Segment segment = new Segment(randomAccessFile.getChannel(), start,
+                    Math.min(start + segmentSize, length) - 1, validator);
+            NetworkOperation operation = createOperation();
+
+            operation.setUseGzip(false);
+            operation.setDownloadTarget(segment);
+            operation.setRetryPolicy(new SegmentRetryPolicy(segment));
+
+            segments.add(segment);
+            operations.add(operation);
+        }
+
+        startBatch(operations, new OperationBatch.BatchListener() {
+            @Override
+            public void onBatchCompletion(final OperationBatch batch) {
+                runOnWorker(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isCancelled() && isRangeRefused()) {
+                            fallBack();
+                            return;
+                        }
+
+                        finished(batch.getCompletedOperations().size() == segments.size() && verify());
+                    }
+                });
+            }
+        });
+    }
+
+    // The server advertised ranges but answered a segment with something else, the whole file is
+    // downloaded instead
+    private void fallBack() {
+        closePartialFile();
+        partialFile.delete();
+        segments.clear();
+
+        downloadWhole();
+    }
+
+    private boolean isRangeRefused() {
+        for (Segment segment : segments) {
+            if (segment.isRangeRefused()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void downloadWhole() {
+        NetworkOperation operation = createOperation();
+        operation.setDownloadFile(file);
+
+        startBatch(operation, new OperationBatch.BatchListener() {
+            @Override
+            public void onBatchCompletion(final OperationBatch batch) {
+                runOnWorker(new Runnable() {
+                    @Override
+                    public void run() {
+                        finished(batch.getCompletedOperations().size() == 1);
+                    }
+                });
+            }
+        });
+    }
+
+    // Every segment must have ended exactly where the next one starts
+    private boolean verify() {
+        try {
+            if (randomAccessFile.length() != length) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        for (Segment segment : segments) {
+            if (!segment.isComplete()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void finished(final boolean success) {
+        boolean renamed = false;
+
+        if (randomAccessFile != null) {
+            // A file that couldn't be closed may not have all of its data written
+            boolean closed = closePartialFile();
+
+            if (success && closed && !isCancelled()) {
+                file.delete();
+                renamed = partialFile.renameTo(file);
+            }
+
+            if (!renamed) {
+                partialFile.delete();
+            }
+        } else {
+            renamed = success && !isCancelled();
+        }
+
+        synchronized (this) {
+            completed = renamed;
+        }
+
+        if (listener == null) {
+            return;
+        }
+
+        final boolean succeeded = renamed;
+
+        NetworkEngine.getInstance().getCallbackExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (succeeded) {
+                    listener.onDownloadCompletion(SegmentedDownload.this);
+                } else {
+                    listener.onDownloadError(SegmentedDownload.this);
+                }
+            }
+        });
+    }
+
+    private boolean closePartialFile() {
+        try {
+            randomAccessFile.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            randomAccessFile = null;
+        }
+    }
+
+    // Batch listeners are called on the callback executor, the main thread by default, which is
+    // no place for creating, sizing and renaming a file
+    private static void runOnWorker(final Runnable task) {
+        NetworkEngine.getInstance().getSharedNetworkQueue().execute(task);
+    }
+
+    private void startBatch(final NetworkOperation operation, final OperationBatch.BatchListener batchListener) {
+        startBatch(Collections.singletonList(operation), batchListener);
+    }
+
+    private void startBatch(final List<NetworkOperation> operations, final OperationBatch.BatchListener batchListener) {
+        OperationBatch next = new OperationBatch(operations, operations.size(), batchListener);
+
+        synchronized (this) {
+            batch = next;
+        }
+
+        next.start();
+    }
+
+    private NetworkOperation createOperation() {
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString(urlString);
+        operation.setPriority(priority);
+
+        if (retryPolicy != null) {
+            operation.setRetryPolicy(retryPolicy);
+        }
+
+        return operation;
+    }
+
+    public void cancel() {
+        OperationBatch current;
+
+        synchronized (this) {
+            cancelled = true;
+            current = batch;
+        }
+
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    // Each segment must come from the same version of the file as the HEAD response described
+    private static String[] getValidator(final NetworkOperation probe) {
+        String eTag = probe.getResponseHeader("ETag");
+
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return new String[] {"If-Match", eTag};
+        }
+
+        String lastModified = probe.getResponseHeader("Last-Modified");
+
+        return lastModified != null ? new String[] {"If-Unmodified-Since", lastModified} : null;
+    }
+
+    private static long parseLength(final String contentLength) {
+        try {
+            return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public void setMinSegmentSize(final long minSegmentSize) {
+        this.minSegmentSize = Math.max(1, minSegmentSize);
+    }
+
+    public void setPriority(final NetworkOperation.Priority priority) {
+        this.priority = priority;
+    }
+
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    // A segment whose range was refused would get the same answer again, it is left to the
+    // fallback. Any other failure goes to the download's or the engine's policy.
+    private class SegmentRetryPolicy extends RetryPolicy {
+        private final Segment segment;
+
+        SegmentRetryPolicy(final Segment segment) {
+            super(0);
+            this.segment = segment;
+        }
+
+        @Override
+        public long getRetryDelay(final NetworkOperation operation, final int retryCount) {
+            RetryPolicy policy = retryPolicy != null ? retryPolicy : NetworkEngine.getInstance().getRetryPolicy();
+
+            if (segment.isRangeRefused() || policy == null) {
+                return -1;
+            }
+
+            return policy.getRetryDelay(operation, retryCount);
+        }
+    }
+
+    // One range of the file. position is where the next byte goes, so a retry asks for the rest.
+    // The body of a refused range is not read, the operation aborts its connection.
+    static class Segment implements NetworkOperation.DownloadTarget {
+        private final FileChannel channel;
+        private final long end;
+        private final String[] validator;
+        private volatile long position;
+        private volatile boolean rangeRefused = false;
+
+        Segment(final FileChannel channel, final long start, final long end, final String[] validator) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            this.validator = validator;
+        }
+
+        @Override
+        public void prepareRequest(final HttpUriRequest request) {
+            request.addHeader("Range", "bytes=" + position + "-" + end);
+
+            if (validator != null) {
+                request.addHeader(validator[0], validator[1]);
+            }
+        }
+
+        @Override
+        public boolean accepts(final HttpResponse response) {
+            int statusCode = response.getStatusLine().getStatusCode();
+
+            return statusCode == HTTP_OK || statusCode == HTTP_PARTIAL_CONTENT;
+        }
+
+        @Override
+        public void write(final HttpResponse response) throws IOException {
+            // The whole file instead of the range, nothing to write it to
+            if (response.getStatusLine().getStatusCode() != HTTP_PARTIAL_CONTENT) {
+                rangeRefused = true;
+                throw new IOException("Range not honoured");
+            }
+
+            Header contentRange = response.getFirstHeader("Content-Range");
+
+            if (contentRange == null || !contentRange.getValue().trim().startsWith("bytes " + position + "-")) {
+                rangeRefused = true;
+                throw new IOException("Unexpected Content-Range: " + (contentRange != null ? contentRange.getValue() : null));
+            }
+
+            HttpEntity entity = response.getEntity();
+
+            if (entity != null) {
+                ReadableByteChannel source = Channels.newChannel(entity.getContent());
+                long count;
+
+                // Positional writes don't move the channel's position, the segments share it safely
+                while (position <= end
+                        && (count = channel.transferFrom(source, position, Math.min(TRANSFER_SIZE, end + 1 - position))) > 0) {
+                    position += count;
+                }
+            }
+
+            if (!isComplete()) {
+                throw new IOException("Segment incomplete, " + (end + 1 - position) + " bytes missing");
+            }
+        }
+
+        boolean isComplete() {
+            return position == end + 1;
+        }
+
+        boolean isRangeRefused() {
+            return rangeRefused;
+        }
+    }
+}
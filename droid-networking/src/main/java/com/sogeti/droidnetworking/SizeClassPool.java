@@ -0,0 +1,121 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bookkeeping shared by the buffer pools. Buffers are pooled in power of two size classes
+ * between two bounds and at most maxSize bytes are kept in total. Subclasses say how a buffer
+ * is allocated and measured.
+ */
+abstract class SizeClassPool<T> {
+    private final int minClassShift;
+    private final int maxClassShift;
+    private final List<List<T>> classes = new ArrayList<List<T>>();
+    private int maxSize;
+    private int size = 0;
+
+    SizeClassPool(final int minClassShift, final int maxClassShift, final int maxSize) {
+        this.minClassShift = minClassShift;
+        this.maxClassShift = maxClassShift;
+        this.maxSize = maxSize;
+
+        for (int shift = minClassShift; shift <= maxClassShift; shift++) {
+            classes.add(new ArrayList<T>());
+        }
+    }
+
+    protected abstract T allocate(int capacity);
+
+    protected abstract int capacity(T buffer);
+
+    // Returns a buffer with a capacity of at least minCapacity, rounded up to its size class
+    T obtain(final int minCapacity) {
+        int index = getClassIndex(minCapacity);
+
+        if (index == -1) {
+            return allocate(minCapacity);
+        }
+
+        synchronized (this) {
+            List<T> buffers = classes.get(index);
+
+            if (!buffers.isEmpty()) {
+                T buffer = buffers.remove(buffers.size() - 1);
+                size -= capacity(buffer);
+
+                return buffer;
+            }
+        }
+
+        return allocate(1 << (index + minClassShift));
+    }
+
+    // Buffers of a capacity outside the size classes are left to the garbage collector
+    void recycle(final T buffer) {
+        int capacity = capacity(buffer);
+        int index = getClassIndex(capacity);
+
+        if (index == -1 || capacity != 1 << (index + minClassShift)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (size + capacity <= maxSize) {
+                classes.get(index).add(buffer);
+                size += capacity;
+            }
+        }
+    }
+
+    synchronized int getSize() {
+        return size;
+    }
+
+    synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    // Shrinking the pool drops the largest buffers first
+    synchronized void setMaxSize(final int maxSize) {
+        this.maxSize = maxSize;
+
+        for (int index = classes.size() - 1; index >= 0 && size > maxSize; index--) {
+            List<T> buffers = classes.get(index);
+
+            while (!buffers.isEmpty() && size > maxSize) {
+                size -= capacity(buffers.remove(buffers.size() - 1));
+            }
+        }
+    }
+
+    private int getClassIndex(final int capacity) {
+        if (capacity > 1 << maxClassShift) {
+            return -1;
+        }
+
+        int shift = minClassShift;
+
+        while ((1 << shift) < capacity) {
+            shift++;
+        }
+
+        return shift - minClassShift;
+    }
+}
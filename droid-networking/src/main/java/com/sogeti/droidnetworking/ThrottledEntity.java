@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Paces a request body as it is written, or a response body as it is read, through the engine's
+ * bandwidth limiter. Large writes and reads are split into chunks so that a body is spread
+ * evenly over time instead of being sent in one burst after a long wait. Without any limits the
+ * body passes straight through.
+ */
+class ThrottledEntity extends HttpEntityWrapper {
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final BandwidthLimiter limiter;
+    private final NetworkOperation operation;
+    private final String host;
+
+    ThrottledEntity(final HttpEntity entity, final BandwidthLimiter limiter, final NetworkOperation operation) {
+        super(entity);
+        this.limiter = limiter;
+        this.operation = operation;
+        this.host = operation.getHost();
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        wrappedEntity.writeTo(new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                limiter.acquire(operation, host, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+                if (!limiter.isLimited()) {
+                    out.write(buffer, offset, length);
+                    return;
+                }
+
+                int written = 0;
+
+                while (written < length) {
+                    int chunk = Math.min(CHUNK_SIZE, length - written);
+
+                    limiter.acquire(operation, host, chunk);
+                    out.write(buffer, offset + written, chunk);
+                    written += chunk;
+                }
+            }
+        });
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return new FilterInputStream(wrappedEntity.getContent()) {
+            @Override
+            public int read() throws IOException {
+                int result = super.read();
+
+                if (result != -1) {
+                    limiter.acquire(operation, host, 1);
+                }
+
+                return result;
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                int read = super.read(buffer, offset, limiter.isLimited() ? Math.min(CHUNK_SIZE, length) : length);
+
+                if (read > 0) {
+                    limiter.acquire(operation, host, read);
+                }
+
+                return read;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                long skipped = super.skip(limiter.isLimited() ? Math.min(CHUNK_SIZE, n) : n);
+                limiter.acquire(operation, host, skipped);
+
+                return skipped;
+            }
+        };
+    }
+}
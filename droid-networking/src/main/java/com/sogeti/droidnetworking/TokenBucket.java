@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking;
+
+/**
+ * A token bucket holding up to a quarter of a second's worth of bytes at the given rate. Taking
+ * more bytes than the bucket holds leaves it in debt, and the taker waits until the debt has been
+ * paid back by the refill. The rate may be changed at any time, waiting takers see the new rate
+ * the next time they check the delay.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long BURST_DIVISOR = 4;
+
+    private long rate;
+    private double capacity;
+    private double tokens;
+    private long refilled;
+
+    public TokenBucket(final long bytesPerSecond, final long now) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive");
+        }
+
+        this.rate = bytesPerSecond;
+        this.capacity = getCapacity(bytesPerSecond);
+        this.tokens = capacity;
+        this.refilled = now;
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    public synchronized void setRate(final long bytesPerSecond, final long now) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond must be positive");
+        }
+
+        // What has been earned so far is earned at the old rate
+        refill(now);
+
+        rate = bytesPerSecond;
+        capacity = getCapacity(bytesPerSecond);
+        tokens = Math.min(tokens, capacity);
+    }
+
+    // Takes bytes from the bucket and returns the nanoseconds until it is out of debt again
+    public synchronized long take(final long bytes, final long now) {
+        refill(now);
+        tokens -= bytes;
+
+        return getDelay();
+    }
+
+    // The nanoseconds until the bucket is out of debt, 0 if it isn't in debt
+    public synchronized long getDelay(final long now) {
+        refill(now);
+
+        return getDelay();
+    }
+
+    // Must be called while holding the lock
+    private long getDelay() {
+        if (tokens >= 0) {
+            return 0;
+        }
+
+        return (long) Math.ceil(-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    // Must be called while holding the lock
+    private void refill(final long now) {
+        if (now > refilled) {
+            tokens = Math.min(capacity, tokens + (double) (now - refilled) * rate / NANOS_PER_SECOND);
+            refilled = now;
+        }
+    }
+
+    private static double getCapacity(final long bytesPerSecond) {
+        return Math.max(1, bytesPerSecond / BURST_DIVISOR);
+    }
+}
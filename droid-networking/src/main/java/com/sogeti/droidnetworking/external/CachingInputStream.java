@@ -17,38 +17,200 @@
 
 package com.sogeti.droidnetworking.external;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
+import com.sogeti.droidnetworking.BufferPool;
+import com.sogeti.droidnetworking.PooledOutputStream;
+import com.sogeti.droidnetworking.external.diskcache.DiskLruCache;
+
+/**
+ * Copies everything read from a stream, into memory and/or straight into a disk cache entry.
+ * The cache entry is committed once the stream has been read to the end and aborted if reading
+ * fails or the stream is closed early. The in-memory copy can be moved to a temporary file once
+ * it grows past a limit.
+ */
 public class CachingInputStream extends InputStream
 {
     private static final int EOF = -1;   // end of file
-    
+    private static final int BUFFER_SIZE = 8 * 1024;
+
     private final InputStream is;
-    private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private PooledOutputStream baos;
+    private byte[] cache;
+    private DiskLruCache.Editor editor;
+    private OutputStream out;
+    private byte[] skipBuffer;
+    private File spillDirectory;
+    private long spillLimit = -1;
+    private File spillFile;
+    private OutputStream spillOut;
+    private boolean complete = false;
+    private final byte[] single = new byte[1];
 
     public CachingInputStream(InputStream is)
+    {
+        this(is, 0);
+    }
+
+    // The expected size lets a body of known length be kept without copying it
+    public CachingInputStream(InputStream is, long expectedSize)
+    {
+        this.is = is;
+        this.baos = new PooledOutputStream(expectedSize);
+    }
+
+    // Writes the stream through to the value at index of the editor, keeping a copy in memory
+    // as well if keepInMemory is set
+    public CachingInputStream(InputStream is, DiskLruCache.Editor editor, int index, boolean keepInMemory)
+        throws IOException
+    {
+        this(is, editor, index, keepInMemory, 0);
+    }
+
+    public CachingInputStream(InputStream is, DiskLruCache.Editor editor, int index, boolean keepInMemory,
+        long expectedSize) throws IOException
     {
         this.is = is;
+        this.baos = keepInMemory ? new PooledOutputStream(expectedSize) : null;
+        this.editor = editor;
+
+        try {
+            this.out = new BufferedOutputStream(editor.newOutputStream(index), BUFFER_SIZE);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    // Once more than limit bytes have been copied, the in-memory copy is moved to a temporary file
+    // in directory, or the default temporary directory if it is null. A limit of 0 spills right away.
+    public void setSpillLimit(File directory, long limit)
+    {
+        this.spillDirectory = directory;
+        this.spillLimit = limit;
     }
 
+    // The file the copy was moved to, or null if it is still in memory. The file is complete once
+    // the stream has been read to the end.
+    public File getSpillFile()
+    {
+        return spillFile;
+    }
+
+    // Returns null if nothing is kept in memory, or if the stream was closed before asking
     public byte[] getCache()
     {
-        return baos.toByteArray();
+        if (cache == null && baos != null) {
+            cache = baos.toByteArray();
+            baos.release();
+            baos = null;
+        }
+
+        return cache;
     }
 
     public int read() throws IOException
     {
-        int result = is.read();
-        
-        if (result != EOF) {
-            baos.write(result);
+        int result;
+
+        try {
+            result = is.read();
+        } catch (IOException e) {
+            abort();
+            throw e;
         }
-        
+
+        if (result == EOF) {
+            commit();
+        } else {
+            single[0] = (byte) result;
+            copy(single, 0, 1);
+        }
+
         return result;
     }
 
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        int read;
+
+        try {
+            read = is.read(buffer, offset, length);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+
+        if (read == EOF) {
+            commit();
+        } else {
+            copy(buffer, offset, read);
+        }
+
+        return read;
+    }
+
+    private void copy(byte[] buffer, int offset, int length) throws IOException
+    {
+        if (baos != null && spillLimit >= 0 && baos.size() + length > spillLimit) {
+            spill();
+        }
+
+        if (baos != null) {
+            baos.write(buffer, offset, length);
+        }
+
+        if (spillOut != null) {
+            spillOut.write(buffer, offset, length);
+        }
+
+        if (out != null) {
+            out.write(buffer, offset, length);
+        }
+    }
+
+    private void spill() throws IOException
+    {
+        try {
+            spillFile = File.createTempFile("response", null, spillDirectory);
+            spillOut = new BufferedOutputStream(new FileOutputStream(spillFile), BUFFER_SIZE);
+            baos.writeTo(spillOut);
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+
+        baos.release();
+        baos = null;
+    }
+
+    // Skipped bytes are still read, so the copy stays complete
+    public long skip(long n) throws IOException
+    {
+        if (skipBuffer == null) {
+            skipBuffer = BufferPool.getInstance().obtain(BUFFER_SIZE);
+        }
+
+        long skipped = 0;
+
+        while (skipped < n) {
+            int read = read(skipBuffer, 0, (int) Math.min(skipBuffer.length, n - skipped));
+
+            if (read == EOF) {
+                break;
+            }
+
+            skipped += read;
+        }
+
+        return skipped;
+    }
+
     public int available() throws IOException
     {
         return is.available();
@@ -56,7 +218,94 @@ public class CachingInputStream extends InputStream
 
     public void close() throws IOException
     {
+        // A stream that wasn't read to the end leaves an incomplete entry and spill file
+        if (!complete) {
+            discard();
+        }
+
         is.close();
+
+        if (baos != null) {
+            baos.release();
+            baos = null;
+        }
+
+        BufferPool.getInstance().recycle(skipBuffer);
+        skipBuffer = null;
+    }
+
+    // Throws the copy away without closing the stream, for when reading it has failed elsewhere
+    public void discard()
+    {
+        abort();
+
+        if (baos != null) {
+            baos.release();
+            baos = null;
+        }
+
+        if (spillOut != null) {
+            try {
+                spillOut.close();
+            } catch (IOException e) {
+                // The file is deleted anyway
+            }
+
+            spillOut = null;
+        }
+
+        if (spillFile != null) {
+            spillFile.delete();
+            spillFile = null;
+        }
     }
 
+    private void commit() throws IOException
+    {
+        complete = true;
+
+        if (spillOut != null) {
+            try {
+                spillOut.close();
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+
+            spillOut = null;
+        }
+
+        if (editor == null) {
+            return;
+        }
+
+        DiskLruCache.Editor completed = editor;
+        editor = null;
+
+        out.close();
+        out = null;
+        completed.commit();
+    }
+
+    private void abort()
+    {
+        if (editor == null) {
+            return;
+        }
+
+        DiskLruCache.Editor aborted = editor;
+        editor = null;
+
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The entry is thrown away anyway
+            }
+
+            out = null;
+        }
+
+        aborted.abortUnlessCommitted();
+    }
 }
@@ -4,33 +4,40 @@
 
 package com.sogeti.droidnetworking.external;
 
-import android.util.Log;
+import com.sogeti.droidnetworking.BufferPool;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.Header;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Random;
 
+/**
+ * A multipart/form-data entity that only keeps a description of its parts. Files are streamed
+ * from disk when the entity is written, so the length is known up front and the entity can be
+ * written again for a redirect or an authentication retry. A part read from an InputStream can
+ * only be written once and has no known length, the entity is then sent chunked.
+ */
 public class MultipartEntity implements HttpEntity {
-    private final static String TAG = "MultipartEntity";
-
     private final static char[] MULTIPART_CHARS = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ"
             .toCharArray();
 
-    private String boundary = null;
+    private final static String CRLF = "\r\n";
+    private final static int BUFFER_SIZE = 8 * 1024;
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    boolean isSetLast = false;
-    boolean isSetFirst = false;
+    private final String boundary;
+    private final List<Part> parts = new ArrayList<Part>();
 
     public MultipartEntity() {
         final StringBuffer buf = new StringBuffer();
@@ -39,86 +46,82 @@ public class MultipartEntity implements HttpEntity {
             buf.append(MULTIPART_CHARS[rand.nextInt(MULTIPART_CHARS.length)]);
         }
         this.boundary = buf.toString();
-
     }
 
-    public void writeFirstBoundaryIfNeeds(){
-        if(!isSetFirst){
-            try {
-                out.write(("--" + boundary + "\r\n").getBytes());
-            } catch (final IOException e) {
-                Log.e(TAG, e.getMessage(), e);
-            }
-        }
-        isSetFirst = true;
+    /**
+     * @deprecated The boundaries are written along with the parts, this does nothing.
+     */
+    @Deprecated
+    public void writeFirstBoundaryIfNeeds() {
     }
 
+    /**
+     * @deprecated The boundaries are written along with the parts, this does nothing.
+     */
+    @Deprecated
     public void writeLastBoundaryIfNeeds() {
-        if(isSetLast){
-            return ;
-        }
-        try {
-            out.write(("\r\n--" + boundary + "--\r\n").getBytes());
-        } catch (final IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
-        isSetLast = true;
     }
 
     public void addPart(final String key, final String value) {
-        writeFirstBoundaryIfNeeds();
-        try {
-            out.write(("Content-Disposition: form-data; name=\"" +key+"\"\r\n").getBytes());
-            out.write("Content-Type: text/plain; charset=UTF-8\r\n".getBytes());
-            out.write("Content-Transfer-Encoding: 8bit\r\n\r\n".getBytes());
-            out.write(value.getBytes());
-            out.write(("\r\n--" + boundary + "\r\n").getBytes());
-        } catch (final IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        }
+        parts.add(new BytesPart("Content-Disposition: form-data; name=\"" + key + "\"" + CRLF
+                + "Content-Type: text/plain; charset=UTF-8" + CRLF
+                + "Content-Transfer-Encoding: 8bit" + CRLF, getBytes(value)));
+    }
+
+    public void addPart(final String key, final String fileName, final byte[] data, final String type) {
+        parts.add(new BytesPart(getFileHeaders(key, fileName, type), data));
     }
 
-    public void addPart(final String key, final String fileName, final InputStream fin){
+    public void addPart(final String key, final String fileName, final InputStream fin) {
         addPart(key, fileName, fin, "application/octet-stream");
     }
 
-    public void addPart(final String key, final String fileName, final InputStream fin, String type){
-        writeFirstBoundaryIfNeeds();
-        try {
-            type = "Content-Type: "+type+"\r\n";
-            out.write(("Content-Disposition: form-data; name=\""+ key+"\"; filename=\"" + fileName + "\"\r\n").getBytes());
-            out.write(type.getBytes());
-            out.write("Content-Transfer-Encoding: binary\r\n\r\n".getBytes());
-
-            final byte[] tmp = new byte[4096];
-            int l = 0;
-            while ((l = fin.read(tmp)) != -1) {
-                out.write(tmp, 0, l);
-            }
-            out.flush();
-        } catch (final IOException e) {
-            Log.e(TAG, e.getMessage(), e);
-        } finally {
-            try {
-                fin.close();
-            } catch (final IOException e) {
-                Log.e(TAG, e.getMessage(), e);
-            }
-        }
+    public void addPart(final String key, final String fileName, final InputStream fin, final String type) {
+        parts.add(new StreamPart(getFileHeaders(key, fileName, type), fin));
     }
 
     public void addPart(final String key, final File value) {
+        addPart(key, value.getName(), value, "application/octet-stream");
+    }
+
+    public void addPart(final String key, final String fileName, final File value, final String type) {
+        parts.add(new FilePart(getFileHeaders(key, fileName, type), value));
+    }
+
+    private static String getFileHeaders(final String key, final String fileName, final String type) {
+        return "Content-Disposition: form-data; name=\"" + key + "\"; filename=\"" + fileName + "\"" + CRLF
+                + "Content-Type: " + type + CRLF
+                + "Content-Transfer-Encoding: binary" + CRLF;
+    }
+
+    private static byte[] getBytes(final String value) {
         try {
-            addPart(key, value.getName(), new FileInputStream(value));
-        } catch (final FileNotFoundException e) {
-            Log.e(TAG, e.getMessage(), e);
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
         }
     }
 
+    // The length of the boundaries, headers and bodies together, or -1 if a part is a stream
     @Override
     public long getContentLength() {
-        writeLastBoundaryIfNeeds();
-        return out.toByteArray().length;
+        long length = getBytes("--" + boundary + "--" + CRLF).length;
+
+        for (Part part : parts) {
+            long bodyLength = part.getLength();
+
+            if (bodyLength < 0) {
+                return -1;
+            }
+
+            length += getPartHeader(part).length + bodyLength + CRLF.length();
+        }
+
+        return length;
+    }
+
+    private byte[] getPartHeader(final Part part) {
+        return getBytes("--" + boundary + CRLF + part.headers + CRLF);
     }
 
     @Override
@@ -128,22 +131,35 @@ public class MultipartEntity implements HttpEntity {
 
     @Override
     public boolean isChunked() {
-        return false;
+        return getContentLength() < 0;
     }
 
     @Override
     public boolean isRepeatable() {
-        return false;
+        for (Part part : parts) {
+            if (part instanceof StreamPart) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     @Override
     public boolean isStreaming() {
-        return false;
+        return !isRepeatable();
     }
 
     @Override
     public void writeTo(final OutputStream outStream) throws IOException {
-        outStream.write(out.toByteArray());
+        for (Part part : parts) {
+            outStream.write(getPartHeader(part));
+            part.writeTo(outStream);
+            outStream.write(getBytes(CRLF));
+        }
+
+        outStream.write(getBytes("--" + boundary + "--" + CRLF));
+        outStream.flush();
     }
 
     @Override
@@ -154,15 +170,198 @@ public class MultipartEntity implements HttpEntity {
     @Override
     public void consumeContent() throws IOException,
             UnsupportedOperationException {
-        if (isStreaming()) {
-            throw new UnsupportedOperationException(
-                    "Streaming entity does not implement #consumeContent()");
+        for (Part part : parts) {
+            if (part instanceof StreamPart) {
+                ((StreamPart) part).in.close();
+            }
         }
     }
 
+    // The same bytes as writeTo, read from the parts as they are reached. Each part is framed
+    // by three streams: its header, its body and the CRLF that ends it.
     @Override
     public InputStream getContent() throws IOException,
             UnsupportedOperationException {
-        return new ByteArrayInputStream(out.toByteArray());
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next <= parts.size() * 3;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                int index = next++;
+
+                if (index == parts.size() * 3) {
+                    return new ByteArrayInputStream(getBytes("--" + boundary + "--" + CRLF));
+                }
+
+                Part part = parts.get(index / 3);
+
+                switch (index % 3) {
+                    case 0 :
+                        return new ByteArrayInputStream(getPartHeader(part));
+                    case 1 :
+                        return part.getContent();
+                    default :
+                        return new ByteArrayInputStream(getBytes(CRLF));
+                }
+            }
+        });
+    }
+
+    private abstract static class Part {
+        private final String headers;
+
+        Part(final String headers) {
+            this.headers = headers;
+        }
+
+        abstract long getLength();
+
+        abstract void writeTo(final OutputStream out) throws IOException;
+
+        abstract InputStream getContent();
+    }
+
+    private static class BytesPart extends Part {
+        private final byte[] data;
+
+        BytesPart(final String headers, final byte[] data) {
+            super(headers);
+            this.data = data;
+        }
+
+        @Override
+        long getLength() {
+            return data.length;
+        }
+
+        @Override
+        void writeTo(final OutputStream out) throws IOException {
+            out.write(data);
+        }
+
+        @Override
+        InputStream getContent() {
+            return new ByteArrayInputStream(data);
+        }
+    }
+
+    private static class FilePart extends Part {
+        private final File file;
+        private final long length;
+
+        // The length is taken when the part is added, so every write sends the same number of bytes
+        FilePart(final String headers, final File file) {
+            super(headers);
+            this.file = file;
+            this.length = file.length();
+        }
+
+        @Override
+        long getLength() {
+            return length;
+        }
+
+        @Override
+        void writeTo(final OutputStream out) throws IOException {
+            long remaining = length;
+            final InputStream in = new FileInputStream(file);
+            final byte[] buffer = BufferPool.getInstance().obtain(BUFFER_SIZE);
+
+            try {
+                int l;
+
+                while (remaining > 0 && (l = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    out.write(buffer, 0, l);
+                    remaining -= l;
+                }
+            } finally {
+                in.close();
+                BufferPool.getInstance().recycle(buffer);
+            }
+
+            if (remaining > 0) {
+                throw new IOException(file + " is shorter than when it was added");
+            }
+        }
+
+        @Override
+        InputStream getContent() {
+            return new FileContent(file);
+        }
+    }
+
+    // Opened on the first read, so only the file being read is held open
+    private static class FileContent extends InputStream {
+        private final File file;
+        private InputStream in;
+
+        FileContent(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return open().read();
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            return open().read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        private InputStream open() throws IOException {
+            if (in == null) {
+                in = new FileInputStream(file);
+            }
+
+            return in;
+        }
+    }
+
+    private static class StreamPart extends Part {
+        private final InputStream in;
+
+        StreamPart(final String headers, final InputStream in) {
+            super(headers);
+            this.in = in;
+        }
+
+        @Override
+        long getLength() {
+            return -1;
+        }
+
+        @Override
+        void writeTo(final OutputStream out) throws IOException {
+            final byte[] buffer = BufferPool.getInstance().obtain(BUFFER_SIZE);
+
+            try {
+                int l;
+
+                while ((l = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, l);
+                }
+            } finally {
+                in.close();
+                BufferPool.getInstance().recycle(buffer);
+            }
+        }
+
+        @Override
+        InputStream getContent() {
+            return in;
+        }
     }
-}
\ No newline at end of file
+}
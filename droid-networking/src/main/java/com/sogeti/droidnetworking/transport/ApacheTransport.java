@@ -0,0 +1,59 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpParams;
+
+import com.sogeti.droidnetworking.ConnectionPoolStats;
+
+/**
+ * The default transport, the Apache HTTP client on top of a pooling connection manager.
+ */
+public class ApacheTransport implements Transport {
+    private final InstrumentedClientConnManager connManager;
+    private final DefaultHttpClient httpClient;
+
+    public ApacheTransport(final HttpParams params, final SchemeRegistry schemeRegistry) {
+        connManager = new InstrumentedClientConnManager(params, schemeRegistry);
+        httpClient = new DefaultHttpClient(connManager, params);
+    }
+
+    @Override
+    public HttpResponse execute(final HttpUriRequest request) throws IOException {
+        return httpClient.execute(request);
+    }
+
+    @Override
+    public ConnectionPoolStats getConnectionPoolStats() {
+        return connManager.getStats();
+    }
+
+    @Override
+    public void shutdown() {
+        connManager.shutdown();
+    }
+
+    public DefaultHttpClient getHttpClient() {
+        return httpClient;
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * A transport that can execute requests without holding the calling thread while waiting for
+ * the response. The engine only uses a worker thread to prepare the request and to process the
+ * response once it has arrived.
+ */
+public interface AsyncTransport extends Transport {
+    interface ResponseCallback {
+        // The response entity, if any, has been read in full
+        void onResponse(final HttpResponse response);
+
+        void onFailure(final IOException e);
+    }
+
+    // Requests that can't be executed without blocking go through execute(request)
+    boolean supportsAsync(final HttpUriRequest request);
+
+    // The callback is called once, on a transport thread
+    void execute(final HttpUriRequest request, final ResponseCallback callback);
+}
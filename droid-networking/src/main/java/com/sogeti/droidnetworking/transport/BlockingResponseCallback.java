@@ -0,0 +1,64 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Lets a blocking execute wait for an asynchronous transport.
+ */
+class BlockingResponseCallback implements AsyncTransport.ResponseCallback {
+    private HttpResponse response;
+    private IOException exception;
+    private boolean done = false;
+
+    @Override
+    public synchronized void onResponse(final HttpResponse response) {
+        this.response = response;
+        done = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onFailure(final IOException e) {
+        this.exception = e;
+        done = true;
+        notifyAll();
+    }
+
+    synchronized HttpResponse await(final HttpUriRequest request) throws IOException {
+        while (!done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                request.abort();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+
+        return response;
+    }
+}
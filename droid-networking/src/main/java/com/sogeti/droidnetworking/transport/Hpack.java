@@ -0,0 +1,573 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). Headers repeated on every request, like
+ * User-Agent, are sent in full once and as a table index after that. Credentials are always
+ * sent in full.
+ */
+public final class Hpack {
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+        {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+        {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+        {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+        {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+        {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+        {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+        {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+        {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+        {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+        {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+        {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+        {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+        {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+        {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+        {"www-authenticate", ""}
+    };
+
+    // The Huffman code of every octet, from RFC 7541 Appendix B
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28,
+            28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28,
+            28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11,
+            10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6,
+            6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7,
+            8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6,
+            6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7,
+            7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23,
+            22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23,
+            23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21,
+            23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23,
+            20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25,
+            26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24,
+            21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23,
+            22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27,
+            27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    private static final int HUFFMAN_EOS_CODE = 0x3fffffff;
+    private static final int HUFFMAN_EOS_LENGTH = 30;
+    private static final int HUFFMAN_EOS = 256;
+
+    // Decoding tree, children[node * 2 + bit] is the next node, negative values are leaves
+    // holding -(symbol + 1)
+    private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+    private static final Map<String, Integer> STATIC_INDEX = new HashMap<String, Integer>();
+
+    // Kept out of the dynamic table, where a compression side channel could recover them
+    private static final Set<String> NEVER_INDEXED = new HashSet<String>(
+            Arrays.asList("authorization", "cookie", "proxy-authorization"));
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_INDEX.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_INDEX.put(STATIC_TABLE[i][0] + "\0" + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    public static class Encoder {
+        private final DynamicTable table;
+        private int pendingTableSizeUpdate = -1;
+
+        public Encoder(final int maxTableSize) {
+            table = new DynamicTable(maxTableSize);
+        }
+
+        // Applies the decoder's table size limit, announced at the start of the next header block
+        public void setMaxTableSize(final int maxTableSize) {
+            if (maxTableSize == table.getMaxSize()) {
+                return;
+            }
+
+            table.setMaxSize(maxTableSize);
+            pendingTableSizeUpdate = maxTableSize;
+        }
+
+        public byte[] encode(final List<Header> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            if (pendingTableSizeUpdate != -1) {
+                writeInteger(out, 0x20, 5, pendingTableSizeUpdate);
+                pendingTableSizeUpdate = -1;
+            }
+
+            for (Header header : headers) {
+                encode(out, header.getName().toLowerCase(java.util.Locale.US), header.getValue());
+            }
+
+            return out.toByteArray();
+        }
+
+        private void encode(final ByteArrayOutputStream out, final String name, final String value) {
+            if (NEVER_INDEXED.contains(name)) {
+                // Intermediaries are asked not to index it either (RFC 7541 section 7.1.3)
+                writeLiteral(out, 0x10, 4, name, value);
+                return;
+            }
+
+            int index = findEntry(name, value);
+
+            if (index > 0) {
+                writeInteger(out, 0x80, 7, index);
+                return;
+            }
+
+            if (DynamicTable.entrySize(name, value) > table.getMaxSize()) {
+                // Wouldn't fit in the table, send it as a literal without indexing
+                writeLiteral(out, 0x00, 4, name, value);
+            } else {
+                writeLiteral(out, 0x40, 6, name, value);
+                table.add(name, value);
+            }
+        }
+
+        // The name is looked up before the header is added to the table
+        private void writeLiteral(final ByteArrayOutputStream out, final int prefix, final int prefixBits,
+                final String name, final String value) {
+            int nameIndex = findName(name);
+
+            writeInteger(out, prefix, prefixBits, nameIndex);
+
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+
+            writeString(out, value);
+        }
+
+        private int findEntry(final String name, final String value) {
+            Integer staticIndex = STATIC_INDEX.get(name + "\0" + value);
+
+            if (staticIndex != null) {
+                return staticIndex;
+            }
+
+            int dynamicIndex = table.indexOf(name, value);
+
+            return dynamicIndex > 0 ? STATIC_TABLE.length + dynamicIndex : 0;
+        }
+
+        private int findName(final String name) {
+            Integer staticIndex = STATIC_INDEX.get(name);
+
+            if (staticIndex != null) {
+                return staticIndex;
+            }
+
+            int dynamicIndex = table.indexOf(name, null);
+
+            return dynamicIndex > 0 ? STATIC_TABLE.length + dynamicIndex : 0;
+        }
+    }
+
+    public static class Decoder {
+        private final DynamicTable table;
+        private final int maxTableSize;
+
+        // The largest table the encoder may ask for, as announced in our settings
+        public Decoder(final int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        public List<Header> decode(final byte[] block) throws IOException {
+            List<Header> headers = new ArrayList<Header>();
+            int[] position = {0};
+
+            while (position[0] < block.length) {
+                int b = block[position[0]] & 0xff;
+
+                if ((b & 0x80) != 0) {
+                    int index = readInteger(block, position, 7);
+
+                    if (index == 0) {
+                        throw new IOException("Invalid header index");
+                    }
+
+                    headers.add(new BasicHeader(getName(index), getValue(index)));
+                } else if ((b & 0x40) != 0) {
+                    Header header = readLiteral(block, position, 6);
+                    table.add(header.getName(), header.getValue());
+                    headers.add(header);
+                } else if ((b & 0x20) != 0) {
+                    int size = readInteger(block, position, 5);
+
+                    if (size > maxTableSize) {
+                        throw new IOException("Invalid table size " + size);
+                    }
+
+                    table.setMaxSize(size);
+                } else {
+                    // Literals without indexing and never indexed literals have a 4 bit prefix
+                    headers.add(readLiteral(block, position, 4));
+                }
+            }
+
+            return headers;
+        }
+
+        private Header readLiteral(final byte[] block, final int[] position, final int prefix) throws IOException {
+            int nameIndex = readInteger(block, position, prefix);
+            String name = nameIndex == 0 ? readString(block, position) : getName(nameIndex);
+
+            return new BasicHeader(name, readString(block, position));
+        }
+
+        private String getName(final int index) throws IOException {
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+
+            return table.get(index - STATIC_TABLE.length)[0];
+        }
+
+        private String getValue(final int index) throws IOException {
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+
+            return table.get(index - STATIC_TABLE.length)[1];
+        }
+    }
+
+    private static class DynamicTable {
+        // Newest entry first, index 1 is the newest
+        private final LinkedList<String[]> entries = new LinkedList<String[]>();
+        private int size = 0;
+        private int maxSize;
+
+        DynamicTable(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        static int entrySize(final String name, final String value) {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+
+        void setMaxSize(final int maxSize) {
+            this.maxSize = maxSize;
+            evict(0);
+        }
+
+        void add(final String name, final String value) {
+            int entrySize = entrySize(name, value);
+
+            // An entry larger than the table empties it
+            evict(entrySize);
+
+            if (entrySize <= maxSize) {
+                entries.addFirst(new String[] {name, value});
+                size += entrySize;
+            }
+        }
+
+        String[] get(final int index) throws IOException {
+            if (index < 1 || index > entries.size()) {
+                throw new IOException("Invalid header index");
+            }
+
+            return entries.get(index - 1);
+        }
+
+        // Returns the 1-based index of the entry, a null value matches on the name only
+        int indexOf(final String name, final String value) {
+            int index = 1;
+
+            for (String[] entry : entries) {
+                if (entry[0].equals(name) && (value == null || entry[1].equals(value))) {
+                    return index;
+                }
+
+                index++;
+            }
+
+            return 0;
+        }
+
+        private void evict(final int needed) {
+            while (!entries.isEmpty() && size + needed > maxSize) {
+                String[] entry = entries.removeLast();
+                size -= entrySize(entry[0], entry[1]);
+            }
+        }
+    }
+
+    private static void writeInteger(final ByteArrayOutputStream out, final int flags, final int prefix,
+            final int value) {
+        int max = (1 << prefix) - 1;
+
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+
+        out.write(flags | max);
+
+        int remaining = value - max;
+
+        while (remaining >= 0x80) {
+            out.write((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+
+        out.write(remaining);
+    }
+
+    private static int readInteger(final byte[] block, final int[] position, final int prefix) throws IOException {
+        int max = (1 << prefix) - 1;
+        int value = block[position[0]++] & max;
+
+        if (value < max) {
+            return value;
+        }
+
+        int shift = 0;
+
+        while (true) {
+            if (position[0] >= block.length || shift > 21) {
+                throw new IOException("Invalid header integer");
+            }
+
+            int b = block[position[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            shift += 7;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    // Strings are sent Huffman coded unless that would make them longer
+    private static void writeString(final ByteArrayOutputStream out, final String value) {
+        long bits = 0;
+
+        for (int i = 0; i < value.length(); i++) {
+            bits += HUFFMAN_LENGTHS[value.charAt(i) & 0xff];
+        }
+
+        int huffmanLength = (int) ((bits + 7) / 8);
+
+        if (huffmanLength <= value.length() && value.length() > 0) {
+            writeInteger(out, 0x80, 7, huffmanLength);
+            writeHuffman(out, value);
+        } else {
+            writeInteger(out, 0x00, 7, value.length());
+
+            for (int i = 0; i < value.length(); i++) {
+                out.write(value.charAt(i) & 0xff);
+            }
+        }
+    }
+
+    private static String readString(final byte[] block, final int[] position) throws IOException {
+        if (position[0] >= block.length) {
+            throw new IOException("Truncated header block");
+        }
+
+        boolean huffman = (block[position[0]] & 0x80) != 0;
+        int length = readInteger(block, position, 7);
+
+        if (length > block.length - position[0]) {
+            throw new IOException("Truncated header block");
+        }
+
+        int start = position[0];
+        position[0] += length;
+
+        if (huffman) {
+            return readHuffman(block, start, length);
+        }
+
+        StringBuilder value = new StringBuilder(length);
+
+        for (int i = start; i < start + length; i++) {
+            value.append((char) (block[i] & 0xff));
+        }
+
+        return value.toString();
+    }
+
+    private static void writeHuffman(final ByteArrayOutputStream out, final String value) {
+        long current = 0;
+        int bits = 0;
+
+        for (int i = 0; i < value.length(); i++) {
+            int symbol = value.charAt(i) & 0xff;
+
+            current = (current << HUFFMAN_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            bits += HUFFMAN_LENGTHS[symbol];
+
+            while (bits >= 8) {
+                bits -= 8;
+                out.write((int) (current >>> bits));
+            }
+        }
+
+        // Pad with the most significant bits of the end of string code
+        if (bits > 0) {
+            current = (current << (8 - bits)) | (0xff >>> bits);
+            out.write((int) current);
+        }
+    }
+
+    private static String readHuffman(final byte[] block, final int start, final int length) throws IOException {
+        StringBuilder value = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        boolean allOnes = true;
+
+        for (int i = start; i < start + length; i++) {
+            int b = block[i] & 0xff;
+
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = HUFFMAN_TREE[node * 2 + one];
+
+                allOnes &= one == 1;
+                depth++;
+
+                if (next < 0) {
+                    int symbol = -next - 1;
+
+                    if (symbol == HUFFMAN_EOS) {
+                        throw new IOException("Invalid Huffman code");
+                    }
+
+                    value.append((char) symbol);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new IOException("Invalid Huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+
+        // Only up to seven bits of the end of string code may be left as padding
+        if (depth > 7 || !allOnes) {
+            throw new IOException("Invalid Huffman padding");
+        }
+
+        return value.toString();
+    }
+
+    private static int[] buildHuffmanTree() {
+        // A complete prefix code over 257 symbols has 256 inner nodes
+        int[] tree = new int[256 * 2];
+        int nodes = 1;
+
+        for (int symbol = 0; symbol <= HUFFMAN_EOS; symbol++) {
+            int code = symbol == HUFFMAN_EOS ? HUFFMAN_EOS_CODE : HUFFMAN_CODES[symbol];
+            int length = symbol == HUFFMAN_EOS ? HUFFMAN_EOS_LENGTH : HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+
+            for (int bit = length - 1; bit > 0; bit--) {
+                int slot = node * 2 + ((code >>> bit) & 1);
+
+                if (tree[slot] == 0) {
+                    tree[slot] = nodes++;
+                }
+
+                node = tree[slot];
+            }
+
+            tree[node * 2 + (code & 1)] = -(symbol + 1);
+        }
+
+        return tree;
+    }
+}
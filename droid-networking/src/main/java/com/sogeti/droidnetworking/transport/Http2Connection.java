@@ -0,0 +1,1057 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.PooledOutputStream;
+import com.sogeti.droidnetworking.ResponseTooLargeException;
+
+/**
+ * A cleartext HTTP/2 connection (RFC 7540) carrying every request to its host as a separate
+ * stream. Only used from its event loop thread.
+ */
+class Http2Connection implements NioChannelHandler {
+    static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    private static final byte[] PREFACE = {
+        'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+        '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'
+    };
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_PROTOCOL = 0x1;
+    private static final int ERROR_REFUSED_STREAM = 0x7;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int HEADER_TABLE_SIZE = 4096;
+    private static final int MAX_STREAM_ID = 0x7fffffff;
+    // Used until the server's settings say otherwise
+    private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+    // Larger receive windows than the protocol's default, so a response isn't held up waiting for
+    // window updates on a connection with some latency
+    private static final int STREAM_RECEIVE_WINDOW = 256 * 1024;
+    private static final int CONNECTION_RECEIVE_WINDOW = 1024 * 1024;
+
+    // Frames still to be written, in order
+    private final LinkedList<ByteBuffer> outputs = new LinkedList<ByteBuffer>();
+    private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+    // Request bodies waiting for flow control window, highest weight first
+    private final List<Stream> sending = new ArrayList<Stream>();
+    // Requests waiting for the server to allow another concurrent stream
+    private final LinkedList<NioExchange> queued = new LinkedList<NioExchange>();
+
+    private final Http2Transport transport;
+    private final NioEventLoop eventLoop;
+    private final String routeKey;
+    private final InetSocketAddress address;
+    private final Hpack.Encoder encoder = new Hpack.Encoder(HEADER_TABLE_SIZE);
+    private final Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer input = ByteBuffer.allocate(FRAME_HEADER_SIZE + DEFAULT_MAX_FRAME_SIZE);
+    private long deadline = 0;
+    private boolean connecting = false;
+    private boolean closed = false;
+    private boolean goingAway = false;
+    private IOException failure;
+    private int nextStreamId = 1;
+
+    // Settings received from the server
+    private int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+    private int initialSendWindow = DEFAULT_WINDOW_SIZE;
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    private long sendWindow = DEFAULT_WINDOW_SIZE;
+    private int receiveConsumed = 0;
+
+    // A header block continued in CONTINUATION frames
+    private ByteArrayOutputStream headerBlock;
+    private int headerBlockStreamId;
+    private boolean headerBlockEndStream;
+
+    // Read by the transport for its statistics
+    volatile int activeStreams = 0;
+    volatile int queuedStreams = 0;
+
+    Http2Connection(final Http2Transport transport, final NioEventLoop eventLoop, final String routeKey,
+            final InetSocketAddress address) {
+        this.transport = transport;
+        this.eventLoop = eventLoop;
+        this.routeKey = routeKey;
+        this.address = address;
+    }
+
+    @Override
+    public NioEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    String getRouteKey() {
+        return routeKey;
+    }
+
+    void connect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            connecting = !channel.connect(address);
+            key = channel.register(eventLoop.getSelector(), connecting ? SelectionKey.OP_CONNECT : 0, this);
+            eventLoop.add(this);
+        } catch (IOException e) {
+            close(e);
+            return;
+        }
+
+        // Prior knowledge, the connection starts out as HTTP/2 without an upgrade
+        outputs.add(ByteBuffer.wrap(PREFACE));
+
+        ByteBuffer settings = frame(18, TYPE_SETTINGS, 0, 0);
+        settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        settings.putShort((short) SETTINGS_HEADER_TABLE_SIZE).putInt(HEADER_TABLE_SIZE);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_RECEIVE_WINDOW);
+        send(settings);
+
+        send(windowUpdate(0, CONNECTION_RECEIVE_WINDOW - DEFAULT_WINDOW_SIZE));
+
+        if (connecting) {
+            deadline = System.currentTimeMillis() + transport.getConnectionTimeout();
+        } else {
+            idle();
+        }
+    }
+
+    void start(final NioExchange exchange) {
+        // Nothing gets through a connection that couldn't be set up
+        if (failure != null) {
+            exchange.fail(failure);
+            return;
+        }
+
+        // The connection has been closed or is shutting down, the transport picks another one
+        if (closed || goingAway) {
+            transport.submit(exchange);
+            return;
+        }
+
+        // Aborted before it got here
+        if (exchange.isCompleted()) {
+            return;
+        }
+
+        exchange.setConnection(this);
+        queued.add(exchange);
+        openStreams();
+    }
+
+    @Override
+    public void abort(final NioExchange exchange) {
+        if (queued.remove(exchange)) {
+            queuedStreams = queued.size();
+            return;
+        }
+
+        for (Stream stream : new ArrayList<Stream>(streams.values())) {
+            if (stream.exchange == exchange) {
+                reset(stream, ERROR_CANCEL);
+            }
+        }
+
+        openStreams();
+    }
+
+    @Override
+    public void handle(final SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                finishConnect();
+            }
+
+            if (!closed && key.isWritable()) {
+                write();
+            }
+
+            if (!closed && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            // Never let a single connection take the event loop down
+            close(new IOException(e.toString()));
+        }
+    }
+
+    @Override
+    public void checkTimeout(final long now) {
+        if (closed) {
+            return;
+        }
+
+        if (connecting) {
+            if (now >= deadline) {
+                close(new ConnectTimeoutException("Connect to " + address + " timed out"));
+            }
+
+            return;
+        }
+
+        for (Stream stream : new ArrayList<Stream>(streams.values())) {
+            if (now >= stream.deadline) {
+                reset(stream, ERROR_CANCEL);
+                stream.exchange.fail(new SocketTimeoutException("Read timed out"));
+            }
+        }
+
+        openStreams();
+
+        // Kept alive for long enough without being used
+        if (streams.isEmpty() && queued.isEmpty() && now >= deadline) {
+            close(null);
+        }
+    }
+
+    @Override
+    public void close(final IOException e) {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        // Requests that arrive after a failed connect fail the same way rather than trying again
+        if (connecting || key == null) {
+            failure = e;
+        }
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+        }
+
+        eventLoop.remove(this);
+        transport.connectionClosed(this);
+
+        List<Stream> unfinished = new ArrayList<Stream>(streams.values());
+        streams.clear();
+        sending.clear();
+        activeStreams = 0;
+
+        for (Stream stream : unfinished) {
+            // The server may have closed an idle connection just as the request was written, a
+            // request that got no response at all can be sent again if it is idempotent
+            if (stream.response == null && e == null && transport.retry(stream.exchange, false)) {
+                continue;
+            }
+
+            stream.exchange.fail(e != null ? e : new IOException("Connection closed"));
+        }
+
+        List<NioExchange> waiting = new ArrayList<NioExchange>(queued);
+        queued.clear();
+        queuedStreams = 0;
+
+        // Requests that never got a stream haven't been sent at all
+        for (NioExchange exchange : waiting) {
+            if (e != null) {
+                exchange.fail(e);
+            } else {
+                transport.submit(exchange);
+            }
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        if (!channel.finishConnect()) {
+            return;
+        }
+
+        connecting = false;
+
+        for (Stream stream : streams.values()) {
+            stream.deadline = System.currentTimeMillis() + transport.getSocketTimeout();
+        }
+
+        if (streams.isEmpty()) {
+            idle();
+        }
+
+        key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+    }
+
+    private void idle() {
+        deadline = System.currentTimeMillis() + transport.getKeepAliveTimeout();
+    }
+
+    // Gives queued requests a stream as long as the server allows more concurrent streams
+    private void openStreams() {
+        while (!closed && !goingAway && !queued.isEmpty() && streams.size() < maxConcurrentStreams) {
+            NioExchange exchange = queued.removeFirst();
+
+            if (exchange.isCompleted()) {
+                continue;
+            }
+
+            if (nextStreamId > MAX_STREAM_ID - 2) {
+                // Out of stream ids, new requests go to a new connection
+                queued.addFirst(exchange);
+                goAway(0);
+                break;
+            }
+
+            open(exchange);
+        }
+
+        queuedStreams = queued.size();
+        activeStreams = streams.size();
+    }
+
+    private void open(final NioExchange exchange) {
+        Stream stream = new Stream(nextStreamId, exchange);
+        nextStreamId += 2;
+
+        byte[] block = encoder.encode(getRequestHeaders(exchange));
+        byte[] body = exchange.getBody();
+        boolean endStream = body == null || body.length == 0;
+        int weight = getWeight(exchange);
+        int priorityLength = weight > 0 ? 5 : 0;
+        int offset = 0;
+        int length = Math.min(block.length, maxFrameSize - priorityLength);
+        int flags = (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0);
+
+        ByteBuffer headers = frame(priorityLength + length, TYPE_HEADERS, flags | (weight > 0 ? FLAG_PRIORITY : 0),
+                stream.id);
+
+        if (weight > 0) {
+            // Not exclusive, depending on the connection as a whole
+            headers.putInt(0).put((byte) (weight - 1));
+        }
+
+        headers.put(block, offset, length);
+        send(headers);
+        offset += length;
+
+        while (offset < block.length) {
+            length = Math.min(block.length - offset, maxFrameSize);
+
+            ByteBuffer continuation = frame(length, TYPE_CONTINUATION,
+                    offset + length == block.length ? FLAG_END_HEADERS : 0, stream.id);
+            continuation.put(block, offset, length);
+            send(continuation);
+            offset += length;
+        }
+
+        streams.put(stream.id, stream);
+
+        if (!endStream) {
+            stream.body = body;
+            sending.add(stream);
+            Collections.sort(sending, WEIGHT_ORDER);
+            sendData();
+        }
+    }
+
+    // Writes request bodies as far as the flow control windows allow, highest weight first
+    private void sendData() {
+        for (int i = 0; i < sending.size() && sendWindow > 0; i++) {
+            Stream stream = sending.get(i);
+
+            while (stream.bodyOffset < stream.body.length && stream.sendWindow > 0 && sendWindow > 0) {
+                int length = (int) Math.min(Math.min(stream.body.length - stream.bodyOffset, maxFrameSize),
+                        Math.min(stream.sendWindow, sendWindow));
+                boolean last = stream.bodyOffset + length == stream.body.length;
+
+                // The body is written from the request's own array
+                send(frameHeader(length, TYPE_DATA, last ? FLAG_END_STREAM : 0, stream.id));
+                outputs.add(ByteBuffer.wrap(stream.body, stream.bodyOffset, length));
+
+                stream.bodyOffset += length;
+                stream.sendWindow -= length;
+                sendWindow -= length;
+            }
+
+            if (stream.bodyOffset == stream.body.length) {
+                sending.remove(i--);
+            }
+        }
+    }
+
+    private List<Header> getRequestHeaders(final NioExchange exchange) {
+        List<Header> headers = new ArrayList<Header>();
+        String authority = exchange.getAuthority();
+
+        for (Header header : exchange.getRequest().getAllHeaders()) {
+            if ("Host".equalsIgnoreCase(header.getName())) {
+                authority = header.getValue();
+            }
+        }
+
+        headers.add(new BasicHeader(":method", exchange.getRequest().getMethod()));
+        headers.add(new BasicHeader(":scheme", "http"));
+        headers.add(new BasicHeader(":authority", authority));
+        headers.add(new BasicHeader(":path", exchange.getPath()));
+
+        for (Header header : exchange.getRequest().getAllHeaders()) {
+            String name = header.getName().toLowerCase(Locale.US);
+
+            // Connection specific headers are not allowed in HTTP/2
+            if (!"host".equals(name) && !"connection".equals(name) && !"keep-alive".equals(name)
+                    && !"proxy-connection".equals(name) && !"transfer-encoding".equals(name)
+                    && !"upgrade".equals(name) && !"te".equals(name)) {
+                headers.add(new BasicHeader(name, header.getValue()));
+            }
+        }
+
+        if (exchange.getContentType() != null) {
+            headers.add(new BasicHeader("content-type", exchange.getContentType().getValue()));
+        }
+
+        if (exchange.getContentEncoding() != null) {
+            headers.add(new BasicHeader("content-encoding", exchange.getContentEncoding().getValue()));
+        }
+
+        if (exchange.hasEntity()) {
+            byte[] body = exchange.getBody();
+            headers.add(new BasicHeader("content-length", String.valueOf(body != null ? body.length : 0)));
+        }
+
+        return headers;
+    }
+
+    // The stream weight for the operation's priority, or 0 to leave it at the default
+    static int getWeight(final NioExchange exchange) {
+        Object priority = exchange.getRequest().getParams().getParameter(Transport.PRIORITY);
+
+        if (priority == NetworkOperation.Priority.IMMEDIATE) {
+            return 256;
+        } else if (priority == NetworkOperation.Priority.NORMAL) {
+            return 16;
+        } else if (priority == NetworkOperation.Priority.BACKGROUND) {
+            return 1;
+        }
+
+        return 0;
+    }
+
+    private void write() throws IOException {
+        if (!outputs.isEmpty()) {
+            channel.write(outputs.toArray(new ByteBuffer[outputs.size()]));
+
+            while (!outputs.isEmpty() && !outputs.getFirst().hasRemaining()) {
+                outputs.removeFirst();
+            }
+        }
+
+        if (outputs.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = eventLoop.getReadBuffer();
+        buffer.clear();
+
+        int count = channel.read(buffer);
+
+        if (count == -1) {
+            close(null);
+            return;
+        }
+
+        buffer.flip();
+
+        if (input.remaining() < buffer.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(input.position() + buffer.remaining());
+            input.flip();
+            larger.put(input);
+            input = larger;
+        }
+
+        input.put(buffer);
+        input.flip();
+
+        while (!closed && input.remaining() >= FRAME_HEADER_SIZE) {
+            int length = input.getInt(input.position()) >>> 8;
+
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                throw new IOException("Frame too large: " + length);
+            }
+
+            if (input.remaining() < FRAME_HEADER_SIZE + length) {
+                break;
+            }
+
+            input.position(input.position() + 3);
+
+            int type = input.get() & 0xff;
+            int flags = input.get() & 0xff;
+            int streamId = input.getInt() & MAX_STREAM_ID;
+            byte[] payload = new byte[length];
+            input.get(payload);
+
+            handleFrame(type, flags, streamId, payload);
+        }
+
+        if (closed) {
+            return;
+        }
+
+        input.compact();
+
+        // Back to the regular size once an oversized read has been handled
+        if (input.position() == 0 && input.capacity() > FRAME_HEADER_SIZE + DEFAULT_MAX_FRAME_SIZE) {
+            input = ByteBuffer.allocate(FRAME_HEADER_SIZE + DEFAULT_MAX_FRAME_SIZE);
+        }
+    }
+
+    private void handleFrame(final int type, final int flags, final int streamId, final byte[] payload)
+        throws IOException {
+        if (headerBlock != null && (type != TYPE_CONTINUATION || streamId != headerBlockStreamId)) {
+            throw new IOException("Expected a CONTINUATION frame");
+        }
+
+        switch (type) {
+            case TYPE_DATA :
+                handleData(flags, streamId, payload);
+                break;
+            case TYPE_HEADERS :
+                handleHeaders(flags, streamId, payload);
+                break;
+            case TYPE_CONTINUATION :
+                if (headerBlock == null) {
+                    throw new IOException("Unexpected CONTINUATION frame");
+                }
+
+                headerBlock.write(payload, 0, payload.length);
+
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    byte[] block = headerBlock.toByteArray();
+                    headerBlock = null;
+                    headersComplete(headerBlockStreamId, block, headerBlockEndStream);
+                }
+
+                break;
+            case TYPE_RST_STREAM :
+                handleReset(streamId, payload);
+                break;
+            case TYPE_SETTINGS :
+                handleSettings(flags, payload);
+                break;
+            case TYPE_PUSH_PROMISE :
+                throw new IOException("Server push was not enabled");
+            case TYPE_PING :
+                if ((flags & FLAG_ACK) == 0) {
+                    ByteBuffer ping = frame(payload.length, TYPE_PING, FLAG_ACK, 0);
+                    ping.put(payload);
+                    send(ping);
+                }
+
+                break;
+            case TYPE_GOAWAY :
+                handleGoAway(payload);
+                break;
+            case TYPE_WINDOW_UPDATE :
+                handleWindowUpdate(streamId, payload);
+                break;
+            default :
+                // Unknown frame types, and PRIORITY, are ignored
+                break;
+        }
+    }
+
+    private void handleData(final int flags, final int streamId, final byte[] payload) throws IOException {
+        Stream stream = streams.get(streamId);
+
+        // Padding counts against the flow control window as well
+        receiveConsumed += payload.length;
+
+        if (receiveConsumed >= CONNECTION_RECEIVE_WINDOW / 2) {
+            send(windowUpdate(0, receiveConsumed));
+            receiveConsumed = 0;
+        }
+
+        // Data for a stream that has been reset
+        if (stream == null) {
+            return;
+        }
+
+        if (stream.response == null) {
+            reset(stream, ERROR_PROTOCOL);
+            stream.exchange.fail(new IOException("DATA before HEADERS"));
+            return;
+        }
+
+        int start = 0;
+        int end = payload.length;
+
+        if ((flags & FLAG_PADDED) != 0) {
+            start = 1;
+            end -= payload.length > 0 ? payload[0] & 0xff : 0;
+
+            if (end < start) {
+                throw new IOException("Invalid padding");
+            }
+        }
+
+        long maxResponseSize = stream.exchange.getMaxResponseSize();
+
+        // The rest of a body that is too large isn't received at all
+        if (maxResponseSize >= 0 && stream.data.size() + end - start > maxResponseSize) {
+            refuse(stream, maxResponseSize);
+            return;
+        }
+
+        stream.data.write(payload, start, end - start);
+        stream.receiveConsumed += payload.length;
+        stream.deadline = System.currentTimeMillis() + transport.getSocketTimeout();
+
+        if ((flags & FLAG_END_STREAM) != 0) {
+            complete(stream);
+        } else if (stream.receiveConsumed >= STREAM_RECEIVE_WINDOW / 2) {
+            send(windowUpdate(stream.id, stream.receiveConsumed));
+            stream.receiveConsumed = 0;
+        }
+    }
+
+    private void handleHeaders(final int flags, final int streamId, final byte[] payload) throws IOException {
+        int start = 0;
+        int end = payload.length;
+
+        if ((flags & FLAG_PADDED) != 0) {
+            start = 1;
+            end -= payload.length > 0 ? payload[0] & 0xff : 0;
+        }
+
+        if ((flags & FLAG_PRIORITY) != 0) {
+            start += 5;
+        }
+
+        if (end < start) {
+            throw new IOException("Invalid HEADERS frame");
+        }
+
+        headerBlock = new ByteArrayOutputStream();
+        headerBlock.write(payload, start, end - start);
+        headerBlockStreamId = streamId;
+        headerBlockEndStream = (flags & FLAG_END_STREAM) != 0;
+
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            byte[] block = headerBlock.toByteArray();
+            headerBlock = null;
+            headersComplete(streamId, block, headerBlockEndStream);
+        }
+    }
+
+    private void headersComplete(final int streamId, final byte[] block, final boolean endStream)
+        throws IOException {
+        // Always decoded, even for a stream that has been reset, to keep the tables in sync
+        List<Header> headers = decoder.decode(block);
+        Stream stream = streams.get(streamId);
+
+        if (stream == null) {
+            return;
+        }
+
+        stream.deadline = System.currentTimeMillis() + transport.getSocketTimeout();
+
+        // Trailers are dropped
+        if (stream.response == null) {
+            int statusCode = -1;
+            List<Header> fields = new ArrayList<Header>();
+
+            for (Header header : headers) {
+                if (":status".equals(header.getName())) {
+                    try {
+                        statusCode = Integer.parseInt(header.getValue());
+                    } catch (NumberFormatException e) {
+                        statusCode = -1;
+                    }
+                } else if (!header.getName().startsWith(":")) {
+                    fields.add(header);
+                }
+            }
+
+            if (statusCode < 100 || statusCode > 999) {
+                reset(stream, ERROR_PROTOCOL);
+                stream.exchange.fail(new IOException("Invalid response status"));
+                return;
+            }
+
+            // Interim responses are followed by the real one
+            if (statusCode < 200) {
+                return;
+            }
+
+            stream.response = new BasicHttpResponse(new BasicStatusLine(HTTP_2, statusCode,
+                    EnglishReasonPhraseCatalog.INSTANCE.getReason(statusCode, Locale.US)));
+
+            for (Header header : fields) {
+                stream.response.addHeader(header);
+            }
+
+            long maxResponseSize = stream.exchange.getMaxResponseSize();
+
+            if (maxResponseSize >= 0 && getContentLength(stream.response) > maxResponseSize) {
+                refuse(stream, maxResponseSize);
+                return;
+            }
+        }
+
+        if (endStream) {
+            complete(stream);
+        }
+    }
+
+    private void handleReset(final int streamId, final byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new IOException("Invalid RST_STREAM frame");
+        }
+
+        Stream stream = streams.remove(streamId);
+
+        if (stream == null) {
+            return;
+        }
+
+        sending.remove(stream);
+
+        int errorCode = ByteBuffer.wrap(payload).getInt();
+
+        // A refused stream was never processed, so sending it again is safe for any method
+        if (errorCode != ERROR_REFUSED_STREAM || !transport.retry(stream.exchange, true)) {
+            stream.exchange.fail(new IOException("Stream reset by server, error " + errorCode));
+        }
+
+        openStreams();
+
+        if (streams.isEmpty()) {
+            idle();
+        }
+    }
+
+    private void handleSettings(final int flags, final byte[] payload) throws IOException {
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+
+        if (payload.length % 6 != 0) {
+            throw new IOException("Invalid SETTINGS frame");
+        }
+
+        ByteBuffer settings = ByteBuffer.wrap(payload);
+
+        while (settings.hasRemaining()) {
+            int id = settings.getShort() & 0xffff;
+            int value = settings.getInt();
+
+            if (id == SETTINGS_HEADER_TABLE_SIZE) {
+                encoder.setMaxTableSize(Math.min(value & MAX_STREAM_ID, HEADER_TABLE_SIZE));
+            } else if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+                maxConcurrentStreams = value & MAX_STREAM_ID;
+            } else if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                if (value < 0) {
+                    throw new IOException("Invalid initial window size");
+                }
+
+                // Applies to the streams already open as well
+                for (Stream stream : streams.values()) {
+                    stream.sendWindow += value - initialSendWindow;
+                }
+
+                initialSendWindow = value;
+            } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                    throw new IOException("Invalid max frame size");
+                }
+
+                maxFrameSize = value;
+            }
+        }
+
+        send(frame(0, TYPE_SETTINGS, FLAG_ACK, 0));
+
+        openStreams();
+        sendData();
+    }
+
+    private void handleGoAway(final byte[] payload) throws IOException {
+        if (payload.length < 8) {
+            throw new IOException("Invalid GOAWAY frame");
+        }
+
+        goAway(ByteBuffer.wrap(payload).getInt() & MAX_STREAM_ID);
+    }
+
+    private void handleWindowUpdate(final int streamId, final byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new IOException("Invalid WINDOW_UPDATE frame");
+        }
+
+        int increment = ByteBuffer.wrap(payload).getInt() & MAX_STREAM_ID;
+
+        if (streamId == 0) {
+            sendWindow += increment;
+        } else {
+            Stream stream = streams.get(streamId);
+
+            if (stream != null) {
+                stream.sendWindow += increment;
+            }
+        }
+
+        sendData();
+    }
+
+    // Stops taking new streams, the ones above the last stream the server will process are sent
+    // again on another connection
+    private void goAway(final int lastStreamId) {
+        if (!goingAway) {
+            goingAway = true;
+            transport.goingAway(this);
+        }
+
+        List<Stream> unprocessed = new ArrayList<Stream>();
+
+        for (Stream stream : streams.values()) {
+            if (stream.id > lastStreamId) {
+                unprocessed.add(stream);
+            }
+        }
+
+        for (Stream stream : unprocessed) {
+            streams.remove(stream.id);
+            sending.remove(stream);
+
+            if (!transport.retry(stream.exchange, true)) {
+                stream.exchange.fail(new IOException("Connection shut down by server"));
+            }
+        }
+
+        List<NioExchange> waiting = new ArrayList<NioExchange>(queued);
+        queued.clear();
+        queuedStreams = 0;
+        activeStreams = streams.size();
+
+        for (NioExchange exchange : waiting) {
+            transport.submit(exchange);
+        }
+
+        if (streams.isEmpty()) {
+            close(null);
+        }
+    }
+
+    private void complete(final Stream stream) {
+        streams.remove(stream.id);
+        sending.remove(stream);
+
+        HttpResponse response = stream.response;
+
+        if (response == null) {
+            stream.data.release();
+            stream.exchange.fail(new IOException("Stream ended without a response"));
+        } else {
+            int statusCode = response.getStatusLine().getStatusCode();
+
+            if (stream.exchange.isHeadRequest() || statusCode == 204 || statusCode == 304) {
+                stream.data.release();
+            } else {
+                BasicHttpEntity entity = new BasicHttpEntity();
+                entity.setContent(stream.data.toInputStream());
+                entity.setContentLength(stream.data.size());
+                entity.setContentType(response.getFirstHeader("Content-Type"));
+                entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+                response.setEntity(entity);
+            }
+        }
+
+        openStreams();
+
+        if (streams.isEmpty()) {
+            if (goingAway) {
+                close(null);
+            } else {
+                idle();
+            }
+        }
+
+        if (response != null) {
+            stream.exchange.succeed(response);
+        }
+    }
+
+    private void refuse(final Stream stream, final long maxResponseSize) {
+        reset(stream, ERROR_CANCEL);
+        stream.data.release();
+        stream.exchange.fail(new ResponseTooLargeException(maxResponseSize));
+        openStreams();
+    }
+
+    private void reset(final Stream stream, final int errorCode) {
+        if (streams.remove(stream.id) == null) {
+            return;
+        }
+
+        sending.remove(stream);
+        activeStreams = streams.size();
+
+        ByteBuffer reset = frame(4, TYPE_RST_STREAM, 0, stream.id);
+        reset.putInt(errorCode);
+        send(reset);
+
+        if (streams.isEmpty()) {
+            idle();
+        }
+    }
+
+    private void send(final ByteBuffer frame) {
+        frame.flip();
+        outputs.add(frame);
+
+        if (!connecting && !closed) {
+            key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+        }
+    }
+
+    // -1 if the response has no valid Content-Length
+    private static long getContentLength(final HttpResponse response) {
+        Header header = response.getFirstHeader("Content-Length");
+
+        if (header == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(header.getValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // A frame with room for its payload after the header
+    private static ByteBuffer frame(final int length, final int type, final int flags, final int streamId) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+        putFrameHeader(frame, length, type, flags, streamId);
+
+        return frame;
+    }
+
+    // Just the header of a frame whose payload is written from another buffer
+    private static ByteBuffer frameHeader(final int length, final int type, final int flags, final int streamId) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        putFrameHeader(frame, length, type, flags, streamId);
+
+        return frame;
+    }
+
+    private static void putFrameHeader(final ByteBuffer frame, final int length, final int type, final int flags,
+            final int streamId) {
+        frame.putInt((length << 8) | type);
+        frame.put((byte) flags);
+        frame.putInt(streamId);
+    }
+
+    private static ByteBuffer windowUpdate(final int streamId, final int increment) {
+        ByteBuffer frame = frame(4, TYPE_WINDOW_UPDATE, 0, streamId);
+        frame.putInt(increment);
+
+        return frame;
+    }
+
+    private static final Comparator<Stream> WEIGHT_ORDER = new Comparator<Stream>() {
+        @Override
+        public int compare(final Stream lhs, final Stream rhs) {
+            return getWeight(rhs.exchange) - getWeight(lhs.exchange);
+        }
+    };
+
+    private class Stream {
+        private final int id;
+        private final NioExchange exchange;
+        private final PooledOutputStream data = new PooledOutputStream();
+        private HttpResponse response;
+        private byte[] body;
+        private int bodyOffset = 0;
+        private long sendWindow = initialSendWindow;
+        private int receiveConsumed = 0;
+        private long deadline = System.currentTimeMillis() + transport.getSocketTimeout();
+
+        Stream(final int id, final NioExchange exchange) {
+            this.id = id;
+            this.exchange = exchange;
+        }
+    }
+}
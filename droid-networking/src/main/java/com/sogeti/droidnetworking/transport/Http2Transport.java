@@ -0,0 +1,260 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+import com.sogeti.droidnetworking.ConnectionPoolStats;
+
+/**
+ * Cleartext HTTP/2 transport (h2c with prior knowledge). All requests to a host are
+ * multiplexed over a single connection, with headers compressed by HPACK and each stream
+ * weighted by the operation's priority. Response bodies are read in full before the response
+ * is handed back.
+ *
+ * The server must accept HTTP/2 without an upgrade. Only plain HTTP is handled, other requests
+ * go to the fallback transport.
+ */
+public class Http2Transport implements AsyncTransport {
+    private static final int DEFAULT_EVENT_LOOPS = 1;
+    private static final int DEFAULT_TIMEOUT = 5000;
+    private static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 60000;
+
+    private final int connectionTimeout;
+    private final int socketTimeout;
+    private final NioEventLoopGroup eventLoops;
+    private long keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private Transport fallbackTransport;
+    private boolean shutdown = false;
+
+    // The connection new requests to a route go to
+    private final Map<String, Http2Connection> connections = new HashMap<String, Http2Connection>();
+    private long leaseCount = 0;
+    private long reuseCount = 0;
+
+    public Http2Transport() {
+        this(DEFAULT_EVENT_LOOPS, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+
+    public Http2Transport(final int eventLoops, final int connectionTimeout, final int socketTimeout) {
+        this.eventLoops = new NioEventLoopGroup("Http2Transport", eventLoops);
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+
+    public void setKeepAliveTimeout(final long keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public void setFallbackTransport(final Transport fallbackTransport) {
+        this.fallbackTransport = fallbackTransport;
+    }
+
+    int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    @Override
+    public boolean supportsAsync(final HttpUriRequest request) {
+        return "http".equalsIgnoreCase(request.getURI().getScheme());
+    }
+
+    @Override
+    public HttpResponse execute(final HttpUriRequest request) throws IOException {
+        if (!supportsAsync(request)) {
+            if (fallbackTransport == null) {
+                throw new IOException("Unsupported scheme: " + request.getURI().getScheme());
+            }
+
+            return fallbackTransport.execute(request);
+        }
+
+        BlockingResponseCallback callback = new BlockingResponseCallback();
+
+        execute(request, callback);
+
+        return callback.await(request);
+    }
+
+    @Override
+    public void execute(final HttpUriRequest request, final ResponseCallback callback) {
+        final NioExchange exchange;
+
+        try {
+            exchange = new NioExchange(request, callback);
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+
+        if (request instanceof AbortableHttpRequest) {
+            try {
+                ((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+                    @Override
+                    public void releaseConnection() throws IOException {
+                    }
+
+                    @Override
+                    public void abortConnection() throws IOException {
+                        abort(exchange);
+                    }
+                });
+            } catch (IOException e) {
+                // Already aborted
+                callback.onFailure(e);
+                return;
+            }
+        }
+
+        submit(exchange);
+    }
+
+    // Every stream counts as a lease, the ones on an already open connection as reused
+    @Override
+    public ConnectionPoolStats getConnectionPoolStats() {
+        int leased = 0;
+        int available = 0;
+        int pending = 0;
+
+        synchronized (this) {
+            for (Http2Connection connection : connections.values()) {
+                leased += connection.activeStreams;
+                pending += connection.queuedStreams;
+
+                if (connection.activeStreams == 0) {
+                    available++;
+                }
+            }
+
+            return new ConnectionPoolStats(leased, available, pending, leaseCount, reuseCount);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            connections.clear();
+            eventLoops.shutdown();
+        }
+    }
+
+    // Hands the exchange to the route's connection, opening one if there is none
+    void submit(final NioExchange exchange) {
+        final Http2Connection connection;
+        final boolean connect;
+
+        synchronized (this) {
+            if (shutdown) {
+                connection = null;
+                connect = false;
+            } else {
+                Http2Connection existing = connections.get(exchange.getRouteKey());
+
+                if (existing != null) {
+                    connection = existing;
+                    connect = false;
+                    reuseCount++;
+                } else {
+                    try {
+                        connection = new Http2Connection(this, eventLoops.next(), exchange.getRouteKey(),
+                                exchange.getAddress());
+                    } catch (IOException e) {
+                        exchange.fail(e);
+                        return;
+                    }
+
+                    connections.put(exchange.getRouteKey(), connection);
+                    connect = true;
+                }
+
+                leaseCount++;
+            }
+        }
+
+        if (connection == null) {
+            exchange.fail(new IOException("Transport shut down"));
+            return;
+        }
+
+        connection.getEventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connect) {
+                    connection.connect();
+                }
+
+                connection.start(exchange);
+            }
+        });
+    }
+
+    // Sends an exchange again on another connection. A request the server never processed, as
+    // told by a refused stream or a GOAWAY, is safe to send again whatever its method.
+    boolean retry(final NioExchange exchange, final boolean unprocessed) {
+        if (exchange.isCompleted() || exchange.isRetried() || (!unprocessed && !exchange.isIdempotent())) {
+            return false;
+        }
+
+        exchange.setRetried();
+        submit(exchange);
+
+        return true;
+    }
+
+    // Called on the connection's event loop when it stops taking new streams
+    void goingAway(final Http2Connection connection) {
+        connectionClosed(connection);
+    }
+
+    // Called on the connection's event loop once it has been closed
+    synchronized void connectionClosed(final Http2Connection connection) {
+        if (connections.get(connection.getRouteKey()) == connection) {
+            connections.remove(connection.getRouteKey());
+        }
+    }
+
+    void abort(final NioExchange exchange) {
+        exchange.fail(new IOException("Request aborted"));
+
+        final NioChannelHandler connection = exchange.getConnection();
+
+        if (connection != null) {
+            connection.getEventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.abort(exchange);
+                }
+            });
+        }
+    }
+}
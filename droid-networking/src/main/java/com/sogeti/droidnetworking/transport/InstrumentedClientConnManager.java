@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpParams;
+
+import com.sogeti.droidnetworking.ConnectionPoolStats;
+
+/**
+ * Connection manager that keeps track of how connections are leased from the pool.
+ */
+class InstrumentedClientConnManager extends ThreadSafeClientConnManager {
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong leaseCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+
+    public InstrumentedClientConnManager(final HttpParams params, final SchemeRegistry schemeRegistry) {
+        super(params, schemeRegistry);
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+        final ClientConnectionRequest request = super.requestConnection(route, state);
+
+        return new ClientConnectionRequest() {
+            @Override
+            public ManagedClientConnection getConnection(final long timeout, final TimeUnit tunit)
+                    throws InterruptedException, ConnectionPoolTimeoutException {
+                ManagedClientConnection connection;
+
+                pending.incrementAndGet();
+
+                try {
+                    connection = request.getConnection(timeout, tunit);
+                } finally {
+                    pending.decrementAndGet();
+                }
+
+                leased.incrementAndGet();
+                leaseCount.incrementAndGet();
+
+                // A connection handed out already open has been kept alive from an earlier request
+                if (connection.isOpen()) {
+                    reuseCount.incrementAndGet();
+                }
+
+                return connection;
+            }
+
+            @Override
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(final ManagedClientConnection connection, final long validDuration,
+            final TimeUnit timeUnit) {
+        try {
+            super.releaseConnection(connection, validDuration, timeUnit);
+        } finally {
+            leased.decrementAndGet();
+        }
+    }
+
+    public ConnectionPoolStats getStats() {
+        int leasedNow = leased.get();
+        int available = Math.max(0, getConnectionsInPool() - leasedNow);
+
+        return new ConnectionPoolStats(leasedNow, available, pending.get(), leaseCount.get(), reuseCount.get());
+    }
+}
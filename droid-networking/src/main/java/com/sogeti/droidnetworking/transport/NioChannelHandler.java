@@ -0,0 +1,36 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * A channel registered with an event loop. All methods are called on that event loop.
+ */
+interface NioChannelHandler {
+    NioEventLoop getEventLoop();
+
+    void handle(final SelectionKey key);
+
+    void checkTimeout(final long now);
+
+    void close(final IOException e);
+
+    // The exchange has been aborted while it was assigned to this channel
+    void abort(final NioExchange exchange);
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * A non-blocking HTTP/1.1 connection. Only used from its event loop thread, apart from the pool
+ * state that is guarded by the transport.
+ */
+class NioConnection implements NioChannelHandler {
+    private final NioTransport transport;
+    private final NioEventLoop eventLoop;
+    private final String routeKey;
+    private final InetSocketAddress address;
+    private final ResponseDecoder decoder = new ResponseDecoder();
+    // Requests written or being written, oldest first
+    private final LinkedList<NioExchange> exchanges = new LinkedList<NioExchange>();
+    // Requests still to be written, they go out back-to-back when pipelining
+    private final LinkedList<ByteBuffer> outputs = new LinkedList<ByteBuffer>();
+    private SocketChannel channel;
+    private SelectionKey key;
+    private long deadline = 0;
+    private boolean connecting = false;
+    private boolean closed = false;
+    private int responseCount = 0;
+
+    // Guarded by the transport
+    int leased = 0;
+    boolean pipelinable = false;
+    boolean pipelineBlocked = false;
+
+    NioConnection(final NioTransport transport, final NioEventLoop eventLoop, final String routeKey,
+            final InetSocketAddress address) {
+        this.transport = transport;
+        this.eventLoop = eventLoop;
+        this.routeKey = routeKey;
+        this.address = address;
+    }
+
+    @Override
+    public NioEventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    String getRouteKey() {
+        return routeKey;
+    }
+
+    void connect(final NioExchange exchange) {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            connecting = !channel.connect(address);
+            key = channel.register(eventLoop.getSelector(), connecting ? SelectionKey.OP_CONNECT : 0, this);
+            eventLoop.add(this);
+        } catch (IOException e) {
+            exchanges.add(exchange);
+            close(e);
+            return;
+        }
+
+        if (connecting) {
+            deadline = System.currentTimeMillis() + transport.getConnectionTimeout();
+        }
+
+        start(exchange);
+    }
+
+    void start(final NioExchange exchange) {
+        // The connection was closed by the server while the exchange was on its way here
+        if (closed) {
+            transport.submit(exchange);
+            return;
+        }
+
+        // Aborted before it could be written
+        if (exchange.isCompleted()) {
+            transport.release(this, false);
+            return;
+        }
+
+        ByteBuffer output;
+
+        try {
+            output = exchange.newRequestBuffer();
+        } catch (IOException e) {
+            exchange.fail(e);
+            transport.release(this, false);
+            return;
+        }
+
+        exchange.setConnection(this);
+
+        boolean first = exchanges.isEmpty();
+
+        if (first) {
+            decoder.reset(exchange.isHeadRequest(), exchange.getMaxResponseSize());
+        }
+
+        exchanges.add(exchange);
+        outputs.add(output);
+
+        if (!connecting) {
+            key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+
+            // A pipelined request doesn't give the responses ahead of it more time
+            if (first) {
+                deadline = System.currentTimeMillis() + transport.getSocketTimeout();
+            }
+        }
+    }
+
+    @Override
+    public void abort(final NioExchange exchange) {
+        if (exchanges.contains(exchange)) {
+            close(new IOException("Request aborted"), false);
+        }
+    }
+
+    @Override
+    public void handle(final SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                finishConnect();
+            }
+
+            if (!closed && key.isWritable()) {
+                write();
+            }
+
+            if (!closed && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            // Never let a single connection take the event loop down
+            close(new IOException(e.toString()));
+        }
+    }
+
+    @Override
+    public void checkTimeout(final long now) {
+        if (closed || deadline == 0 || now < deadline) {
+            return;
+        }
+
+        if (connecting) {
+            close(new ConnectTimeoutException("Connect to " + address + " timed out"));
+        } else if (!exchanges.isEmpty()) {
+            close(new SocketTimeoutException("Read timed out"));
+        } else {
+            // Kept alive for long enough without being used
+            close(null);
+        }
+    }
+
+    @Override
+    public void close(final IOException e) {
+        // Losing the connection with more than one request outstanding means the server doesn't
+        // handle pipelining well
+        close(e, exchanges.size() > 1);
+    }
+
+    private void close(final IOException e, final boolean pipelineFailed) {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+        }
+
+        eventLoop.remove(this);
+        transport.connectionClosed(this, pipelineFailed);
+
+        List<NioExchange> unfinished = new ArrayList<NioExchange>(exchanges);
+        exchanges.clear();
+
+        for (int i = 0; i < unfinished.size(); i++) {
+            NioExchange exchange = unfinished.get(i);
+
+            // A kept alive connection may have been closed by the server just as the request was
+            // written, a request that got no response at all can safely be sent again
+            boolean unanswered = i > 0 || !decoder.hasStarted();
+
+            if (unanswered && (responseCount > 0 || i > 0) && transport.retry(exchange, i > 0)) {
+                continue;
+            }
+
+            exchange.fail(e != null ? e : new IOException("Connection closed"));
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        if (!channel.finishConnect()) {
+            return;
+        }
+
+        connecting = false;
+
+        if (exchanges.isEmpty()) {
+            idle();
+        } else {
+            key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+            deadline = System.currentTimeMillis() + transport.getSocketTimeout();
+        }
+    }
+
+    private void write() throws IOException {
+        if (!outputs.isEmpty()) {
+            channel.write(outputs.toArray(new ByteBuffer[outputs.size()]));
+
+            while (!outputs.isEmpty() && !outputs.getFirst().hasRemaining()) {
+                outputs.removeFirst();
+            }
+        }
+
+        if (outputs.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        deadline = System.currentTimeMillis() + transport.getSocketTimeout();
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = eventLoop.getReadBuffer();
+        buffer.clear();
+
+        int count = channel.read(buffer);
+
+        if (count == -1) {
+            endOfInput();
+            return;
+        }
+
+        buffer.flip();
+
+        if (exchanges.isEmpty()) {
+            // Nothing may arrive on an idle connection
+            if (buffer.hasRemaining()) {
+                close(null);
+            }
+
+            return;
+        }
+
+        deadline = System.currentTimeMillis() + transport.getSocketTimeout();
+
+        while (!closed && !exchanges.isEmpty() && buffer.hasRemaining()) {
+            HttpResponse response = decoder.decode(buffer);
+
+            if (response == null) {
+                break;
+            }
+
+            responseComplete(response, buffer.hasRemaining());
+        }
+    }
+
+    private void endOfInput() throws IOException {
+        if (exchanges.isEmpty()) {
+            close(null);
+            return;
+        }
+
+        if (decoder.hasStarted()) {
+            // Either ends a response without a length, or throws
+            responseComplete(decoder.endOfInput(), false);
+        }
+
+        close(null);
+    }
+
+    private void responseComplete(final HttpResponse response, final boolean moreData) {
+        NioExchange exchange = exchanges.removeFirst();
+        boolean keepAlive = decoder.isKeepAlive();
+        boolean pipelinable = decoder.isPipelinable();
+
+        responseCount++;
+
+        if (!exchanges.isEmpty()) {
+            decoder.reset(exchanges.getFirst().isHeadRequest(), exchanges.getFirst().getMaxResponseSize());
+        }
+
+        // A response that arrived before its request was fully written, or extra data after the
+        // last response, leaves the connection in an unknown state
+        if (!keepAlive) {
+            // Requests already pipelined behind this response won't be answered
+            close(null, !exchanges.isEmpty());
+        } else if (exchanges.isEmpty() && (!outputs.isEmpty() || moreData)) {
+            close(null);
+        } else {
+            transport.release(this, pipelinable);
+        }
+
+        // The connection is back in the pool before the response is handed over
+        exchange.succeed(response);
+    }
+
+    void idle() {
+        // Still connecting, the connect timeout stays in place
+        if (connecting) {
+            return;
+        }
+
+        deadline = System.currentTimeMillis() + transport.getKeepAliveTimeout();
+
+        // Reading while idle notices a connection closed by the server
+        key.interestOps(SelectionKey.OP_READ);
+    }
+}
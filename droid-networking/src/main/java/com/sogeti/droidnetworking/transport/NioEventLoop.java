@@ -0,0 +1,140 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A thread that multiplexes the connections assigned to it on one selector. All connection
+ * state is only touched from this thread, other threads hand work over with execute.
+ */
+class NioEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // How often timeouts are checked while there are open connections
+    private static final long TIMEOUT_RESOLUTION = 250;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final List<NioChannelHandler> connections = new ArrayList<NioChannelHandler>();
+    private volatile boolean running = true;
+
+    NioEventLoop(final String name) throws IOException {
+        selector = Selector.open();
+
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void execute(final Runnable task) {
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    // Shared by the connections on this loop, only valid until the next read
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    void add(final NioChannelHandler connection) {
+        connections.add(connection);
+    }
+
+    void remove(final NioChannelHandler connection) {
+        connections.remove(connection);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(connections.isEmpty() ? 0 : TIMEOUT_RESOLUTION);
+            } catch (IOException e) {
+                break;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (key.isValid()) {
+                    ((NioChannelHandler) key.attachment()).handle(key);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+
+            for (NioChannelHandler connection : new ArrayList<NioChannelHandler>(connections)) {
+                connection.checkTimeout(now);
+            }
+        }
+
+        // Let work handed over before the shutdown reach its connections, which are then closed
+        runTasks();
+
+        for (NioChannelHandler connection : new ArrayList<NioChannelHandler>(connections)) {
+            connection.close(new IOException("Transport shut down"));
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // The selector is gone either way
+        }
+    }
+
+    private void runTasks() {
+        List<Runnable> pending;
+
+        synchronized (tasks) {
+            if (tasks.isEmpty()) {
+                return;
+            }
+
+            pending = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+        }
+
+        for (Runnable task : pending) {
+            task.run();
+        }
+    }
+}
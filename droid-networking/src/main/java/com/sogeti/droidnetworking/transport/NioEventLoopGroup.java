@@ -0,0 +1,54 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+
+/**
+ * The event loops of a transport. New channels are spread over the loops, which are started
+ * when first needed.
+ */
+class NioEventLoopGroup {
+    private final String name;
+    private final NioEventLoop[] eventLoops;
+    private int next = 0;
+
+    NioEventLoopGroup(final String name, final int size) {
+        this.name = name;
+        this.eventLoops = new NioEventLoop[Math.max(1, size)];
+    }
+
+    synchronized NioEventLoop next() throws IOException {
+        int index = next;
+
+        next = (next + 1) % eventLoops.length;
+
+        if (eventLoops[index] == null) {
+            eventLoops[index] = new NioEventLoop(name + "-" + index);
+        }
+
+        return eventLoops[index];
+    }
+
+    synchronized void shutdown() {
+        for (NioEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.shutdown();
+            }
+        }
+    }
+}
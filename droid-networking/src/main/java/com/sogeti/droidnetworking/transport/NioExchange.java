@@ -0,0 +1,275 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import com.sogeti.droidnetworking.PooledOutputStream;
+
+/**
+ * A request on its way through a non-blocking transport. The request body is read up front, so
+ * the request can be written without blocking and written again if a kept alive connection
+ * turns out to be closed.
+ */
+class NioExchange {
+    private static final int DEFAULT_PORT = 80;
+
+    private final HttpUriRequest request;
+    private final AsyncTransport.ResponseCallback callback;
+    private final InetSocketAddress address;
+    private final String routeKey;
+    private final boolean headRequest;
+    private final boolean idempotent;
+    private final int port;
+    private final long maxResponseSize;
+    private final byte[] body;
+    private Header contentType;
+    private Header contentEncoding;
+    private byte[] requestData;
+    private volatile NioChannelHandler connection;
+    private boolean retried = false;
+    private boolean completed = false;
+
+    NioExchange(final HttpUriRequest request, final AsyncTransport.ResponseCallback callback) throws IOException {
+        URI uri = request.getURI();
+        String host = uri.getHost();
+        String method = request.getMethod();
+
+        if (host == null) {
+            throw new IOException("No host in " + uri);
+        }
+
+        port = uri.getPort() != -1 ? uri.getPort() : DEFAULT_PORT;
+
+        this.request = request;
+        this.callback = callback;
+        this.address = new InetSocketAddress(host, port);
+
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+
+        this.routeKey = host.toLowerCase(Locale.US) + ":" + port;
+        this.headRequest = "HEAD".equals(method);
+        this.idempotent = "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method)
+                || "DELETE".equals(method) || "OPTIONS".equals(method);
+        this.body = readBody(request);
+
+        Object maxResponseSize = request.getParams().getParameter(Transport.MAX_RESPONSE_SIZE);
+        this.maxResponseSize = maxResponseSize instanceof Long ? (Long) maxResponseSize : -1;
+    }
+
+    HttpUriRequest getRequest() {
+        return request;
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    String getRouteKey() {
+        return routeKey;
+    }
+
+    boolean isHeadRequest() {
+        return headRequest;
+    }
+
+    // -1 if the response body may be of any size
+    long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    boolean isIdempotent() {
+        return idempotent;
+    }
+
+    // The host and port, as sent in the Host header
+    String getAuthority() {
+        String host = request.getURI().getHost();
+
+        return port != DEFAULT_PORT ? host + ":" + port : host;
+    }
+
+    // The request body, or null if the request has no entity
+    byte[] getBody() {
+        return body;
+    }
+
+    Header getContentType() {
+        return contentType;
+    }
+
+    Header getContentEncoding() {
+        return contentEncoding;
+    }
+
+    // The request as HTTP/1.1, a new buffer for every attempt so a request can be written again
+    // from the start. Only called from event loops.
+    ByteBuffer newRequestBuffer() throws IOException {
+        if (requestData == null) {
+            requestData = encode();
+        }
+
+        return ByteBuffer.wrap(requestData);
+    }
+
+    NioChannelHandler getConnection() {
+        return connection;
+    }
+
+    void setConnection(final NioChannelHandler connection) {
+        this.connection = connection;
+    }
+
+    // Whether the exchange has been sent again after a kept alive connection failed it, a retried
+    // exchange always gets a new connection
+    synchronized boolean isRetried() {
+        return retried;
+    }
+
+    synchronized void setRetried() {
+        retried = true;
+    }
+
+    synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    void succeed(final HttpResponse response) {
+        if (markCompleted()) {
+            callback.onResponse(response);
+        }
+    }
+
+    void fail(final IOException e) {
+        if (markCompleted()) {
+            callback.onFailure(e);
+        }
+    }
+
+    private synchronized boolean markCompleted() {
+        if (completed) {
+            return false;
+        }
+
+        completed = true;
+
+        return true;
+    }
+
+    // The path and query of the request
+    String getPath() {
+        URI uri = request.getURI();
+        String path = uri.getRawPath();
+
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+
+        return path;
+    }
+
+    boolean hasEntity() {
+        return request instanceof HttpEntityEnclosingRequest;
+    }
+
+    private byte[] readBody(final HttpUriRequest request) throws IOException {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return null;
+        }
+
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+
+        if (entity == null) {
+            return null;
+        }
+
+        if (!request.containsHeader("Content-Type")) {
+            contentType = entity.getContentType();
+        }
+
+        if (!request.containsHeader("Content-Encoding")) {
+            contentEncoding = entity.getContentEncoding();
+        }
+
+        PooledOutputStream out = new PooledOutputStream(entity.getContentLength());
+
+        try {
+            entity.writeTo(out);
+
+            return out.toByteArray();
+        } finally {
+            out.release();
+        }
+    }
+
+    private byte[] encode() throws IOException {
+        StringBuilder head = new StringBuilder();
+
+        head.append(request.getMethod()).append(' ').append(getPath()).append(" HTTP/1.1\r\n");
+
+        if (!request.containsHeader("Host")) {
+            head.append("Host: ").append(getAuthority()).append("\r\n");
+        }
+
+        for (Header header : request.getAllHeaders()) {
+            head.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+        }
+
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType.getValue()).append("\r\n");
+        }
+
+        if (contentEncoding != null) {
+            head.append("Content-Encoding: ").append(contentEncoding.getValue()).append("\r\n");
+        }
+
+        if (hasEntity()) {
+            head.append("Content-Length: ").append(body != null ? body.length : 0).append("\r\n");
+        }
+
+        head.append("\r\n");
+
+        byte[] headData = head.toString().getBytes("ISO-8859-1");
+
+        if (body == null) {
+            return headData;
+        }
+
+        byte[] data = new byte[headData.length + body.length];
+        System.arraycopy(headData, 0, data, 0, headData.length);
+        System.arraycopy(body, 0, data, headData.length, body.length);
+
+        return data;
+    }
+}
@@ -0,0 +1,468 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+
+import com.sogeti.droidnetworking.ConnectionPoolStats;
+
+/**
+ * HTTP/1.1 transport on non-blocking sockets. A few event loop threads multiplex all
+ * connections, so the number of requests in flight is limited by the connection pool rather
+ * than by the number of threads. Response bodies are read in full before the response is
+ * handed back.
+ *
+ * Only plain HTTP is handled, other requests go to the fallback transport.
+ *
+ * With pipelining enabled, idempotent requests to a route are written back-to-back on a kept
+ * alive HTTP/1.1 connection and the responses are matched in order. A route whose server closes
+ * or breaks a pipelined connection falls back to one request per connection.
+ */
+public class NioTransport implements AsyncTransport {
+    private static final int DEFAULT_EVENT_LOOPS = 1;
+    private static final int DEFAULT_TIMEOUT = 5000;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 6;
+    private static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 30000;
+    private static final int DEFAULT_MAX_PIPELINE_DEPTH = 8;
+
+    private final int connectionTimeout;
+    private final int socketTimeout;
+    private final NioEventLoopGroup eventLoops;
+    private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private long keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private boolean pipelining = false;
+    private int maxPipelineDepth = DEFAULT_MAX_PIPELINE_DEPTH;
+    private Transport fallbackTransport;
+    private boolean shutdown = false;
+
+    private final Map<String, Route> routes = new HashMap<String, Route>();
+    private long leaseCount = 0;
+    private long reuseCount = 0;
+
+    public NioTransport() {
+        this(DEFAULT_EVENT_LOOPS, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
+    }
+
+    public NioTransport(final int eventLoops, final int connectionTimeout, final int socketTimeout) {
+        this.eventLoops = new NioEventLoopGroup("NioTransport", eventLoops);
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+
+    public synchronized void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setKeepAliveTimeout(final long keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public synchronized void setPipelining(final boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    public synchronized boolean isPipelining() {
+        return pipelining;
+    }
+
+    // The number of requests that may be waiting for a response on one connection
+    public synchronized void setMaxPipelineDepth(final int maxPipelineDepth) {
+        this.maxPipelineDepth = maxPipelineDepth;
+    }
+
+    public void setFallbackTransport(final Transport fallbackTransport) {
+        this.fallbackTransport = fallbackTransport;
+    }
+
+    int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    @Override
+    public boolean supportsAsync(final HttpUriRequest request) {
+        return "http".equalsIgnoreCase(request.getURI().getScheme());
+    }
+
+    @Override
+    public HttpResponse execute(final HttpUriRequest request) throws IOException {
+        if (!supportsAsync(request)) {
+            if (fallbackTransport == null) {
+                throw new IOException("Unsupported scheme: " + request.getURI().getScheme());
+            }
+
+            return fallbackTransport.execute(request);
+        }
+
+        BlockingResponseCallback callback = new BlockingResponseCallback();
+
+        execute(request, callback);
+
+        return callback.await(request);
+    }
+
+    @Override
+    public void execute(final HttpUriRequest request, final ResponseCallback callback) {
+        final NioExchange exchange;
+
+        try {
+            exchange = new NioExchange(request, callback);
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+
+        if (request instanceof AbortableHttpRequest) {
+            try {
+                ((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+                    @Override
+                    public void releaseConnection() throws IOException {
+                    }
+
+                    @Override
+                    public void abortConnection() throws IOException {
+                        abort(exchange);
+                    }
+                });
+            } catch (IOException e) {
+                // Already aborted
+                callback.onFailure(e);
+                return;
+            }
+        }
+
+        submit(exchange);
+    }
+
+    @Override
+    public ConnectionPoolStats getConnectionPoolStats() {
+        int leased = 0;
+        int available = 0;
+        int pending = 0;
+
+        synchronized (this) {
+            for (Route route : routes.values()) {
+                leased += route.busy.size();
+                available += route.idle.size();
+                pending += route.waiting.size();
+            }
+
+            return new ConnectionPoolStats(leased, available, pending, leaseCount, reuseCount);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        List<NioExchange> waiting = new ArrayList<NioExchange>();
+
+        synchronized (this) {
+            shutdown = true;
+
+            for (Route route : routes.values()) {
+                waiting.addAll(route.waiting);
+                route.waiting.clear();
+            }
+
+            eventLoops.shutdown();
+        }
+
+        for (NioExchange exchange : waiting) {
+            exchange.fail(new IOException("Transport shut down"));
+        }
+    }
+
+    // Hands the exchange to an idle connection, a pipelined connection, a new connection or the
+    // route's queue
+    void submit(final NioExchange exchange) {
+        NioConnection connection = null;
+        boolean connect = false;
+        IOException failure = null;
+
+        synchronized (this) {
+            Route route = getRoute(exchange.getRouteKey());
+
+            if (shutdown) {
+                failure = new IOException("Transport shut down");
+            } else if (!route.idle.isEmpty() && !exchange.isRetried()) {
+                // The most recently used connection is the least likely to have timed out
+                connection = route.idle.remove(route.idle.size() - 1);
+                route.busy.add(connection);
+                lease(connection, exchange, true);
+            } else if (!exchange.isRetried() && (connection = findPipelinedConnection(route, exchange)) != null) {
+                lease(connection, exchange, true);
+            } else if (route.connections < maxConnectionsPerRoute) {
+                try {
+                    connection = new NioConnection(this, eventLoops.next(), exchange.getRouteKey(),
+                            exchange.getAddress());
+                    route.connections++;
+                    route.busy.add(connection);
+                    lease(connection, exchange, false);
+                    connect = true;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            } else {
+                route.waiting.add(exchange);
+                return;
+            }
+        }
+
+        if (failure != null) {
+            exchange.fail(failure);
+        } else {
+            start(connection, exchange, connect);
+        }
+    }
+
+    // Sends an unanswered exchange again on another connection, if that is safe. A request that
+    // was pipelined behind another one is always sent again, the failed connection has already
+    // turned pipelining off for the route.
+    boolean retry(final NioExchange exchange, final boolean pipelined) {
+        if (!exchange.isIdempotent() || exchange.isCompleted() || (!pipelined && exchange.isRetried())) {
+            return false;
+        }
+
+        if (!pipelined) {
+            exchange.setRetried();
+        }
+
+        submit(exchange);
+
+        return true;
+    }
+
+    // Called on the connection's event loop when one of its requests is done and the connection
+    // can be used again. Waiting requests are written right away, in order.
+    void release(final NioConnection connection, final boolean pipelinable) {
+        List<NioExchange> next = new ArrayList<NioExchange>();
+        boolean idle;
+        boolean replace = false;
+
+        synchronized (this) {
+            Route route = getRoute(connection.getRouteKey());
+
+            connection.leased--;
+
+            if (connection.leased == 0) {
+                connection.pipelineBlocked = false;
+            }
+
+            if (pipelinable) {
+                connection.pipelinable = true;
+            }
+
+            while (!shutdown && !route.waiting.isEmpty()) {
+                NioExchange exchange = route.waiting.getFirst();
+
+                // A retried request needs a new connection, which takes this one's place
+                if (exchange.isRetried()) {
+                    replace = connection.leased == 0;
+                    break;
+                }
+
+                if (connection.leased > 0 && !canPipeline(route, connection, exchange)) {
+                    break;
+                }
+
+                route.waiting.removeFirst();
+                lease(connection, exchange, true);
+                next.add(exchange);
+            }
+
+            idle = connection.leased == 0 && !replace;
+
+            if (idle) {
+                route.busy.remove(connection);
+                route.idle.add(connection);
+            }
+        }
+
+        for (NioExchange exchange : next) {
+            connection.start(exchange);
+        }
+
+        if (idle) {
+            connection.idle();
+        } else if (replace) {
+            connection.close(null);
+        }
+    }
+
+    // Called on the connection's event loop once it has been closed
+    void connectionClosed(final NioConnection connection, final boolean pipelineFailed) {
+        NioExchange next = null;
+        NioConnection replacement = null;
+        List<NioExchange> failed = new ArrayList<NioExchange>();
+        IOException failure = null;
+
+        synchronized (this) {
+            Route route = routes.get(connection.getRouteKey());
+
+            if (route == null) {
+                return;
+            }
+
+            route.idle.remove(connection);
+            route.busy.remove(connection);
+            route.connections--;
+
+            // Don't pipeline to a server that has let a pipelined connection down
+            if (pipelineFailed) {
+                route.pipeliningDisabled = true;
+            }
+
+            if (!shutdown && !route.waiting.isEmpty()) {
+                try {
+                    replacement = new NioConnection(this, eventLoops.next(), connection.getRouteKey(),
+                            route.waiting.getFirst().getAddress());
+                    next = route.waiting.removeFirst();
+                    route.connections++;
+                    route.busy.add(replacement);
+                    lease(replacement, next, false);
+                } catch (IOException e) {
+                    replacement = null;
+                    failure = e;
+                    failed.add(route.waiting.removeFirst());
+
+                    // No other connection on the route is left to pick up the rest
+                    if (route.connections == 0) {
+                        failed.addAll(route.waiting);
+                        route.waiting.clear();
+                    }
+                }
+            }
+
+            if (route.connections == 0 && route.waiting.isEmpty()) {
+                routes.remove(connection.getRouteKey());
+            }
+        }
+
+        for (NioExchange exchange : failed) {
+            exchange.fail(failure);
+        }
+
+        if (next != null) {
+            start(replacement, next, true);
+        }
+    }
+
+    void abort(final NioExchange exchange) {
+        boolean waiting;
+
+        synchronized (this) {
+            Route route = routes.get(exchange.getRouteKey());
+            waiting = route != null && route.waiting.remove(exchange);
+        }
+
+        exchange.fail(new IOException("Request aborted"));
+
+        final NioChannelHandler connection = exchange.getConnection();
+
+        if (!waiting && connection != null) {
+            connection.getEventLoop().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.abort(exchange);
+                }
+            });
+        }
+    }
+
+    private void start(final NioConnection connection, final NioExchange exchange, final boolean connect) {
+        connection.getEventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connect) {
+                    connection.connect(exchange);
+                } else {
+                    connection.start(exchange);
+                }
+            }
+        });
+    }
+
+    // Must be called while holding the lock
+    private void lease(final NioConnection connection, final NioExchange exchange, final boolean reused) {
+        connection.leased++;
+        leaseCount++;
+
+        if (reused) {
+            reuseCount++;
+        }
+
+        // Nothing may be pipelined behind a request that isn't safe to send twice
+        if (!exchange.isIdempotent()) {
+            connection.pipelineBlocked = true;
+        }
+    }
+
+    // Must be called while holding the lock
+    private NioConnection findPipelinedConnection(final Route route, final NioExchange exchange) {
+        NioConnection best = null;
+
+        for (NioConnection connection : route.busy) {
+            if (canPipeline(route, connection, exchange) && (best == null || connection.leased < best.leased)) {
+                best = connection;
+            }
+        }
+
+        return best;
+    }
+
+    // Must be called while holding the lock
+    private boolean canPipeline(final Route route, final NioConnection connection, final NioExchange exchange) {
+        return pipelining && !route.pipeliningDisabled && connection.pipelinable && !connection.pipelineBlocked
+                && exchange.isIdempotent() && connection.leased < maxPipelineDepth;
+    }
+
+    // Must be called while holding the lock
+    private Route getRoute(final String routeKey) {
+        Route route = routes.get(routeKey);
+
+        if (route == null) {
+            route = new Route();
+            routes.put(routeKey, route);
+        }
+
+        return route;
+    }
+
+    private static class Route {
+        private final List<NioConnection> idle = new ArrayList<NioConnection>();
+        private final List<NioConnection> busy = new ArrayList<NioConnection>();
+        private final LinkedList<NioExchange> waiting = new LinkedList<NioExchange>();
+        private int connections = 0;
+        private boolean pipeliningDisabled = false;
+    }
+}
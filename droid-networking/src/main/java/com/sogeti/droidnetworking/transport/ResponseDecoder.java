@@ -0,0 +1,342 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ParseException;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicLineParser;
+
+import com.sogeti.droidnetworking.PooledOutputStream;
+import com.sogeti.droidnetworking.ResponseTooLargeException;
+
+/**
+ * Incremental HTTP/1.1 response parser. Bytes are fed as they arrive from the channel and the
+ * response is handed back once it is complete, bytes belonging to the next response are left
+ * in the buffer. A body longer than the maximum size is refused as it arrives, it is never held
+ * in memory in full.
+ */
+class ResponseDecoder {
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private enum State {
+        STATUS_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, BODY_UNTIL_CLOSE, DONE
+    }
+
+    private final StringBuilder line = new StringBuilder();
+    private State state = State.STATUS_LINE;
+    private BasicHttpResponse response;
+    private PooledOutputStream body;
+    private long remaining;
+    private boolean headRequest;
+    private long maxBodySize;
+    private boolean started;
+    private boolean keepAlive;
+    private boolean pipelinable;
+
+    // A maxBodySize of -1 accepts a body of any size
+    void reset(final boolean headRequest, final long maxBodySize) {
+        this.headRequest = headRequest;
+        this.maxBodySize = maxBodySize;
+
+        line.setLength(0);
+        state = State.STATUS_LINE;
+        response = null;
+        remaining = 0;
+
+        // A response that was abandoned half way gives its buffers back
+        if (body != null) {
+            body.release();
+            body = null;
+        }
+
+        started = false;
+        keepAlive = false;
+        pipelinable = false;
+    }
+
+    // Whether any part of the current response has been received
+    boolean hasStarted() {
+        return started;
+    }
+
+    // Whether the connection can be reused after the last complete response
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    // Whether the server may be sent more requests before the last response was complete
+    boolean isPipelinable() {
+        return pipelinable;
+    }
+
+    // Returns the response once it is complete, or null if more input is needed
+    HttpResponse decode(final ByteBuffer buffer) throws IOException {
+        if (buffer.hasRemaining()) {
+            started = true;
+        }
+
+        while (state != State.DONE && buffer.hasRemaining()) {
+            String text;
+
+            switch (state) {
+                case STATUS_LINE :
+                    text = readLine(buffer);
+
+                    // Tolerate empty lines left over from a previous response
+                    if (text != null && text.length() > 0) {
+                        response = new BasicHttpResponse(parseStatusLine(text));
+                        state = State.HEADERS;
+                    }
+                    break;
+                case HEADERS :
+                    text = readLine(buffer);
+
+                    if (text != null) {
+                        if (text.length() > 0) {
+                            response.addHeader(parseHeader(text));
+                        } else {
+                            headersComplete();
+                        }
+                    }
+                    break;
+                case BODY :
+                    readBody(buffer);
+
+                    if (remaining == 0) {
+                        state = State.DONE;
+                    }
+                    break;
+                case CHUNK_SIZE :
+                    text = readLine(buffer);
+
+                    if (text != null) {
+                        remaining = parseChunkSize(text);
+                        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                    }
+                    break;
+                case CHUNK_DATA :
+                    readBody(buffer);
+
+                    if (remaining == 0) {
+                        state = State.CHUNK_END;
+                    }
+                    break;
+                case CHUNK_END :
+                    text = readLine(buffer);
+
+                    if (text != null) {
+                        if (text.length() > 0) {
+                            throw new IOException("Invalid chunk");
+                        }
+
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS :
+                    text = readLine(buffer);
+
+                    if (text != null && text.length() == 0) {
+                        state = State.DONE;
+                    }
+                    break;
+                case BODY_UNTIL_CLOSE :
+                    remaining = buffer.remaining();
+                    readBody(buffer);
+                    break;
+                default :
+                    break;
+            }
+        }
+
+        return state == State.DONE ? complete() : null;
+    }
+
+    // The connection has been closed, which ends a response without a length
+    HttpResponse endOfInput() throws IOException {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            state = State.DONE;
+            return complete();
+        }
+
+        throw new IOException("Connection closed before the response was complete");
+    }
+
+    private void headersComplete() throws IOException {
+        int statusCode = response.getStatusLine().getStatusCode();
+
+        // Interim responses are followed by the real one
+        if (statusCode >= 100 && statusCode < 200 && statusCode != 101) {
+            response = null;
+            state = State.STATUS_LINE;
+            return;
+        }
+
+        keepAlive = isKeepAlive(response);
+        pipelinable = keepAlive && response.getStatusLine().getProtocolVersion().greaterEquals(HttpVersion.HTTP_1_1);
+
+        Header transferEncoding = response.getFirstHeader("Transfer-Encoding");
+        Header contentLength = response.getFirstHeader("Content-Length");
+
+        if (headRequest || statusCode < 200 || statusCode == 204 || statusCode == 304) {
+            state = State.DONE;
+        } else if (transferEncoding != null
+                && transferEncoding.getValue().toLowerCase(Locale.US).indexOf("chunked") != -1) {
+            body = new PooledOutputStream();
+            state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength.getValue().trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength.getValue());
+            }
+
+            if (remaining < 0) {
+                throw new IOException("Invalid Content-Length: " + contentLength.getValue());
+            }
+
+            if (maxBodySize >= 0 && remaining > maxBodySize) {
+                throw new ResponseTooLargeException(maxBodySize);
+            }
+
+            body = new PooledOutputStream(remaining);
+            state = remaining == 0 ? State.DONE : State.BODY;
+        } else {
+            // Without a length the body ends when the server closes the connection
+            body = new PooledOutputStream();
+            keepAlive = false;
+            pipelinable = false;
+            state = State.BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private HttpResponse complete() {
+        HttpResponse completed = response;
+
+        if (body != null) {
+            // The body is read straight from the pooled segments, which go back to the pool once
+            // it has been read or consumed
+            BasicHttpEntity entity = new BasicHttpEntity();
+            entity.setContent(body.toInputStream());
+            entity.setContentLength(body.size());
+            entity.setContentType(completed.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(completed.getFirstHeader("Content-Encoding"));
+            completed.setEntity(entity);
+        }
+
+        response = null;
+        body = null;
+
+        return completed;
+    }
+
+    private void readBody(final ByteBuffer buffer) throws IOException {
+        int count = (int) Math.min(remaining, buffer.remaining());
+
+        if (maxBodySize >= 0 && body.size() + count > maxBodySize) {
+            body.release();
+            body = null;
+
+            throw new ResponseTooLargeException(maxBodySize);
+        }
+
+        body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+        buffer.position(buffer.position() + count);
+        remaining -= count;
+    }
+
+    // Returns the next line without its line ending, or null if the line isn't complete yet
+    private String readLine(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+
+            if (b == '\n') {
+                String text = line.toString();
+                line.setLength(0);
+                return text;
+            }
+
+            if (b != '\r') {
+                if (line.length() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Response line too long");
+                }
+
+                line.append((char) (b & 0xff));
+            }
+        }
+
+        return null;
+    }
+
+    private static StatusLine parseStatusLine(final String text) throws IOException {
+        try {
+            return BasicLineParser.parseStatusLine(text, null);
+        } catch (ParseException e) {
+            throw new IOException("Invalid status line: " + text);
+        }
+    }
+
+    private static Header parseHeader(final String text) throws IOException {
+        try {
+            return BasicLineParser.parseHeader(text, null);
+        } catch (ParseException e) {
+            throw new IOException("Invalid header: " + text);
+        }
+    }
+
+    private static long parseChunkSize(final String text) throws IOException {
+        int end = text.indexOf(';');
+        String size = (end != -1 ? text.substring(0, end) : text).trim();
+
+        try {
+            long chunkSize = Long.parseLong(size, 16);
+
+            if (chunkSize < 0) {
+                throw new IOException("Invalid chunk size: " + text);
+            }
+
+            return chunkSize;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + text);
+        }
+    }
+
+    private static boolean isKeepAlive(final HttpResponse response) {
+        Header connection = response.getFirstHeader("Connection");
+        boolean http11 = response.getStatusLine().getProtocolVersion().greaterEquals(HttpVersion.HTTP_1_1);
+
+        if (connection == null) {
+            return http11;
+        }
+
+        String value = connection.getValue().toLowerCase(Locale.US);
+
+        if (value.indexOf("close") != -1) {
+            return false;
+        }
+
+        return http11 || value.indexOf("keep-alive") != -1;
+    }
+}
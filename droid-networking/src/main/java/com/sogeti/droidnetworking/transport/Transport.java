@@ -0,0 +1,48 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import com.sogeti.droidnetworking.ConnectionPoolStats;
+
+/**
+ * Executes the requests prepared by NetworkOperation. A transport owns its connections, so
+ * different HTTP stacks can be plugged into the engine, or into a single operation, without
+ * changing how operations are built, cached and parsed.
+ *
+ * Implementations must be thread safe. Aborting the request must make a blocked execute, or a
+ * read from the returned entity, fail promptly.
+ */
+public interface Transport {
+    // Request parameter holding the operation's NetworkOperation.Priority
+    String PRIORITY = "com.sogeti.droidnetworking.priority";
+
+    // Request parameter holding the operation's maximum response size as a Long. Transports that
+    // receive the whole body before returning the response stop receiving it past this size.
+    String MAX_RESPONSE_SIZE = "com.sogeti.droidnetworking.max-response-size";
+
+    HttpResponse execute(final HttpUriRequest request) throws IOException;
+
+    // Returns null if the transport doesn't keep a connection pool
+    ConnectionPoolStats getConnectionPoolStats();
+
+    void shutdown();
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Socket factory that applies send and receive buffer sizes to new sockets before they are
+ * connected, so the receive window can be negotiated during the handshake. A size of 0 keeps
+ * the platform default.
+ */
+public class TunedSocketFactory implements SocketFactory {
+    private final SocketFactory socketFactory;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+
+    TunedSocketFactory(final SocketFactory socketFactory, final int sendBufferSize, final int receiveBufferSize) {
+        this.socketFactory = socketFactory;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public static SocketFactory wrap(final SocketFactory socketFactory, final int sendBufferSize,
+            final int receiveBufferSize) {
+        if (sendBufferSize <= 0 && receiveBufferSize <= 0) {
+            return socketFactory;
+        }
+
+        if (socketFactory instanceof LayeredSocketFactory) {
+            return new Layered((LayeredSocketFactory) socketFactory, sendBufferSize, receiveBufferSize);
+        }
+
+        return new TunedSocketFactory(socketFactory, sendBufferSize, receiveBufferSize);
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        Socket socket = socketFactory.createSocket();
+
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+
+        return socket;
+    }
+
+    @Override
+    public Socket connectSocket(final Socket sock, final String host, final int port,
+            final InetAddress localAddress, final int localPort, final HttpParams params)
+            throws IOException, UnknownHostException, ConnectTimeoutException {
+        return socketFactory.connectSocket(sock, host, port, localAddress, localPort, params);
+    }
+
+    @Override
+    public boolean isSecure(final Socket sock) throws IllegalArgumentException {
+        return socketFactory.isSecure(sock);
+    }
+
+    private static class Layered extends TunedSocketFactory implements LayeredSocketFactory {
+        private final LayeredSocketFactory layeredSocketFactory;
+
+        Layered(final LayeredSocketFactory socketFactory, final int sendBufferSize, final int receiveBufferSize) {
+            super(socketFactory, sendBufferSize, receiveBufferSize);
+
+            this.layeredSocketFactory = socketFactory;
+        }
+
+        @Override
+        public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose)
+                throws IOException, UnknownHostException {
+            return layeredSocketFactory.createSocket(socket, host, port, autoClose);
+        }
+    }
+}
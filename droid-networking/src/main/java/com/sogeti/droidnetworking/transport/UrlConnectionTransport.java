@@ -0,0 +1,175 @@
+/**
+ * Copyright 2012 Sogeti Sverige AB
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+
+package com.sogeti.droidnetworking.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.AbortableHttpRequest;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import com.sogeti.droidnetworking.ConnectionPoolStats;
+
+/**
+ * Transport on top of HttpURLConnection. Connections are pooled by the platform, which doesn't
+ * expose any statistics.
+ */
+public class UrlConnectionTransport implements Transport {
+    private final int connectionTimeout;
+    private final int socketTimeout;
+
+    public UrlConnectionTransport(final int connectionTimeout, final int socketTimeout) {
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+
+    @Override
+    public HttpResponse execute(final HttpUriRequest request) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) request.getURI().toURL().openConnection();
+
+        // Let an aborted request disconnect, which makes a blocked read fail
+        if (request instanceof AbortableHttpRequest) {
+            ((AbortableHttpRequest) request).setReleaseTrigger(new ConnectionReleaseTrigger() {
+                @Override
+                public void releaseConnection() throws IOException {
+                }
+
+                @Override
+                public void abortConnection() throws IOException {
+                    connection.disconnect();
+                }
+            });
+        }
+
+        connection.setConnectTimeout(connectionTimeout);
+        connection.setReadTimeout(socketTimeout);
+        connection.setInstanceFollowRedirects(true);
+        connection.setRequestMethod(request.getMethod());
+
+        for (Header header : request.getAllHeaders()) {
+            connection.addRequestProperty(header.getName(), header.getValue());
+        }
+
+        HttpEntity requestEntity = null;
+
+        if (request instanceof HttpEntityEnclosingRequest) {
+            requestEntity = ((HttpEntityEnclosingRequest) request).getEntity();
+        }
+
+        if (requestEntity != null) {
+            writeEntity(connection, requestEntity);
+        }
+
+        int statusCode = connection.getResponseCode();
+
+        if (statusCode == -1) {
+            throw new IOException("Invalid response from " + request.getURI());
+        }
+
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode,
+                connection.getResponseMessage()));
+
+        for (Map.Entry<String, List<String>> field : connection.getHeaderFields().entrySet()) {
+            // The status line is reported with a null key
+            if (field.getKey() == null) {
+                continue;
+            }
+
+            for (String value : field.getValue()) {
+                response.addHeader(field.getKey(), value);
+            }
+        }
+
+        InputStream content = statusCode >= 400 ? connection.getErrorStream() : getInputStream(connection);
+
+        if (content != null && !"HEAD".equals(request.getMethod())) {
+            BasicHttpEntity entity = new BasicHttpEntity();
+
+            entity.setContent(content);
+            entity.setContentLength(connection.getContentLength());
+            entity.setContentType(response.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+
+            response.setEntity(entity);
+        }
+
+        return response;
+    }
+
+    private void writeEntity(final HttpURLConnection connection, final HttpEntity entity) throws IOException {
+        long contentLength = entity.getContentLength();
+
+        connection.setDoOutput(true);
+
+        if (entity.getContentType() != null) {
+            connection.setRequestProperty("Content-Type", entity.getContentType().getValue());
+        }
+
+        if (entity.getContentEncoding() != null) {
+            connection.setRequestProperty("Content-Encoding", entity.getContentEncoding().getValue());
+        }
+
+        if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) contentLength);
+        } else {
+            connection.setChunkedStreamingMode(0);
+        }
+
+        OutputStream out = connection.getOutputStream();
+
+        try {
+            entity.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private InputStream getInputStream(final HttpURLConnection connection) throws IOException {
+        try {
+            return connection.getInputStream();
+        } catch (IOException e) {
+            // Responses without a body, like 204 and 304, may not have an input stream
+            if (connection.getResponseCode() < 400) {
+                return null;
+            }
+
+            throw e;
+        }
+    }
+
+    @Override
+    public ConnectionPoolStats getConnectionPoolStats() {
+        return null;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
@@ -0,0 +1,89 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class BandwidthTests {
+    private MockWebServer server;
+    private byte[] body;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+
+        body = new byte[150000];
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        NetworkEngine.getInstance().getBandwidthLimiter().clearLimits();
+        server.shutdown();
+    }
+
+    @Test
+    public void globalLimitSlowsDownload() throws Throwable {
+        server.enqueue(new MockResponse().setBody(body));
+        server.play(8080);
+
+        NetworkEngine.getInstance().getBandwidthLimiter().setGlobalLimit(200000);
+
+        // A quarter of a second goes in the first burst, the remaining 100000 bytes take half a second
+        long elapsed = execute(NetworkOperation.Priority.NORMAL);
+
+        assertTrue(elapsed >= 400);
+    }
+
+    @Test
+    public void priorityLimitSlowsItsOwnClass() throws Throwable {
+        server.enqueue(new MockResponse().setBody(body));
+        server.enqueue(new MockResponse().setBody(body));
+        server.play(8080);
+
+        NetworkEngine.getInstance().getBandwidthLimiter().setPriorityLimit(NetworkOperation.Priority.BACKGROUND, 200000);
+
+        long normal = execute(NetworkOperation.Priority.NORMAL);
+        long background = execute(NetworkOperation.Priority.BACKGROUND);
+
+        assertTrue(background >= 400);
+        assertTrue(normal < background);
+    }
+
+    private long execute(final NetworkOperation.Priority priority) {
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setPriority(priority);
+
+        long start = System.currentTimeMillis();
+        NetworkEngine.getInstance().executeOperation(operation);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseData().length == body.length);
+
+        return elapsed;
+    }
+}
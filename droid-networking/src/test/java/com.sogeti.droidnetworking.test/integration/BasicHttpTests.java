@@ -3,11 +3,14 @@ package com.sogeti.droidnetworking.test.integration;
 import com.google.mockwebserver.MockWebServer;
 import com.google.mockwebserver.MockResponse;
 import com.google.mockwebserver.RecordedRequest;
+import com.sogeti.droidnetworking.ConnectionPoolStats;
 import com.sogeti.droidnetworking.NetworkEngine;
 import com.sogeti.droidnetworking.NetworkOperation;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.Throwable;
 import java.util.HashMap;
 
@@ -18,6 +21,7 @@ import org.junit.runner.RunWith;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
@@ -196,4 +200,100 @@ public class BasicHttpTests {
         assertTrue(request.getRequestLine().equals("HEAD / HTTP/1.1"));
         assertTrue(request.getBodySize() == 0);
     }
+
+    @Test
+    public void streaming() throws Throwable {
+        server.enqueue(new MockResponse().setBody("Streamed").setResponseCode(200));
+        server.play(8080);
+
+        final StringBuilder parsed = new StringBuilder();
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setResponseMode(NetworkOperation.ResponseMode.STREAMING);
+        operation.setParser(new NetworkOperation.ResponseParser() {
+            @Override
+            public void parse(final InputStream is, final long size) throws IOException {
+                byte[] buffer = new byte[4];
+                int read;
+
+                while ((read = is.read(buffer)) != -1) {
+                    parsed.append(new String(buffer, 0, read, "UTF-8"));
+                }
+            }
+        });
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(parsed.toString().equals("Streamed"));
+
+        // Nothing is kept once the parser is done
+        assertTrue(operation.getResponseData() == null);
+    }
+
+    @Test
+    public void connectionPoolStats() throws Throwable {
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkEngine.getInstance().executeOperation(NetworkEngine.getInstance().createOperationWithURLString("http://localhost"));
+        NetworkEngine.getInstance().executeOperation(NetworkEngine.getInstance().createOperationWithURLString("http://localhost"));
+
+        ConnectionPoolStats stats = NetworkEngine.getInstance().getConnectionPoolStats();
+
+        // Both connections have been returned to the pool and the second request reused the first connection
+        assertTrue(stats.getLeased() == 0);
+        assertTrue(stats.getPending() == 0);
+        assertTrue(stats.getAvailable() == 1);
+        assertTrue(stats.getLeaseCount() == 2);
+        assertTrue(stats.getReuseCount() == 1);
+    }
+
+    @Test
+    public void cancel() throws Throwable {
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        operation.cancel();
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.isCancelled());
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_CANCELLED);
+        assertTrue(server.getRequestCount() == 0);
+    }
+
+    @Test
+    public void cancelWithTag() throws Throwable {
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation first = NetworkEngine.getInstance().createOperationWithURLString("http://localhost/first");
+        NetworkOperation second = NetworkEngine.getInstance().createOperationWithURLString("http://localhost/second");
+        NetworkOperation other = NetworkEngine.getInstance().createOperationWithURLString("http://localhost/other");
+
+        first.setTag("screen");
+        second.setTag("screen");
+
+        Future<?> firstFuture = NetworkEngine.getInstance().enqueueOperation(first);
+        Future<?> secondFuture = NetworkEngine.getInstance().enqueueOperation(second);
+        NetworkEngine.getInstance().enqueueOperation(other);
+
+        NetworkEngine.getInstance().cancelOperationsWithTag("screen");
+
+        Robolectric.runBackgroundTasks();
+
+        assertTrue(firstFuture.isCancelled());
+        assertTrue(secondFuture.isCancelled());
+        assertTrue(first.getStatus() == NetworkOperation.STATUS_CANCELLED);
+        assertTrue(second.getStatus() == NetworkOperation.STATUS_CANCELLED);
+        assertTrue(other.getStatus() == NetworkOperation.STATUS_COMPLETED);
+
+        // Only the operation without the tag reached the server
+        assertTrue(server.getRequestCount() == 1);
+        assertTrue(server.takeRequest().getRequestLine().equals("GET /other HTTP/1.1"));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,137 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.OperationBatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchTests {
+    private MockWebServer server;
+    private int batchCompletions;
+    private int operationCompletions;
+    private int listenerCalls;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+
+        batchCompletions = 0;
+        operationCompletions = 0;
+        listenerCalls = 0;
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        server.shutdown();
+    }
+
+    @Test
+    public void batch() throws Throwable {
+        server.enqueue(new MockResponse().setBody("1").setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("2").setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("").setResponseCode(404));
+        server.play(8080);
+
+        List<NetworkOperation> operations = new ArrayList<NetworkOperation>();
+
+        for (int i = 0; i < 3; i++) {
+            NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost/" + i);
+
+            // The batch listener is told instead of the operation listeners
+            operation.setListener(new NetworkOperation.OperationListener() {
+                @Override
+                public void onCompletion(final NetworkOperation operation) {
+                    listenerCalls++;
+                }
+
+                @Override
+                public void onError(final NetworkOperation operation) {
+                    listenerCalls++;
+                }
+            });
+
+            operations.add(operation);
+        }
+
+        OperationBatch batch = NetworkEngine.getInstance().enqueueBatch(operations, 2, new OperationBatch.BatchProgressListener() {
+            @Override
+            public void onOperationFinished(final OperationBatch batch, final NetworkOperation operation) {
+                operationCompletions++;
+            }
+
+            @Override
+            public void onBatchCompletion(final OperationBatch batch) {
+                batchCompletions++;
+            }
+        });
+
+        Robolectric.runBackgroundTasks();
+
+        assertTrue(batch.isDone());
+        assertTrue(batch.getCompletedOperations().size() == 2);
+        assertTrue(batch.getFailedOperations().size() == 1);
+        assertTrue(server.getRequestCount() == 3);
+
+        Robolectric.runUiThreadTasks();
+
+        assertTrue(batchCompletions == 1);
+        assertTrue(operationCompletions == 3);
+        assertTrue(listenerCalls == 0);
+    }
+
+    @Test
+    public void cancelBatch() throws Throwable {
+        server.play(8080);
+
+        List<NetworkOperation> operations = new ArrayList<NetworkOperation>();
+
+        for (int i = 0; i < 5; i++) {
+            operations.add(NetworkEngine.getInstance().createOperationWithURLString("http://localhost/" + i));
+        }
+
+        OperationBatch batch = NetworkEngine.getInstance().enqueueBatch(operations, 2, new OperationBatch.BatchListener() {
+            @Override
+            public void onBatchCompletion(final OperationBatch batch) {
+                batchCompletions++;
+            }
+        });
+
+        batch.cancel();
+
+        Robolectric.runBackgroundTasks();
+        Robolectric.runUiThreadTasks();
+
+        assertTrue(batch.isDone());
+        assertTrue(batch.isCancelled());
+        assertTrue(batch.getFailedOperations().size() == 5);
+        assertTrue(batchCompletions == 1);
+        assertTrue(server.getRequestCount() == 0);
+    }
+}
@@ -9,7 +9,9 @@ import com.sogeti.droidnetworking.NetworkOperation;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -270,6 +272,43 @@ public abstract class CacheTests {
         assertTrue(operation.isCachedResponse() == true);
     }
 
+    @Test
+    public void enqueuedCacheLookup() throws Throwable {
+        MockResponse response = new MockResponse();
+
+        response.setBody("OK");
+        response.setResponseCode(200);
+        response.addHeader("Cache-Control", "max-age=10");
+
+        server.enqueue(response);
+
+        server.play(8080);
+
+        NetworkEngine.getInstance().clearCache();
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.isCachedResponse() == false);
+
+        NetworkEngine.getInstance().setCacheQueue(new RobolectricBackgroundExecutorService());
+
+        operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        NetworkEngine.getInstance().enqueueOperation(operation);
+
+        // The cache is read on the cache queue, not by enqueueOperation
+        assertTrue(operation.isCachedResponse() == false);
+
+        Robolectric.runBackgroundTasks();
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.isCachedResponse() == true);
+        assertTrue(operation.getResponseString().equalsIgnoreCase("OK"));
+        assertTrue(server.getRequestCount() == 1);
+    }
+
     @Test
     public void uniqueIdentifier() {
         NetworkEngine.getInstance().clearCache();
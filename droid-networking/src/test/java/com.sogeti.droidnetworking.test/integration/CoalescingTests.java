@@ -0,0 +1,147 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class CoalescingTests {
+    private MockWebServer server;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        server.shutdown();
+    }
+
+    @Test
+    public void identicalGetsShareOneRequest() throws Throwable {
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation first = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        NetworkOperation second = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        final StringBuilder parsed = new StringBuilder();
+
+        second.setParser(new NetworkOperation.ResponseParser() {
+            @Override
+            public void parse(final InputStream is, final long size) throws IOException {
+                int read;
+
+                while ((read = is.read()) != -1) {
+                    parsed.append((char) read);
+                }
+            }
+        });
+
+        NetworkEngine.getInstance().enqueueOperation(first);
+        Future<?> future = NetworkEngine.getInstance().enqueueOperation(second);
+
+        Robolectric.runBackgroundTasks();
+
+        assertTrue(future.isDone());
+        assertTrue(first.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(second.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(second.getHttpStatusCode() == 200);
+        assertTrue(second.getResponseString().equals("OK"));
+        assertTrue(parsed.toString().equals("OK"));
+
+        // Only the first operation went to the server
+        assertTrue(server.getRequestCount() == 1);
+    }
+
+    @Test
+    public void differentParametersAreNotShared() throws Throwable {
+        server.enqueue(new MockResponse().setBody("A").setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("B").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation first = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        NetworkOperation second = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        java.util.Map<String, String> params = new java.util.HashMap<String, String>();
+        params.put("page", "2");
+        second.addParams(params);
+
+        NetworkEngine.getInstance().enqueueOperation(first);
+        NetworkEngine.getInstance().enqueueOperation(second);
+
+        Robolectric.runBackgroundTasks();
+
+        assertTrue(server.getRequestCount() == 2);
+    }
+
+    @Test
+    public void differentHeadersAreNotShared() throws Throwable {
+        server.enqueue(new MockResponse().setBody("A").setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("B").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation first = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        NetworkOperation second = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        // Another user's response must not be handed to this operation
+        second.setBasicAuthenticationHeader("user", "secret");
+
+        NetworkEngine.getInstance().enqueueOperation(first);
+        NetworkEngine.getInstance().enqueueOperation(second);
+
+        Robolectric.runBackgroundTasks();
+
+        assertTrue(server.getRequestCount() == 2);
+    }
+
+    @Test
+    public void cancelledOperationHandsOver() throws Throwable {
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation first = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        NetworkOperation second = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        Future<?> future = NetworkEngine.getInstance().enqueueOperation(first);
+        NetworkEngine.getInstance().enqueueOperation(second);
+
+        // The second operation makes its own request when the one it was waiting for is cancelled
+        future.cancel(true);
+
+        Robolectric.runBackgroundTasks();
+
+        assertTrue(second.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(second.getResponseString().equals("OK"));
+        assertTrue(server.getRequestCount() == 1);
+    }
+}
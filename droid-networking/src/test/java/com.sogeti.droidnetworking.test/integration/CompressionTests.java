@@ -0,0 +1,207 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.google.mockwebserver.RecordedRequest;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.RetryPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class CompressionTests {
+    private MockWebServer server;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        server.shutdown();
+    }
+
+    @Test
+    public void gzipRequest() throws Throwable {
+        server.enqueue(new MockResponse().setBody("").setResponseCode(201));
+        server.play(8080);
+
+        String body = createBody();
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setHttpMethod(NetworkEngine.HttpMethod.POST);
+        operation.setBody(body.getBytes("UTF-8"));
+        operation.setRequestCompression(NetworkOperation.RequestCompression.GZIP);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+
+        RecordedRequest request = server.takeRequest();
+        assertTrue(request.getHeader("Content-Encoding").equals("gzip"));
+        assertTrue(request.getBody().length < body.length() / 5);
+        assertTrue(read(new GZIPInputStream(new ByteArrayInputStream(request.getBody()))).equals(body));
+    }
+
+    @Test
+    public void deflateRequest() throws Throwable {
+        server.enqueue(new MockResponse().setBody("").setResponseCode(200));
+        server.play(8080);
+
+        String body = createBody();
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setHttpMethod(NetworkEngine.HttpMethod.PUT);
+        operation.setBody(body.getBytes("UTF-8"));
+        operation.setRequestCompression(NetworkOperation.RequestCompression.DEFLATE);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        RecordedRequest request = server.takeRequest();
+        assertTrue(request.getHeader("Content-Encoding").equals("deflate"));
+        assertTrue(read(new InflaterInputStream(new ByteArrayInputStream(request.getBody()))).equals(body));
+    }
+
+    @Test
+    public void smallRequestIsNotCompressed() throws Throwable {
+        server.enqueue(new MockResponse().setBody("").setResponseCode(201));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setHttpMethod(NetworkEngine.HttpMethod.POST);
+        operation.setBody("{\"id\":1}".getBytes("UTF-8"));
+        operation.setRequestCompression(NetworkOperation.RequestCompression.GZIP);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        // Below the threshold the body is sent as it is
+        RecordedRequest request = server.takeRequest();
+        assertTrue(request.getHeader("Content-Encoding") == null);
+        assertTrue(request.getUtf8Body().equals("{\"id\":1}"));
+    }
+
+    @Test
+    public void gzipResponseWithSeveralMembers() throws Throwable {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(gzip("Hello "));
+        body.write(gzip("World"));
+
+        server.enqueue(new MockResponse().setBody(body.toByteArray()).addHeader("Content-Encoding", "gzip"));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(server.takeRequest().getHeader("Accept-Encoding").equals("gzip, deflate"));
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseString().equals("Hello World"));
+    }
+
+    @Test
+    public void deflateResponse() throws Throwable {
+        // Servers send deflate both with and without the zlib wrapper
+        server.enqueue(new MockResponse().setBody(deflate("zlib", false)).addHeader("Content-Encoding", "deflate"));
+        server.enqueue(new MockResponse().setBody(deflate("raw", true)).addHeader("Content-Encoding", "deflate"));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost/zlib");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getResponseString().equals("zlib"));
+
+        operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost/raw");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getResponseString().equals("raw"));
+    }
+
+    @Test
+    public void corruptResponse() throws Throwable {
+        byte[] body = gzip("Hello World");
+        body[body.length - 8] ^= 1;
+
+        server.enqueue(new MockResponse().setBody(body).addHeader("Content-Encoding", "gzip"));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setRetryPolicy(RetryPolicy.NO_RETRY);
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        // The checksum in the trailer doesn't match
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+    }
+
+    private static byte[] gzip(final String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(text.getBytes("UTF-8"));
+        gzip.close();
+
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(final String text, final boolean raw) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+        deflate.write(text.getBytes("UTF-8"));
+        deflate.close();
+
+        return out.toByteArray();
+    }
+
+    private static String createBody() {
+        StringBuilder body = new StringBuilder();
+
+        for (int i = 0; i < 1000; i++) {
+            body.append("{\"id\":").append(i).append(",\"name\":\"item\"},");
+        }
+
+        return body.toString();
+    }
+
+    private static String read(final InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+
+        while ((read = is.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+
+        is.close();
+
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,115 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.sogeti.droidnetworking.DirectBufferPool;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class DirectBufferTests {
+    private MockWebServer server;
+    private byte[] body;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+
+        body = new byte[300000];
+
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        server.shutdown();
+    }
+
+    @Test
+    public void directBuffer() throws Throwable {
+        server.enqueue(new MockResponse().setBody(body));
+        server.play(8080);
+
+        final long[] parsed = new long[1];
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setResponseMode(NetworkOperation.ResponseMode.DIRECT_BUFFER);
+        operation.setParser(new NetworkOperation.ResponseParser() {
+            @Override
+            public void parse(final InputStream is, final long size) throws IOException {
+                while (is.read() != -1) {
+                    parsed[0]++;
+                }
+            }
+        });
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseData() == null);
+        assertTrue(parsed[0] == body.length);
+
+        ByteBuffer buffer = operation.getResponseBuffer();
+        assertTrue(buffer.isDirect());
+        assertTrue(buffer.isReadOnly());
+        assertTrue(Arrays.equals(toArray(buffer), body));
+    }
+
+    @Test
+    public void chunkedBodyIsReturnedToPool() throws Throwable {
+        // Without a Content-Length the buffer grows as the body arrives
+        server.enqueue(new MockResponse().setChunkedBody(body, 4096));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setResponseMode(NetworkOperation.ResponseMode.DIRECT_BUFFER);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(Arrays.equals(toArray(operation.getResponseBuffer()), body));
+
+        int pooled = DirectBufferPool.getInstance().getSize();
+
+        operation.release();
+
+        assertTrue(operation.getResponseBuffer() == null);
+        assertTrue(DirectBufferPool.getInstance().getSize() > pooled);
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+
+        return data;
+    }
+}
@@ -1,15 +1,23 @@
 package com.sogeti.droidnetworking.test.integration;
 
+import com.google.mockwebserver.MockResponse;
 import com.google.mockwebserver.MockWebServer;
 
 import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
 
 import org.junit.Before;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.util.RobolectricBackgroundExecutorService;
 
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertTrue;
+
 import android.app.Activity;
 
 public class DiskCacheTests extends CacheTests {
@@ -29,4 +37,45 @@ public class DiskCacheTests extends CacheTests {
         Robolectric.getBackgroundScheduler().pause();
         Robolectric.getUiThreadScheduler().pause();
     }
+
+    @Test
+    public void streamedResponse() throws Throwable {
+        MockResponse response = new MockResponse();
+
+        response.setBody("Streamed");
+        response.setResponseCode(200);
+        response.addHeader("Cache-Control", "max-age=10");
+
+        server.enqueue(response);
+        server.play(8080);
+
+        NetworkEngine.getInstance().clearCache();
+
+        final StringBuilder parsed = new StringBuilder();
+        NetworkOperation.ResponseParser parser = new NetworkOperation.ResponseParser() {
+            @Override
+            public void parse(final InputStream is, final long size) throws IOException {
+                // Reads only part of the body, the rest still ends up in the cache
+                byte[] buffer = new byte[6];
+                int read = is.read(buffer);
+                parsed.append(new String(buffer, 0, read, "UTF-8"));
+            }
+        };
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setResponseMode(NetworkOperation.ResponseMode.STREAMING);
+        operation.setParser(parser);
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseData() == null);
+
+        // The body was written to the disk cache while it was streamed
+        operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.isCachedResponse());
+        assertTrue(operation.getResponseString().equals("Streamed"));
+        assertTrue(server.getRequestCount() == 1);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,181 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.google.mockwebserver.RecordedRequest;
+import com.google.mockwebserver.SocketPolicy;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.RetryPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class DownloadTests {
+    private MockWebServer server;
+    private File file;
+
+    @Before
+    public void setup() throws Throwable {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+        file = File.createTempFile("download", ".txt");
+        file.delete();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        server.shutdown();
+
+        file.delete();
+        new File(file.getPath() + ".partial").delete();
+        new File(file.getPath() + ".partial.meta").delete();
+    }
+
+    @Test
+    public void download() throws Throwable {
+        server.enqueue(new MockResponse().setBody("0123456789").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = createDownload();
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(read(file).equals("0123456789"));
+
+        // The body went into the file, nothing is kept in memory
+        assertTrue(operation.getResponseData() == null);
+    }
+
+    @Test
+    public void resume() throws Throwable {
+        // The connection closes halfway through the body
+        server.enqueue(new MockResponse().setBody("0123456789").setHeader("Content-Length", 20)
+                .addHeader("ETag", "\"v1\"").setSocketPolicy(SocketPolicy.DISCONNECT_AT_END));
+        server.enqueue(new MockResponse().setBody("abcdefghij").setResponseCode(206)
+                .addHeader("ETag", "\"v1\"").addHeader("Content-Range", "bytes 10-19/20"));
+        server.play(8080);
+
+        NetworkOperation operation = createDownload();
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(!file.exists());
+
+        operation = createDownload();
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        server.takeRequest();
+        RecordedRequest request = server.takeRequest();
+
+        // Only the rest of the body is asked for, as long as it is the same resource
+        assertTrue(request.getHeader("Range").equals("bytes=10-"));
+        assertTrue(request.getHeader("If-Range").equals("\"v1\""));
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(read(file).equals("0123456789abcdefghij"));
+    }
+
+    @Test
+    public void restartWhenChanged() throws Throwable {
+        server.enqueue(new MockResponse().setBody("0123456789").setHeader("Content-Length", 20)
+                .addHeader("ETag", "\"v1\"").setSocketPolicy(SocketPolicy.DISCONNECT_AT_END));
+        server.enqueue(new MockResponse().setBody("ABCDEFGHIJKLMNOPQRST").setResponseCode(200)
+                .addHeader("ETag", "\"v2\""));
+        server.play(8080);
+
+        NetworkEngine.getInstance().executeOperation(createDownload());
+
+        // The resource changed, so the server sends all of it and the partial file is replaced
+        NetworkOperation operation = createDownload();
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(read(file).equals("ABCDEFGHIJKLMNOPQRST"));
+    }
+
+    @Test(timeout = 30000)
+    public void unexpectedRangeReleasesConnection() throws Throwable {
+        // With a single connection to the server, a leaked one would stall the next request
+        NetworkEngine.getInstance().setMaxConnectionsPerRoute(1);
+        NetworkEngine.getInstance().init(new Activity());
+
+        try {
+            server.enqueue(new MockResponse().setBody("0123456789").setHeader("Content-Length", 20)
+                    .addHeader("ETag", "\"v1\"").setSocketPolicy(SocketPolicy.DISCONNECT_AT_END));
+            server.enqueue(new MockResponse().setBody("56789abcdefghij").setResponseCode(206)
+                    .addHeader("ETag", "\"v1\"").addHeader("Content-Range", "bytes 5-19/20"));
+            server.enqueue(new MockResponse().setBody("OK"));
+            server.play(8080);
+
+            NetworkOperation operation = createDownload();
+            NetworkEngine.getInstance().executeOperation(operation);
+
+            // The range doesn't continue the partial file, the body is left unread
+            operation = createDownload();
+            NetworkEngine.getInstance().executeOperation(operation);
+
+            assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+
+            operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+            NetworkEngine.getInstance().executeOperation(operation);
+
+            assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+            assertTrue(operation.getResponseString().equals("OK"));
+        } finally {
+            NetworkEngine.getInstance().setMaxConnectionsPerRoute(2);
+        }
+    }
+
+    private NetworkOperation createDownload() {
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setDownloadFile(file);
+
+        // A download that breaks off is a network failure, but each response here is meant for
+        // one attempt
+        operation.setRetryPolicy(RetryPolicy.NO_RETRY);
+
+        return operation;
+    }
+
+    private static String read(final File file) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+
+            while (offset < buffer.length && (read = is.read(buffer, offset, buffer.length - offset)) != -1) {
+                offset += read;
+            }
+
+            return new String(buffer, 0, offset, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+}
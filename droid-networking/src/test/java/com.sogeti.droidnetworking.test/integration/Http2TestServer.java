@@ -0,0 +1,255 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.sogeti.droidnetworking.transport.Hpack;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal cleartext HTTP/2 server for the transport tests, as MockWebServer only speaks
+ * HTTP/1.1. Responses are served in the order the requests complete.
+ */
+public class Http2TestServer {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    private final LinkedList<String[]> responses = new LinkedList<String[]>();
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+    private final List<Socket> sockets = new ArrayList<Socket>();
+    private ServerSocket serverSocket;
+    private int connectionCount = 0;
+
+    public static class Request {
+        private final Map<String, String> headers = new HashMap<String, String>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private int weight = 16;
+        private int connection;
+
+        public String getHeader(final String name) {
+            return headers.get(name);
+        }
+
+        public byte[] getBody() {
+            return body.toByteArray();
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        // The connection the request came in on, in the order the connections were accepted
+        public int getConnection() {
+            return connection;
+        }
+    }
+
+    public synchronized void enqueue(final int status, final String body) {
+        responses.add(new String[] {String.valueOf(status), body});
+    }
+
+    public Request takeRequest() throws InterruptedException {
+        return requests.poll(10, TimeUnit.SECONDS);
+    }
+
+    public synchronized int getConnectionCount() {
+        return connectionCount;
+    }
+
+    public void play(final int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress("localhost", port));
+
+        Thread acceptThread = new Thread("Http2TestServer") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        final int connection;
+
+                        synchronized (Http2TestServer.this) {
+                            sockets.add(socket);
+                            connection = connectionCount++;
+                        }
+
+                        new Thread("Http2TestServer-" + connection) {
+                            @Override
+                            public void run() {
+                                try {
+                                    serve(socket, connection);
+                                } catch (IOException e) {
+                                    // Connection closed
+                                } finally {
+                                    closeQuietly(socket);
+                                }
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    // Server shut down
+                }
+            }
+        };
+
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public synchronized void shutdown() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void serve(final Socket socket, final int connection) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        Hpack.Encoder encoder = new Hpack.Encoder(4096);
+        Map<Integer, Request> streams = new HashMap<Integer, Request>();
+        ByteArrayOutputStream headerBlock = null;
+        boolean headerBlockEndStream = false;
+
+        byte[] preface = new byte[PREFACE.length];
+        in.readFully(preface);
+
+        if (!Arrays.equals(preface, PREFACE)) {
+            throw new IOException("Not an HTTP/2 connection");
+        }
+
+        writeFrame(out, 0x4, 0, 0, new byte[0], 0, 0);
+
+        while (true) {
+            int header = in.readInt();
+            int length = header >>> 8;
+            int type = header & 0xff;
+            int flags = in.readUnsignedByte();
+            int streamId = in.readInt() & 0x7fffffff;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            if (type == 0x1) {
+                Request request = new Request();
+                int start = 0;
+
+                request.connection = connection;
+
+                if ((flags & 0x20) != 0) {
+                    request.weight = (payload[4] & 0xff) + 1;
+                    start = 5;
+                }
+
+                streams.put(streamId, request);
+                headerBlock = new ByteArrayOutputStream();
+                headerBlock.write(payload, start, payload.length - start);
+                headerBlockEndStream = (flags & 0x1) != 0;
+            } else if (type == 0x9) {
+                headerBlock.write(payload, 0, payload.length);
+            } else if (type == 0x0) {
+                Request request = streams.get(streamId);
+                request.body.write(payload, 0, payload.length);
+
+                if (length > 0) {
+                    byte[] increment = {(byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8),
+                        (byte) length};
+                    writeFrame(out, 0x8, 0, 0, increment, 0, 4);
+                    writeFrame(out, 0x8, 0, streamId, increment, 0, 4);
+                }
+
+                if ((flags & 0x1) != 0) {
+                    respond(out, encoder, streamId, streams.remove(streamId));
+                }
+            } else if (type == 0x4 && (flags & 0x1) == 0) {
+                writeFrame(out, 0x4, 0x1, 0, new byte[0], 0, 0);
+            } else if (type == 0x6 && (flags & 0x1) == 0) {
+                writeFrame(out, 0x6, 0x1, 0, payload, 0, payload.length);
+            } else if (type == 0x3) {
+                streams.remove(streamId);
+            } else if (type == 0x7) {
+                return;
+            }
+
+            if ((type == 0x1 || type == 0x9) && (flags & 0x4) != 0) {
+                Request request = streams.get(streamId);
+
+                for (Header field : decoder.decode(headerBlock.toByteArray())) {
+                    request.headers.put(field.getName(), field.getValue());
+                }
+
+                headerBlock = null;
+
+                if (headerBlockEndStream) {
+                    respond(out, encoder, streamId, streams.remove(streamId));
+                }
+            }
+        }
+    }
+
+    private void respond(final OutputStream out, final Hpack.Encoder encoder, final int streamId,
+            final Request request) throws IOException {
+        String[] response;
+
+        synchronized (this) {
+            response = responses.isEmpty() ? new String[] {"404", ""} : responses.removeFirst();
+        }
+
+        requests.add(request);
+
+        byte[] body = response[1].getBytes("UTF-8");
+        List<Header> headers = new ArrayList<Header>();
+        headers.add(new BasicHeader(":status", response[0]));
+        headers.add(new BasicHeader("content-length", String.valueOf(body.length)));
+
+        byte[] block = encoder.encode(headers);
+        writeFrame(out, 0x1, 0x4 | (body.length == 0 ? 0x1 : 0), streamId, block, 0, block.length);
+
+        for (int offset = 0; offset < body.length; offset += MAX_FRAME_SIZE) {
+            int length = Math.min(MAX_FRAME_SIZE, body.length - offset);
+            writeFrame(out, 0x0, offset + length == body.length ? 0x1 : 0, streamId, body, offset, length);
+        }
+
+        out.flush();
+    }
+
+    private static void writeFrame(final OutputStream out, final int type, final int flags, final int streamId,
+            final byte[] payload, final int offset, final int length) throws IOException {
+        byte[] header = {
+            (byte) (length >>> 16), (byte) (length >>> 8), (byte) length, (byte) type, (byte) flags,
+            (byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId
+        };
+
+        out.write(header);
+        out.write(payload, offset, length);
+        out.flush();
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.transport.Http2Transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class Http2TransportTests {
+    private Http2TestServer server;
+    private Http2Transport transport;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new Http2TestServer();
+        transport = new Http2Transport();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+        NetworkEngine.getInstance().setTransport(transport);
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        NetworkEngine.getInstance().setTransport(null);
+        NetworkEngine.getInstance().setMaxConcurrentOperations(4);
+        NetworkEngine.getInstance().setMaxConcurrentOperationsPerHost(2);
+
+        transport.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void get() throws Throwable {
+        server.enqueue(200, "OK");
+        server.enqueue(200, "Again");
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080/a?b=c");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseString().equals("OK"));
+
+        operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080/");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getResponseString().equals("Again"));
+
+        Http2TestServer.Request request = server.takeRequest();
+
+        assertTrue(request.getHeader(":method").equals("GET"));
+        assertTrue(request.getHeader(":path").equals("/a?b=c"));
+        assertTrue(request.getHeader(":authority").equals("localhost:8080"));
+
+        // Both requests went over the same connection
+        assertTrue(server.getConnectionCount() == 1);
+    }
+
+    @Test
+    public void post() throws Throwable {
+        server.enqueue(201, "Created");
+        server.play(8080);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("name", "value");
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080",
+                params, NetworkEngine.HttpMethod.POST);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        Http2TestServer.Request request = server.takeRequest();
+
+        assertTrue(operation.getHttpStatusCode() == 201);
+        assertTrue(operation.getResponseString().equals("Created"));
+        assertTrue(new String(request.getBody(), "UTF-8").equals("name=value"));
+        assertTrue(request.getHeader("content-length").equals("10"));
+    }
+
+    @Test
+    public void error() throws Throwable {
+        server.enqueue(404, "Not found");
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(operation.getHttpStatusCode() == 404);
+    }
+
+    @Test
+    public void multiplexing() throws Throwable {
+        int count = 20;
+
+        for (int i = 0; i < count; i++) {
+            server.enqueue(200, "OK");
+        }
+
+        server.play(8080);
+
+        NetworkEngine.getInstance().setMaxConcurrentOperations(count);
+        NetworkEngine.getInstance().setMaxConcurrentOperationsPerHost(count);
+
+        List<NetworkOperation> operations = new ArrayList<NetworkOperation>();
+
+        for (int i = 0; i < count; i++) {
+            operations.add(NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080/" + i));
+        }
+
+        for (NetworkOperation operation : enqueueOperations(operations)) {
+            assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+            assertTrue(operation.getResponseString().equals("OK"));
+        }
+
+        // All operations shared one connection
+        assertTrue(server.getConnectionCount() == 1);
+    }
+
+    @Test
+    public void priorityWeights() throws Throwable {
+        server.enqueue(200, "OK");
+        server.enqueue(200, "OK");
+        server.play(8080);
+
+        NetworkOperation immediate = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080/");
+        immediate.setPriority(NetworkOperation.Priority.IMMEDIATE);
+        NetworkEngine.getInstance().executeOperation(immediate);
+
+        NetworkOperation background = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080/");
+        background.setPriority(NetworkOperation.Priority.BACKGROUND);
+        NetworkEngine.getInstance().executeOperation(background);
+
+        assertTrue(server.takeRequest().getWeight() == 256);
+        assertTrue(server.takeRequest().getWeight() == 1);
+    }
+
+    // Enqueues the operations and waits for all of them
+    private List<NetworkOperation> enqueueOperations(final List<NetworkOperation> operations) throws Throwable {
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        NetworkEngine.getInstance().setSharedNetworkQueue(workers);
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (NetworkOperation operation : operations) {
+            futures.add(NetworkEngine.getInstance().enqueueOperation(operation));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            workers.shutdown();
+        }
+
+        return operations;
+    }
+}
@@ -7,6 +7,7 @@ import com.google.mockwebserver.MockWebServer;
 import com.google.mockwebserver.RecordedRequest;
 import com.sogeti.droidnetworking.NetworkEngine;
 import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.external.MultipartEntity;
 
 import org.junit.After;
 import org.junit.Before;
@@ -16,7 +17,15 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.util.RobolectricBackgroundExecutorService;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.System;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -79,6 +88,34 @@ public class MultipartTests {
         assertTrue(numberOfBoundariesInBody(boundary, request.getUtf8Body()) == 3);
     }
 
+    @Test
+    public void postMultipartWithFile() throws Throwable {
+        server.enqueue(new MockResponse().setBody("").setResponseCode(201));
+        server.play(8080);
+
+        File file = File.createTempFile("upload", ".txt");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("File contents".getBytes("UTF-8"));
+        out.close();
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost", new HashMap<String, String>(), NetworkEngine.HttpMethod.POST);
+        operation.addFile(file, "file", "text/plain");
+
+        NetworkEngine.getInstance().executeOperation(operation);
+        file.delete();
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+
+        RecordedRequest request = server.takeRequest();
+        String boundary = getBoundaryFromContentType(request.getHeader("Content-Type"));
+
+        // The length is known before the file is read, so the body isn't chunked
+        assertTrue(request.getHeader("Content-Length").equals(String.valueOf(request.getBodySize())));
+        assertTrue(request.getUtf8Body().contains("filename=\"" + file.getName() + "\"\r\nContent-Type: text/plain\r\n"));
+        assertTrue(request.getUtf8Body().contains("\r\n\r\nFile contents\r\n--" + boundary + "--\r\n"));
+        assertTrue(numberOfBoundariesInBody(boundary, request.getUtf8Body()) == 2);
+    }
+
     private int numberOfBoundariesInBody(String boundary, String body) {
         Pattern p = Pattern.compile(boundary);
         Matcher m = p.matcher(body);
@@ -106,6 +143,38 @@ public class MultipartTests {
         return boundary;
     }
 
+    @Test
+    public void contentMatchesWrittenBody() throws Throwable {
+        File file = File.createTempFile("upload", ".txt");
+        file.deleteOnExit();
+
+        OutputStream out = new FileOutputStream(file);
+        out.write("file body".getBytes("UTF-8"));
+        out.close();
+
+        MultipartEntity entity = new MultipartEntity();
+        entity.addPart("name", "value");
+        entity.addPart("file", file);
+        entity.addPart("data", "data.bin", new byte[] {1, 2, 3}, "application/octet-stream");
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        entity.writeTo(written);
+
+        // The entity can be read back, for example to sign it, and reads the same as it is sent
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        InputStream in = entity.getContent();
+        int b;
+
+        while ((b = in.read()) != -1) {
+            read.write(b);
+        }
+
+        in.close();
+
+        assertTrue(Arrays.equals(written.toByteArray(), read.toByteArray()));
+        assertTrue(read.size() == entity.getContentLength());
+    }
+
     @Test
     public void postWithRawBody() throws Throwable {
         server.enqueue(new MockResponse().setBody("").setResponseCode(201));
@@ -130,4 +199,74 @@ public class MultipartTests {
         assertTrue(request.getBodySize() == 4);
         assertTrue(request.getUtf8Body().equals("ABCD"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void postWithFileBody() throws Throwable {
+        server.enqueue(new MockResponse().setBody("").setResponseCode(201));
+        server.play(8080);
+
+        File file = File.createTempFile("body", ".json");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("{\"a\":1}".getBytes("UTF-8"));
+        out.close();
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setHttpMethod(NetworkEngine.HttpMethod.POST);
+        operation.setBody(file);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+        file.delete();
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+
+        RecordedRequest request = server.takeRequest();
+        assertTrue(request.getHeader("Content-Length").equals("7"));
+        assertTrue(request.getUtf8Body().equals("{\"a\":1}"));
+    }
+
+    @Test
+    public void postWithStreamBody() throws Throwable {
+        server.enqueue(new MockResponse().setBody("").setResponseCode(201));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setHttpMethod(NetworkEngine.HttpMethod.POST);
+        operation.setBody(new ByteArrayInputStream("ABCD".getBytes("UTF-8")), -1);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+
+        // Without a length the body is sent chunked
+        RecordedRequest request = server.takeRequest();
+        assertTrue(request.getHeader("Transfer-Encoding").equals("chunked"));
+        assertTrue(request.getHeader("Content-Length") == null);
+        assertTrue(request.getUtf8Body().equals("ABCD"));
+    }
+
+    @Test
+    public void putWithWriterBody() throws Throwable {
+        server.enqueue(new MockResponse().setBody("").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setHttpMethod(NetworkEngine.HttpMethod.PUT);
+        operation.setBody(new NetworkOperation.BodyWriter() {
+            @Override
+            public void writeTo(final OutputStream out) throws IOException {
+                for (int i = 0; i < 3; i++) {
+                    out.write(("line " + i + "\n").getBytes("UTF-8"));
+                }
+            }
+        }, 21);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+
+        RecordedRequest request = server.takeRequest();
+        assertTrue(request.getRequestLine().equals("PUT / HTTP/1.1"));
+        assertTrue(request.getHeader("Content-Length").equals("21"));
+        assertTrue(request.getUtf8Body().equals("line 0\nline 1\nline 2\n"));
+    }
+}
@@ -0,0 +1,224 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.google.mockwebserver.RecordedRequest;
+import com.google.mockwebserver.SocketPolicy;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.transport.NioTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class NioTransportTests {
+    private MockWebServer server;
+    private NioTransport transport;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+        transport = new NioTransport();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+        NetworkEngine.getInstance().setTransport(transport);
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        NetworkEngine.getInstance().setTransport(null);
+        NetworkEngine.getInstance().setMaxConcurrentOperations(4);
+        NetworkEngine.getInstance().setMaxConcurrentOperationsPerHost(2);
+
+        transport.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void get() throws Throwable {
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.enqueue(new MockResponse().setChunkedBody("Chunked", 3).setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseString().equals("OK"));
+
+        operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080/chunked");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseString().equals("Chunked"));
+
+        // The second request reused the kept alive connection
+        server.takeRequest();
+        assertTrue(server.takeRequest().getSequenceNumber() == 1);
+    }
+
+    @Test
+    public void post() throws Throwable {
+        server.enqueue(new MockResponse().setBody("Created").setResponseCode(201));
+        server.play(8080);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("name", "value");
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080",
+                params, NetworkEngine.HttpMethod.POST);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        RecordedRequest request = server.takeRequest();
+
+        assertTrue(operation.getHttpStatusCode() == 201);
+        assertTrue(operation.getResponseString().equals("Created"));
+        assertTrue(new String(request.getBody(), "UTF-8").equals("name=value"));
+    }
+
+    @Test
+    public void error() throws Throwable {
+        server.enqueue(new MockResponse().setBody("Not found").setResponseCode(404));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(operation.getHttpStatusCode() == 404);
+    }
+
+    @Test
+    public void manyOperationsFewThreads() throws Throwable {
+        int count = 20;
+
+        for (int i = 0; i < count; i++) {
+            server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        }
+
+        server.play(8080);
+
+        NetworkEngine.getInstance().setMaxConcurrentOperations(count);
+        NetworkEngine.getInstance().setMaxConcurrentOperationsPerHost(count);
+
+        for (NetworkOperation operation : enqueueOperations(count)) {
+            assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+            assertTrue(operation.getResponseString().equals("OK"));
+        }
+
+        assertTrue(server.getRequestCount() == count);
+    }
+
+    @Test
+    public void pipelining() throws Throwable {
+        int count = 10;
+
+        for (int i = 0; i <= count; i++) {
+            server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        }
+
+        server.play(8080);
+
+        transport.setPipelining(true);
+        transport.setMaxConnectionsPerRoute(1);
+
+        // The first response tells the transport that the server keeps HTTP/1.1 connections alive
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        for (NetworkOperation pipelined : enqueueOperations(count)) {
+            assertTrue(pipelined.getStatus() == NetworkOperation.STATUS_COMPLETED);
+            assertTrue(pipelined.getResponseString().equals("OK"));
+        }
+
+        // All requests went over the one connection
+        for (int i = 0; i <= count; i++) {
+            assertTrue(server.takeRequest().getSequenceNumber() == i);
+        }
+    }
+
+    @Test
+    public void pipeliningFallback() throws Throwable {
+        int count = 10;
+
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+
+        // The server drops the connection with the pipelined requests still waiting
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200)
+                .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END));
+
+        for (int i = 0; i < count; i++) {
+            server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        }
+
+        server.play(8080);
+
+        transport.setPipelining(true);
+        transport.setMaxConnectionsPerRoute(1);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080");
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        // The unanswered requests are sent again, one at a time
+        for (NetworkOperation pipelined : enqueueOperations(count)) {
+            assertTrue(pipelined.getStatus() == NetworkOperation.STATUS_COMPLETED);
+            assertTrue(pipelined.getResponseString().equals("OK"));
+        }
+    }
+
+    // Enqueues GETs to distinct paths and waits for all of them
+    private List<NetworkOperation> enqueueOperations(final int count) throws Throwable {
+        // Two worker threads are enough, they are not held while the requests are in flight
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        NetworkEngine.getInstance().setSharedNetworkQueue(workers);
+
+        List<NetworkOperation> operations = new ArrayList<NetworkOperation>();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+
+        for (int i = 0; i < count; i++) {
+            NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString(
+                    "http://localhost:8080/" + i);
+
+            operations.add(operation);
+            futures.add(NetworkEngine.getInstance().enqueueOperation(operation));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            workers.shutdown();
+        }
+
+        return operations;
+    }
+}
@@ -0,0 +1,137 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.sogeti.droidnetworking.CallbackExecutors;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class ProgressTests {
+    private MockWebServer server;
+    private byte[] body;
+    private List<Long> uploads;
+    private List<Long> downloads;
+    private long uploadTotal;
+    private long downloadTotal;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+
+        body = new byte[100000];
+        uploads = new ArrayList<Long>();
+        downloads = new ArrayList<Long>();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        server.shutdown();
+    }
+
+    @Test
+    public void uploadAndDownloadProgress() throws Throwable {
+        server.enqueue(new MockResponse().setBody(body));
+        server.play(8080);
+
+        NetworkOperation operation = createOperation();
+        operation.setHttpMethod(NetworkEngine.HttpMethod.POST);
+        operation.setBody(body);
+        operation.setProgressThrottle(0, 10000);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+
+        // One report for every 10000 bytes at most, the last one for the whole body
+        assertIncreasing(uploads, body.length, 10);
+        assertIncreasing(downloads, body.length, 10);
+        assertTrue(uploadTotal == body.length && downloadTotal == body.length);
+    }
+
+    @Test
+    public void chunkedDownloadHasNoTotal() throws Throwable {
+        server.enqueue(new MockResponse().setChunkedBody(body, 4096));
+        server.play(8080);
+
+        NetworkOperation operation = createOperation();
+        operation.setProgressThrottle(0, 1);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(uploads.isEmpty());
+        assertIncreasing(downloads, body.length, body.length);
+        assertTrue(downloadTotal == -1);
+    }
+
+    @Test
+    public void reportsAreThrottledByTime() throws Throwable {
+        server.enqueue(new MockResponse().setBody(body));
+        server.play(8080);
+
+        NetworkOperation operation = createOperation();
+        operation.setProgressThrottle(60 * 1000, 1);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        // Only the end of the body is reported within the interval
+        assertTrue(downloads.size() <= 2);
+        assertTrue(downloads.get(downloads.size() - 1) == body.length);
+    }
+
+    private NetworkOperation createOperation() {
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setCallbackExecutor(CallbackExecutors.DIRECT);
+        operation.setProgressListener(new NetworkOperation.ProgressListener() {
+            @Override
+            public void onUploadProgress(final NetworkOperation operation, final long bytesWritten, final long total) {
+                uploads.add(bytesWritten);
+                uploadTotal = total;
+            }
+
+            @Override
+            public void onDownloadProgress(final NetworkOperation operation, final long bytesRead, final long total) {
+                downloads.add(bytesRead);
+                downloadTotal = total;
+            }
+        });
+
+        return operation;
+    }
+
+    private static void assertIncreasing(final List<Long> reports, final long length, final int maxReports) {
+        assertTrue(!reports.isEmpty() && reports.size() <= maxReports);
+
+        for (int i = 1; i < reports.size(); i++) {
+            assertTrue(reports.get(i) > reports.get(i - 1));
+        }
+
+        assertTrue(reports.get(reports.size() - 1) == length);
+    }
+}
@@ -0,0 +1,197 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.ResponseTooLargeException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class ResponseSizeTests {
+    private MockWebServer server;
+    private byte[] body;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+
+        body = new byte[200000];
+
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        server.shutdown();
+    }
+
+    @Test
+    public void smallBodyStaysInMemory() throws Throwable {
+        server.enqueue(new MockResponse().setBody(body));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setSpillThreshold(body.length);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseFile() == null);
+        assertTrue(Arrays.equals(operation.getResponseData(), body));
+        assertTrue(Arrays.equals(read(operation.getResponseStream()), body));
+    }
+
+    @Test
+    public void spillToFile() throws Throwable {
+        server.enqueue(new MockResponse().setBody(body));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setSpillThreshold(64 * 1024);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseData() == null);
+
+        File file = operation.getResponseFile();
+        assertTrue(file != null && file.length() == body.length);
+        assertTrue(Arrays.equals(read(operation.getResponseStream()), body));
+
+        operation.release();
+        assertTrue(!file.exists());
+        assertTrue(operation.getResponseFile() == null);
+    }
+
+    @Test
+    public void spillChunkedBody() throws Throwable {
+        // Without a Content-Length the body moves to a file once it grows past the threshold
+        server.enqueue(new MockResponse().setChunkedBody(body, 4096));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setSpillThreshold(100000);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getResponseData() == null);
+        assertTrue(Arrays.equals(read(operation.getResponseStream()), body));
+
+        operation.release();
+    }
+
+    @Test
+    public void tooLarge() throws Throwable {
+        server.enqueue(new MockResponse().setBody(body));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setMaxResponseSize(body.length - 1);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(operation.getException() instanceof ResponseTooLargeException);
+        assertTrue(operation.getResponseData() == null);
+    }
+
+    @Test
+    public void tooLargeChunked() throws Throwable {
+        // Only known once the body has been read past the limit, the spilled part is thrown away
+        server.enqueue(new MockResponse().setChunkedBody(body, 4096));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setMaxResponseSize(150000);
+        operation.setSpillThreshold(64 * 1024);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(operation.getException() instanceof ResponseTooLargeException);
+        assertTrue(operation.getResponseFile() == null);
+        assertTrue(server.getRequestCount() == 1);
+    }
+
+    @Test(timeout = 30000)
+    public void tooLargeReleasesConnection() throws Throwable {
+        // With a single connection to the server, a leaked one would stall the next request
+        NetworkEngine.getInstance().setMaxConnectionsPerRoute(1);
+        NetworkEngine.getInstance().init(new Activity());
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                server.enqueue(new MockResponse().setBody(body));
+            }
+
+            server.enqueue(new MockResponse().setBody("OK"));
+            server.play(8080);
+
+            for (int i = 0; i < 3; i++) {
+                NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+                operation.setMaxResponseSize(body.length - 1);
+
+                NetworkEngine.getInstance().executeOperation(operation);
+
+                assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+                assertTrue(operation.getException() instanceof ResponseTooLargeException);
+            }
+
+            NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+            NetworkEngine.getInstance().executeOperation(operation);
+
+            assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+            assertTrue(operation.getResponseString().equals("OK"));
+        } finally {
+            NetworkEngine.getInstance().setMaxConnectionsPerRoute(2);
+        }
+    }
+
+    private static byte[] read(final InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+
+        try {
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+
+        return out.toByteArray();
+    }
+}
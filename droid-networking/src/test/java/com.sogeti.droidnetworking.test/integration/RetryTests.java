@@ -0,0 +1,190 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.RetryPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class RetryTests {
+    private MockWebServer server;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+
+        RetryPolicy retryPolicy = new RetryPolicy(2);
+        retryPolicy.setInitialBackoff(10);
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setRetryPolicy(retryPolicy);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        NetworkEngine.getInstance().setRetryPolicy(new RetryPolicy());
+
+        server.shutdown();
+    }
+
+    @Test
+    public void retryAfterServiceUnavailable() throws Throwable {
+        server.enqueue(new MockResponse().setResponseCode(503).addHeader("Retry-After", "0"));
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getHttpStatusCode() == 200);
+        assertTrue(operation.getResponseString().equals("OK"));
+        assertTrue(server.getRequestCount() == 2);
+    }
+
+    @Test
+    public void giveUpAfterMaxRetries() throws Throwable {
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        // One attempt and two retries
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(operation.getHttpStatusCode() == 502);
+        assertTrue(server.getRequestCount() == 3);
+    }
+
+    @Test
+    public void retryAfterTooLong() throws Throwable {
+        server.enqueue(new MockResponse().setResponseCode(429).addHeader("Retry-After", "3600"));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getHttpStatusCode() == 429);
+        assertTrue(server.getRequestCount() == 1);
+    }
+
+    @Test
+    public void retryAfterTooLargeToCount() throws Throwable {
+        server.enqueue(new MockResponse().setResponseCode(503).addHeader("Retry-After", "9223372036854775807"));
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        // The delay must not wrap around to an immediate retry
+        assertTrue(operation.getHttpStatusCode() == 503);
+        assertTrue(server.getRequestCount() == 1);
+    }
+
+    @Test
+    public void noRetryForPost() throws Throwable {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost", null,
+                NetworkEngine.HttpMethod.POST);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(server.getRequestCount() == 1);
+    }
+
+    @Test
+    public void noRetryForClientErrors() throws Throwable {
+        server.enqueue(new MockResponse().setResponseCode(404));
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setRetryPolicy(RetryPolicy.NO_RETRY);
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getHttpStatusCode() == 404);
+        assertTrue(server.getRequestCount() == 1);
+    }
+
+    @Test
+    public void noRetryForParserErrors() throws Throwable {
+        server.enqueue(new MockResponse().setBody("not json").setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("not json").setResponseCode(200));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost");
+        operation.setParser(new NetworkOperation.ResponseParser() {
+            @Override
+            public void parse(final InputStream is, final long size) throws IOException {
+                throw new IOException("Invalid JSON");
+            }
+        });
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        // The response was received, parsing it again would fail the same way
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(!operation.isNetworkFailure());
+        assertTrue(server.getRequestCount() == 1);
+    }
+
+    @Test
+    public void retryAfterConnectionFailure() throws Throwable {
+        server.play(8080);
+
+        // Nothing listens on this port, the connection is refused
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:1");
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(operation.isNetworkFailure());
+    }
+
+    @Test
+    public void noRetryCantBeChanged() throws Throwable {
+        try {
+            RetryPolicy.NO_RETRY.setMaxRetries(5);
+            assertTrue(false);
+        } catch (UnsupportedOperationException e) {
+            assertTrue(RetryPolicy.NO_RETRY.getMaxRetries() == 0);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.google.mockwebserver.RecordedRequest;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.RetryPolicy;
+import com.sogeti.droidnetworking.SegmentedDownload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class SegmentedDownloadTests {
+    private MockWebServer server;
+    private File file;
+    private int completions;
+    private int errors;
+
+    @Before
+    public void setup() throws Throwable {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+        file = File.createTempFile("download", ".txt");
+        file.delete();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+
+        completions = 0;
+        errors = 0;
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        server.shutdown();
+
+        file.delete();
+        new File(file.getPath() + ".partial").delete();
+    }
+
+    @Test
+    public void segments() throws Throwable {
+        server.enqueue(new MockResponse().setHeader("Content-Length", 20).addHeader("Accept-Ranges", "bytes")
+                .addHeader("ETag", "\"v1\""));
+        server.enqueue(new MockResponse().setBody("0123456789").setResponseCode(206)
+                .addHeader("Content-Range", "bytes 0-9/20"));
+        server.enqueue(new MockResponse().setBody("abcdefghij").setResponseCode(206)
+                .addHeader("Content-Range", "bytes 10-19/20"));
+        server.play(8080);
+
+        SegmentedDownload download = new SegmentedDownload("http://localhost", file, 2);
+        download.setMinSegmentSize(1);
+        download.start(createListener());
+
+        runTasks();
+
+        assertTrue(server.takeRequest().getMethod().equals("HEAD"));
+
+        // Each segment asks for its own range of the same version of the file
+        RecordedRequest first = server.takeRequest();
+        RecordedRequest second = server.takeRequest();
+        assertTrue(first.getHeader("Range").equals("bytes=0-9"));
+        assertTrue(second.getHeader("Range").equals("bytes=10-19"));
+        assertTrue(second.getHeader("If-Match").equals("\"v1\""));
+
+        assertTrue(completions == 1 && errors == 0);
+        assertTrue(download.isCompleted());
+        assertTrue(download.getSegmentCount() == 2);
+        assertTrue(read(file).equals("0123456789abcdefghij"));
+    }
+
+    @Test
+    public void withoutRanges() throws Throwable {
+        server.enqueue(new MockResponse().setHeader("Content-Length", 20));
+        server.enqueue(new MockResponse().setBody("0123456789abcdefghij").setResponseCode(200));
+        server.play(8080);
+
+        SegmentedDownload download = new SegmentedDownload("http://localhost", file, 2);
+        download.setMinSegmentSize(1);
+        download.start(createListener());
+
+        runTasks();
+
+        // The server can't send ranges, so the file comes in one piece
+        assertTrue(server.getRequestCount() == 2);
+        assertTrue(completions == 1 && errors == 0);
+        assertTrue(download.getSegmentCount() == 0);
+        assertTrue(read(file).equals("0123456789abcdefghij"));
+    }
+
+    @Test
+    public void incompleteSegment() throws Throwable {
+        server.enqueue(new MockResponse().setHeader("Content-Length", 20).addHeader("Accept-Ranges", "bytes"));
+        server.enqueue(new MockResponse().setBody("0123456789").setResponseCode(206)
+                .addHeader("Content-Range", "bytes 0-9/20"));
+        server.enqueue(new MockResponse().setBody("abcde").setResponseCode(206)
+                .addHeader("Content-Range", "bytes 10-19/20"));
+        server.play(8080);
+
+        SegmentedDownload download = new SegmentedDownload("http://localhost", file, 2);
+        download.setMinSegmentSize(1);
+        download.setRetryPolicy(RetryPolicy.NO_RETRY);
+        download.start(createListener());
+
+        runTasks();
+
+        assertTrue(completions == 0 && errors == 1);
+        assertTrue(!file.exists());
+        assertTrue(!new File(file.getPath() + ".partial").exists());
+    }
+
+    @Test
+    public void rangeNotHonoured() throws Throwable {
+        server.enqueue(new MockResponse().setHeader("Content-Length", 20).addHeader("Accept-Ranges", "bytes"));
+        server.enqueue(new MockResponse().setBody("0123456789abcdefghij").setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("0123456789abcdefghij").setResponseCode(200));
+        server.enqueue(new MockResponse().setBody("0123456789abcdefghij").setResponseCode(200));
+        server.play(8080);
+
+        SegmentedDownload download = new SegmentedDownload("http://localhost", file, 2);
+        download.setMinSegmentSize(1);
+        download.start(createListener());
+
+        runTasks();
+
+        // Neither segment is retried, the file is downloaded in one piece instead
+        assertTrue(server.getRequestCount() == 4);
+        assertTrue(server.takeRequest().getMethod().equals("HEAD"));
+        assertTrue(server.takeRequest().getHeader("Range") != null);
+        assertTrue(server.takeRequest().getHeader("Range") != null);
+        assertTrue(server.takeRequest().getHeader("Range") == null);
+
+        assertTrue(completions == 1 && errors == 0);
+        assertTrue(read(file).equals("0123456789abcdefghij"));
+    }
+
+    @Test
+    public void unexpectedContentRange() throws Throwable {
+        server.enqueue(new MockResponse().setHeader("Content-Length", 20).addHeader("Accept-Ranges", "bytes"));
+        server.enqueue(new MockResponse().setBody("0123456789").setResponseCode(206)
+                .addHeader("Content-Range", "bytes 0-9/20"));
+        server.enqueue(new MockResponse().setBody("wrong").setResponseCode(206)
+                .addHeader("Content-Range", "bytes 5-9/20"));
+        server.enqueue(new MockResponse().setBody("0123456789abcdefghij").setResponseCode(200));
+        server.play(8080);
+
+        SegmentedDownload download = new SegmentedDownload("http://localhost", file, 2);
+        download.setMinSegmentSize(1);
+        download.start(createListener());
+
+        runTasks();
+
+        assertTrue(server.getRequestCount() == 4);
+        assertTrue(completions == 1 && errors == 0);
+        assertTrue(download.getSegmentCount() == 0);
+        assertTrue(read(file).equals("0123456789abcdefghij"));
+        assertTrue(!new File(file.getPath() + ".partial").exists());
+    }
+
+    // Each step hands over from the UI thread to a worker and back before the next one starts
+    private void runTasks() {
+        for (int i = 0; i < 8; i++) {
+            Robolectric.runBackgroundTasks();
+            Robolectric.runUiThreadTasks();
+        }
+    }
+
+    private SegmentedDownload.DownloadListener createListener() {
+        return new SegmentedDownload.DownloadListener() {
+            @Override
+            public void onDownloadCompletion(final SegmentedDownload download) {
+                completions++;
+            }
+
+            @Override
+            public void onDownloadError(final SegmentedDownload download) {
+                errors++;
+            }
+        };
+    }
+
+    private static String read(final File file) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+
+        try {
+            byte[] buffer = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+
+            while (offset < buffer.length && (read = is.read(buffer, offset, buffer.length - offset)) != -1) {
+                offset += read;
+            }
+
+            return new String(buffer, 0, offset, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.sogeti.droidnetworking.test.integration;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+import com.google.mockwebserver.RecordedRequest;
+import com.sogeti.droidnetworking.NetworkEngine;
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.transport.ApacheTransport;
+import com.sogeti.droidnetworking.transport.UrlConnectionTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.RobolectricBackgroundExecutorService;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.Activity;
+
+@RunWith(RobolectricTestRunner.class)
+public class TransportTests {
+    private MockWebServer server;
+
+    @Before
+    public void setup() {
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        server = new MockWebServer();
+
+        NetworkEngine.getInstance().setHttpPort(8080);
+        NetworkEngine.getInstance().init(new Activity());
+        NetworkEngine.getInstance().setUseCache(false);
+        NetworkEngine.getInstance().setSharedNetworkQueue(new RobolectricBackgroundExecutorService());
+
+        Robolectric.getBackgroundScheduler().pause();
+        Robolectric.getUiThreadScheduler().pause();
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        NetworkEngine.getInstance().setTransport(null);
+
+        server.shutdown();
+    }
+
+    @Test
+    public void defaultTransport() {
+        assertTrue(NetworkEngine.getInstance().getTransport() instanceof ApacheTransport);
+        assertTrue(NetworkEngine.getInstance().getConnectionPoolStats() != null);
+    }
+
+    @Test
+    public void urlConnectionGet() throws Throwable {
+        server.enqueue(new MockResponse().setBody("OK").setResponseCode(200));
+        server.play(8080);
+
+        NetworkEngine.getInstance().setTransport(new UrlConnectionTransport(5000, 5000));
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080");
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_COMPLETED);
+        assertTrue(operation.getHttpStatusCode() == 200);
+        assertTrue(operation.getResponseString().equals("OK"));
+        assertTrue(NetworkEngine.getInstance().getConnectionPoolStats() == null);
+    }
+
+    @Test
+    public void urlConnectionPost() throws Throwable {
+        server.enqueue(new MockResponse().setBody("Created").setResponseCode(201));
+        server.play(8080);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("name", "value");
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080",
+                params, NetworkEngine.HttpMethod.POST);
+        operation.setTransport(new UrlConnectionTransport(5000, 5000));
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        RecordedRequest request = server.takeRequest();
+
+        assertTrue(operation.getHttpStatusCode() == 201);
+        assertTrue(operation.getResponseString().equals("Created"));
+        assertTrue(request.getMethod().equals("POST"));
+        assertTrue(new String(request.getBody(), "UTF-8").equals("name=value"));
+    }
+
+    @Test
+    public void urlConnectionError() throws Throwable {
+        server.enqueue(new MockResponse().setBody("Not found").setResponseCode(404));
+        server.play(8080);
+
+        NetworkOperation operation = NetworkEngine.getInstance().createOperationWithURLString("http://localhost:8080");
+        operation.setTransport(new UrlConnectionTransport(5000, 5000));
+
+        NetworkEngine.getInstance().executeOperation(operation);
+
+        assertTrue(operation.getStatus() == NetworkOperation.STATUS_ERROR);
+        assertTrue(operation.getHttpStatusCode() == 404);
+    }
+}
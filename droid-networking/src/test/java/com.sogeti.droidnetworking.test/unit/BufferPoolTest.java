@@ -0,0 +1,137 @@
+package com.sogeti.droidnetworking.test.unit;
+
+import junit.framework.TestCase;
+
+import com.sogeti.droidnetworking.BufferPool;
+import com.sogeti.droidnetworking.DirectBufferPool;
+import com.sogeti.droidnetworking.PooledOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class BufferPoolTest extends TestCase {
+    private byte[] data;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        data = new byte[200000];
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+    }
+
+    public void testObtainRoundsUpToSizeClass() {
+        BufferPool pool = new BufferPool(64 * 1024);
+
+        assertEquals(1024, pool.obtain(1).length);
+        assertEquals(8192, pool.obtain(5000).length);
+        assertEquals(BufferPool.MAX_BUFFER_SIZE, pool.obtain(BufferPool.MAX_BUFFER_SIZE).length);
+
+        // Larger arrays are not pooled and allocated at the requested length
+        assertEquals(BufferPool.MAX_BUFFER_SIZE + 1, pool.obtain(BufferPool.MAX_BUFFER_SIZE + 1).length);
+    }
+
+    public void testRecycledArraysAreReused() {
+        BufferPool pool = new BufferPool(64 * 1024);
+        byte[] buffer = pool.obtain(4096);
+
+        pool.recycle(buffer);
+        assertEquals(4096, pool.getSize());
+
+        assertSame(buffer, pool.obtain(3000));
+        assertEquals(0, pool.getSize());
+    }
+
+    public void testPoolIsBounded() {
+        BufferPool pool = new BufferPool(16 * 1024);
+
+        pool.recycle(new byte[8192]);
+        pool.recycle(new byte[8192]);
+        pool.recycle(new byte[8192]);
+        assertEquals(16 * 1024, pool.getSize());
+
+        // Arrays outside the size classes are never kept
+        pool.recycle(new byte[1000]);
+        assertEquals(16 * 1024, pool.getSize());
+
+        pool.setMaxSize(8192);
+        assertEquals(8192, pool.getSize());
+    }
+
+    public void testDirectBuffers() {
+        DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+        ByteBuffer buffer = pool.obtain(100000);
+
+        assertTrue(buffer.isDirect());
+        assertEquals(128 * 1024, buffer.capacity());
+
+        buffer.put((byte) 1);
+        pool.recycle(buffer);
+
+        // Views are never taken back, the buffer itself comes back cleared
+        pool.recycle(buffer.asReadOnlyBuffer());
+        assertEquals(128 * 1024, pool.getSize());
+
+        ByteBuffer reused = pool.obtain(70000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+    }
+
+    public void testToByteArrayAcrossSegments() throws Exception {
+        PooledOutputStream out = new PooledOutputStream();
+
+        out.write(data[0]);
+        out.write(data, 1, 999);
+        out.write(data, 1000, data.length - 1000);
+
+        assertEquals(data.length, out.size());
+        assertTrue(Arrays.equals(out.toByteArray(), data));
+
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        out.writeTo(copy);
+        assertTrue(Arrays.equals(copy.toByteArray(), data));
+
+        out.release();
+        assertEquals(0, out.size());
+    }
+
+    public void testExpectedSizeIsNotCopied() {
+        PooledOutputStream out = new PooledOutputStream(1000);
+
+        out.write(data, 0, 1000);
+
+        byte[] first = out.toByteArray();
+        assertEquals(1000, first.length);
+
+        // The exact first segment was handed out, the stream no longer holds it
+        assertEquals(0, out.size());
+    }
+
+    public void testToInputStream() throws Exception {
+        PooledOutputStream out = new PooledOutputStream();
+        out.write(data, 0, data.length);
+
+        InputStream in = out.toInputStream();
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3000];
+        int read;
+
+        assertEquals(10, in.skip(10));
+        copy.write(data, 0, 10);
+
+        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            copy.write(buffer, 0, read);
+        }
+
+        assertTrue(Arrays.equals(copy.toByteArray(), data));
+
+        // Reading to the end gave the segments back
+        assertEquals(0, out.size());
+    }
+}
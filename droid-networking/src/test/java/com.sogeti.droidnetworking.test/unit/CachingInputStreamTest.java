@@ -0,0 +1,126 @@
+package com.sogeti.droidnetworking.test.unit;
+
+import junit.framework.TestCase;
+
+import com.sogeti.droidnetworking.external.CachingInputStream;
+import com.sogeti.droidnetworking.external.diskcache.DiskLruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class CachingInputStreamTest extends TestCase {
+    private File cacheDir;
+    private DiskLruCache cache;
+    private byte[] data;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "CachingInputStreamTest");
+        cacheDir.mkdir();
+
+        for (File file : cacheDir.listFiles()) {
+            file.delete();
+        }
+
+        cache = DiskLruCache.open(cacheDir, 1, 2, Integer.MAX_VALUE);
+
+        data = new byte[100000];
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.close();
+        super.tearDown();
+    }
+
+    public void testBulkReadIntoMemory() throws Exception {
+        CachingInputStream cis = new CachingInputStream(new ByteArrayInputStream(data));
+
+        readAll(cis);
+
+        assertTrue(Arrays.equals(cis.getCache(), data));
+    }
+
+    public void testCommitOnEndOfStream() throws Exception {
+        CachingInputStream cis = new CachingInputStream(new ByteArrayInputStream(data), edit("key"), 1, false);
+
+        // Mixed single byte reads, bulk reads and skips all end up in the entry
+        cis.read();
+        cis.read(new byte[1000], 0, 1000);
+        cis.skip(5000);
+        readAll(cis);
+        cis.close();
+
+        assertTrue(cis.getCache() == null);
+
+        DiskLruCache.Snapshot snapshot = cache.get("key");
+        assertTrue(snapshot != null);
+        assertTrue(Arrays.equals(readAll(snapshot.getInputStream(1)), data));
+        snapshot.close();
+    }
+
+    public void testAbortWhenClosedEarly() throws Exception {
+        CachingInputStream cis = new CachingInputStream(new ByteArrayInputStream(data), edit("key"), 1, true);
+
+        cis.read(new byte[1000], 0, 1000);
+        cis.close();
+
+        assertTrue(cache.get("key") == null);
+
+        // The entry can be edited again
+        assertTrue(cache.edit("key") != null);
+    }
+
+    public void testAbortOnReadError() throws Exception {
+        InputStream failing = new InputStream() {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ >= 10) {
+                    throw new IOException("Connection reset");
+                }
+
+                return 'a';
+            }
+        };
+
+        CachingInputStream cis = new CachingInputStream(failing, edit("key"), 1, false);
+
+        try {
+            readAll(cis);
+            fail();
+        } catch (IOException e) {
+            assertTrue(cache.get("key") == null);
+        }
+    }
+
+    private DiskLruCache.Editor edit(final String key) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, "metadata");
+
+        return editor;
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+
+        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+}
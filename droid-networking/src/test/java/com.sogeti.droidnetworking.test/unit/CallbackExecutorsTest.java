@@ -0,0 +1,80 @@
+package com.sogeti.droidnetworking.test.unit;
+
+import com.sogeti.droidnetworking.CallbackExecutors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CallbackExecutorsTest {
+    private List<String> calls;
+
+    @Before
+    public void setup() {
+        calls = new ArrayList<String>();
+
+        Robolectric.getUiThreadScheduler().pause();
+    }
+
+    @Test
+    public void direct() {
+        CallbackExecutors.DIRECT.execute(createCallback("a"));
+
+        assertTrue(calls.size() == 1);
+    }
+
+    @Test
+    public void mainThreadRunsWaitingCallbacksTogether() {
+        Executor executor = CallbackExecutors.newMainThreadExecutor();
+
+        executor.execute(createCallback("a"));
+        executor.execute(createCallback("b"));
+        executor.execute(createCallback("c"));
+
+        assertTrue(calls.isEmpty());
+
+        // One main thread task runs every callback that was waiting, in order
+        assertTrue(Robolectric.getUiThreadScheduler().runOneTask());
+        assertTrue(calls.size() == 3);
+        assertTrue(calls.get(0).equals("a") && calls.get(2).equals("c"));
+
+        assertTrue(!Robolectric.getUiThreadScheduler().runOneTask());
+    }
+
+    @Test
+    public void callbackArrivingDuringDispatchIsRunNext() {
+        final Executor executor = CallbackExecutors.newMainThreadExecutor();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                calls.add("a");
+                executor.execute(createCallback("b"));
+            }
+        });
+
+        Robolectric.getUiThreadScheduler().runOneTask();
+        assertTrue(calls.size() == 1);
+
+        Robolectric.getUiThreadScheduler().runOneTask();
+        assertTrue(calls.size() == 2);
+    }
+
+    private Runnable createCallback(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                calls.add(name);
+            }
+        };
+    }
+}
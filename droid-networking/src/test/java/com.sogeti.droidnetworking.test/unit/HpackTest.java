@@ -0,0 +1,156 @@
+package com.sogeti.droidnetworking.test.unit;
+
+import com.sogeti.droidnetworking.transport.Hpack;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+// Examples from RFC 7541 Appendix C
+@RunWith(RobolectricTestRunner.class)
+public class HpackTest {
+    @Test
+    public void decodeRequestsWithoutHuffman() throws Throwable {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        assertHeaders(decoder.decode(bytes("828684410f7777772e6578616d706c652e636f6d")),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+
+        assertHeaders(decoder.decode(bytes("828684be58086e6f2d6361636865")),
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+
+        assertHeaders(decoder.decode(bytes("828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565")),
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+    }
+
+    @Test
+    public void encodeRequestsWithHuffman() {
+        Hpack.Encoder encoder = new Hpack.Encoder(4096);
+
+        assertTrue(Arrays.equals(encoder.encode(headers(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com")), bytes("828684418cf1e3c2e5f23a6ba0ab90f4ff")));
+
+        assertTrue(Arrays.equals(encoder.encode(headers(":method", "GET", ":scheme", "http", ":path", "/",
+                ":authority", "www.example.com", "cache-control", "no-cache")),
+                bytes("828684be5886a8eb10649cbf")));
+
+        assertTrue(Arrays.equals(encoder.encode(headers(":method", "GET", ":scheme", "https", ":path", "/index.html",
+                ":authority", "www.example.com", "custom-key", "custom-value")),
+                bytes("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf")));
+    }
+
+    @Test
+    public void responsesWithEviction() throws Throwable {
+        // A 256 byte table only fits a few of the response headers, older entries are evicted
+        Hpack.Encoder encoder = new Hpack.Encoder(256);
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+
+        String[] first = {":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+            "location", "https://www.example.com"};
+        String[] second = {":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+            "location", "https://www.example.com"};
+        String[] third = {":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+            "location", "https://www.example.com", "content-encoding", "gzip",
+            "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"};
+
+        byte[] block = encoder.encode(headers(first));
+        assertTrue(Arrays.equals(block, bytes("488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+                + "6e919d29ad171863c78f0b97c8e9ae82ae43d3")));
+        assertHeaders(decoder.decode(block), first);
+
+        block = encoder.encode(headers(second));
+        assertTrue(Arrays.equals(block, bytes("4883640effc1c0bf")));
+        assertHeaders(decoder.decode(block), second);
+
+        block = encoder.encode(headers(third));
+        assertTrue(Arrays.equals(block, bytes("88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94"
+                + "e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007")));
+        assertHeaders(decoder.decode(block), third);
+    }
+
+    @Test
+    public void tableSizeUpdate() throws Throwable {
+        Hpack.Encoder encoder = new Hpack.Encoder(4096);
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        decoder.decode(encoder.encode(headers("custom-key", "custom-value")));
+
+        // Shrinking the table to nothing is announced first and empties both tables
+        encoder.setMaxTableSize(0);
+
+        byte[] block = encoder.encode(headers("custom-key", "custom-value"));
+        assertTrue(block[0] == 0x20);
+        assertHeaders(decoder.decode(block), "custom-key", "custom-value");
+    }
+
+    @Test
+    public void credentialsAreNeverIndexed() throws Throwable {
+        Hpack.Encoder encoder = new Hpack.Encoder(4096);
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        for (int i = 0; i < 2; i++) {
+            byte[] block = encoder.encode(headers("authorization", "Basic c2VjcmV0", "cookie", "id=1"));
+
+            // A never indexed literal with the name from the static table, sent in full every time
+            assertTrue(block[0] == 0x1f && block[1] == 0x08);
+            assertHeaders(decoder.decode(block), "authorization", "Basic c2VjcmV0", "cookie", "id=1");
+        }
+    }
+
+    @Test
+    public void invalidBlocks() {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        // Index past the end of the tables, a truncated string and a table larger than allowed
+        String[] invalid = {"ff00", "410f7777", "3fe21f"};
+
+        for (String block : invalid) {
+            try {
+                decoder.decode(bytes(block));
+                assertTrue(false);
+            } catch (IOException e) {
+                assertTrue(true);
+            }
+        }
+    }
+
+    private static List<Header> headers(final String... namesAndValues) {
+        List<Header> headers = new ArrayList<Header>();
+
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.add(new BasicHeader(namesAndValues[i], namesAndValues[i + 1]));
+        }
+
+        return headers;
+    }
+
+    private static void assertHeaders(final List<Header> headers, final String... namesAndValues) {
+        assertTrue(headers.size() * 2 == namesAndValues.length);
+
+        for (int i = 0; i < headers.size(); i++) {
+            assertTrue(headers.get(i).getName().equals(namesAndValues[i * 2]));
+            assertTrue(headers.get(i).getValue().equals(namesAndValues[i * 2 + 1]));
+        }
+    }
+
+    private static byte[] bytes(final String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return bytes;
+    }
+}
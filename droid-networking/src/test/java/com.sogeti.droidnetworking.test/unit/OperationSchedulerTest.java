@@ -0,0 +1,195 @@
+package com.sogeti.droidnetworking.test.unit;
+
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.OperationScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class OperationSchedulerTest {
+    private List<Runnable> started;
+    private List<String> executed;
+    private OperationScheduler scheduler;
+
+    @Before
+    public void setup() {
+        started = new ArrayList<Runnable>();
+        executed = new ArrayList<String>();
+
+        // Collect the dispatched operations instead of running them, so the test decides when they finish
+        scheduler = new OperationScheduler(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                started.add(command);
+            }
+        }, 2, 1);
+    }
+
+    @Test
+    public void perHostLimit() {
+        scheduler.submit(operation("http://a.example.com/1"), task("a1"));
+        scheduler.submit(operation("http://a.example.com/2"), task("a2"));
+        scheduler.submit(operation("http://b.example.com/1"), task("b1"));
+
+        // Only one operation per host may run, so the second operation to a.example.com has to wait
+        assertTrue(started.size() == 2);
+        assertTrue(scheduler.getPendingCount() == 1);
+
+        finishNext();
+
+        assertTrue(executed.get(0).equals("a1"));
+        assertTrue(started.size() == 2);
+        assertTrue(scheduler.getPendingCount() == 0);
+    }
+
+    @Test
+    public void priorityOrder() {
+        scheduler.setMaxConcurrentOperations(1);
+
+        scheduler.submit(operation("http://a.example.com/1"), task("first"));
+
+        NetworkOperation background = operation("http://b.example.com/1");
+        background.setPriority(NetworkOperation.Priority.BACKGROUND);
+        scheduler.submit(background, task("background"));
+        scheduler.submit(operation("http://c.example.com/1"), task("normal"));
+
+        NetworkOperation immediate = operation("http://d.example.com/1");
+        immediate.setPriority(NetworkOperation.Priority.IMMEDIATE);
+        scheduler.submit(immediate, task("immediate"));
+
+        // Reprioritize the background operation after it has been queued
+        background.setPriority(NetworkOperation.Priority.IMMEDIATE);
+
+        finishNext();
+        finishNext();
+        finishNext();
+        finishNext();
+
+        assertTrue(executed.get(0).equals("first"));
+        assertTrue(executed.get(1).equals("background"));
+        assertTrue(executed.get(2).equals("immediate"));
+        assertTrue(executed.get(3).equals("normal"));
+    }
+
+    @Test
+    public void backgroundLeavesSlotFree() {
+        for (int i = 0; i < 3; i++) {
+            NetworkOperation operation = operation("http://host" + i + ".example.com/");
+            operation.setPriority(NetworkOperation.Priority.BACKGROUND);
+            scheduler.submit(operation, task("background" + i));
+        }
+
+        // Background operations may not use the last slot
+        assertTrue(started.size() == 1);
+
+        scheduler.submit(operation("http://ui.example.com/"), task("interactive"));
+
+        assertTrue(started.size() == 2);
+    }
+
+    @Test
+    public void cancelPending() {
+        scheduler.setMaxConcurrentOperations(1);
+
+        scheduler.submit(operation("http://a.example.com/1"), task("a"));
+        Future<?> future = scheduler.submit(operation("http://b.example.com/1"), task("b"));
+
+        assertTrue(future.cancel(false));
+        assertTrue(scheduler.getPendingCount() == 0);
+
+        finishNext();
+
+        assertTrue(started.isEmpty());
+        assertTrue(executed.size() == 1);
+    }
+
+    @Test
+    public void slotHeldUntilReleased() {
+        final List<Runnable> releases = new ArrayList<Runnable>();
+
+        // Like an asynchronous transport, the task hands its slot off and returns
+        scheduler.submit(operation("http://a.example.com/1"), new OperationScheduler.Task() {
+            @Override
+            public void run(final Runnable release) {
+                releases.add(release);
+            }
+        });
+        scheduler.submit(operation("http://a.example.com/2"), task("a2"));
+
+        finishNext();
+
+        assertTrue(scheduler.getRunningCount() == 1);
+        assertTrue(started.isEmpty());
+
+        releases.get(0).run();
+        releases.get(0).run();
+
+        // The slot is only given back once, to the waiting operation
+        assertTrue(started.size() == 1);
+        assertTrue(scheduler.getRunningCount() == 1);
+    }
+
+    @Test
+    public void rejectedOperationReleasesSlot() throws Exception {
+        final List<Runnable> rejected = new ArrayList<Runnable>();
+
+        // An executor that refuses the first operation it is given
+        scheduler = new OperationScheduler(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                if (rejected.isEmpty()) {
+                    rejected.add(command);
+                    throw new RejectedExecutionException();
+                }
+
+                started.add(command);
+            }
+        }, 1, 1);
+
+        Future<?> future = scheduler.submit(operation("http://a.example.com/1"), task("a"));
+
+        try {
+            future.get();
+            assertTrue(false);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        assertTrue(scheduler.getRunningCount() == 0);
+
+        // The slot is free again for the next operation
+        scheduler.submit(operation("http://a.example.com/2"), task("b"));
+
+        assertTrue(started.size() == 1);
+        assertTrue(scheduler.getRunningCount() == 1);
+    }
+
+    private void finishNext() {
+        started.remove(0).run();
+    }
+
+    private NetworkOperation operation(final String urlString) {
+        return new NetworkOperation(urlString, null, null);
+    }
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                executed.add(name);
+            }
+        };
+    }
+}
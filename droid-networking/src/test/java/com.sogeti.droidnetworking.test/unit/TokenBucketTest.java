@@ -0,0 +1,76 @@
+package com.sogeti.droidnetworking.test.unit;
+
+import junit.framework.TestCase;
+
+import com.sogeti.droidnetworking.BandwidthLimiter;
+import com.sogeti.droidnetworking.NetworkOperation;
+import com.sogeti.droidnetworking.TokenBucket;
+
+public class TokenBucketTest extends TestCase {
+    private static final long SECOND = 1000000000L;
+
+    public void testBurstIsTakenWithoutDelay() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+
+        // A quarter of a second's worth of bytes is available up front
+        assertEquals(0, bucket.take(250, 0));
+        assertEquals(SECOND / 10, bucket.take(100, 0));
+    }
+
+    public void testDebtIsPaidBackOverTime() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+
+        assertEquals(SECOND, bucket.take(1250, 0));
+        assertEquals(SECOND / 2, bucket.getDelay(SECOND / 2));
+        assertEquals(0, bucket.getDelay(SECOND));
+    }
+
+    public void testRefillIsCappedAtBurst() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+
+        bucket.take(250, 0);
+
+        // Ten idle seconds still only earn a quarter of a second
+        assertEquals(0, bucket.take(250, 10 * SECOND));
+        assertEquals(SECOND / 1000, bucket.take(1, 10 * SECOND));
+    }
+
+    public void testRateChangeAppliesToDebt() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+
+        bucket.take(1250, 0);
+        bucket.setRate(2000, 0);
+
+        assertEquals(2000, bucket.getRate());
+        assertEquals(SECOND / 2, bucket.getDelay(0));
+    }
+
+    public void testRejectsNoRate() {
+        try {
+            new TokenBucket(0, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected, no limit is expressed by having no bucket
+        }
+    }
+
+    public void testLimiterLimits() {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+
+        limiter.setGlobalLimit(100000);
+        limiter.setPriorityLimit(NetworkOperation.Priority.BACKGROUND, 20000);
+        limiter.setHostLimit("Example.com", 50000);
+
+        assertEquals(100000, limiter.getGlobalLimit());
+        assertEquals(20000, limiter.getPriorityLimit(NetworkOperation.Priority.BACKGROUND));
+        assertEquals(0, limiter.getPriorityLimit(NetworkOperation.Priority.IMMEDIATE));
+        assertEquals(50000, limiter.getHostLimit("example.com"));
+
+        limiter.setHostLimit("example.com", 0);
+        assertEquals(0, limiter.getHostLimit("example.com"));
+
+        limiter.clearLimits();
+        assertEquals(0, limiter.getGlobalLimit());
+        assertEquals(0, limiter.getPriorityLimit(NetworkOperation.Priority.BACKGROUND));
+    }
+}